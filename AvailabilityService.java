@@ -0,0 +1,116 @@
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/*
+ * Month-at-a-time availability for a route, as shown by CalendarPicker.
+ *
+ * For each day the month map records whether any direct train runs (from each
+ * train's weekly service calendar) and how many seats are left across all
+ * classes of those trains. Months are computed on a background pool and kept
+ * in a bounded LRU cache per route. The picker asks for the neighbouring
+ * months as soon as one is shown, so paging "<" and ">" usually finds the
+ * answer already computed. A cached month is recomputed only once a booking
+ * or cancellation has touched one of the route's trains in that month.
+ */
+class AvailabilityService {
+    static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("dd/MM/yyyy");
+
+    private final RouteIndex routes;
+    private final SeatInventory inventory;
+    private final Map<String, Station> stations;
+    private final ServiceVersions changes;
+    private final SearchCache<MonthKey, CachedMonth> months;
+    private final ExecutorService pool = Executors.newFixedThreadPool(2, r -> {
+        Thread thread = new Thread(r, "availability");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    record MonthKey(String from, String to, YearMonth month) {
+    }
+
+    // 'versions' are the ServiceVersions month counters of 'routes', read before the month was computed
+    private record CachedMonth(RouteIndex.RouteEntry[] routes, long[] versions,
+            CompletableFuture<MonthAvailability> result) {
+    }
+
+    static class MonthAvailability {
+        final YearMonth month;
+        final long serviceDays;     // bit d-1 set if a train runs on day d
+        final int[] remainingSeats; // index d-1; 0 on days without service
+
+        MonthAvailability(YearMonth month, long serviceDays, int[] remainingSeats) {
+            this.month = month;
+            this.serviceDays = serviceDays;
+            this.remainingSeats = remainingSeats;
+        }
+
+        boolean hasService(int day) {
+            return (serviceDays & (1L << (day - 1))) != 0;
+        }
+
+        int remaining(int day) {
+            return remainingSeats[day - 1];
+        }
+    }
+
+    AvailabilityService(RouteIndex routes, SeatInventory inventory, Map<String, Station> stations,
+            ServiceVersions changes, int cachedMonths) {
+        this.routes = routes;
+        this.inventory = inventory;
+        this.stations = stations;
+        this.changes = changes;
+        this.months = new SearchCache<>(cachedMonths);
+    }
+
+    CompletableFuture<MonthAvailability> month(String from, String to, YearMonth month) {
+        return months.get(new MonthKey(from, to, month),
+                cached -> changes.monthsUnchanged(cached.routes(), month, cached.versions()),
+                key -> {
+                    RouteIndex.RouteEntry[] entries = routes.find(stations.get(from), stations.get(to));
+                    long[] versions = changes.months(entries, month);
+                    return new CachedMonth(entries, versions,
+                            CompletableFuture.supplyAsync(() -> compute(entries, month), pool));
+                }).result();
+    }
+
+    void prefetch(String from, String to, YearMonth month) {
+        month(from, to, month.minusMonths(1));
+        month(from, to, month.plusMonths(1));
+    }
+
+    SearchCache.Stats cacheStats() {
+        return months.stats();
+    }
+
+    // The month worked out now, without the cache
+    MonthAvailability compute(String from, String to, YearMonth month) {
+        return compute(routes.find(stations.get(from), stations.get(to)), month);
+    }
+
+    private MonthAvailability compute(RouteIndex.RouteEntry[] entries, YearMonth month) {
+        int days = month.lengthOfMonth();
+        long serviceDays = 0;
+        int[] remaining = new int[days];
+        for (int day = 1; day <= days; day++) {
+            LocalDate date = month.atDay(day);
+            String dateText = date.format(DATE_FORMAT);
+            for (RouteIndex.RouteEntry entry : entries) {
+                if (!entry.train.runsOn(date)) {
+                    continue;
+                }
+                serviceDays |= 1L << (day - 1);
+                for (SeatClass seatClass : SeatClass.values()) {
+                    remaining[day - 1] += inventory.available(entry.train, dateText, seatClass.label,
+                            entry.fromStop, entry.toStop);
+                }
+            }
+        }
+        return new MonthAvailability(month, serviceDays, remaining);
+    }
+}
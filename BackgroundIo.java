@@ -0,0 +1,165 @@
+import javax.swing.*;
+import java.awt.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+/*
+ * Runs booking-file work on virtual threads so the Swing event thread never
+ * waits on the disk. Each task's result comes back as a CompletableFuture and
+ * its callbacks are always run on the event thread.
+ *
+ * A task that is still running after a short delay gets a small progress dialog;
+ * quick reads and writes finish before it would appear. Reads can be cancelled
+ * from that dialog. Writes cannot, because once a record is in the journal the
+ * booking exists whether or not anyone is still waiting for the answer.
+ */
+final class BackgroundIo {
+    private static final ExecutorService EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+    private static final int DIALOG_DELAY_MS = 300;
+
+    @FunctionalInterface
+    interface Work<T> {
+        T run(IoProgress progress) throws Exception;
+    }
+
+    private BackgroundIo() {
+    }
+
+    // Starts the work without any UI; callers chain on the returned future
+    static <T> Task<T> submit(Work<T> work) {
+        Task<T> task = new Task<>();
+        EXECUTOR.execute(() -> {
+            try {
+                task.result.complete(work.run(task));
+            } catch (Throwable t) {
+                task.result.completeExceptionally(t);
+            }
+        });
+        return task;
+    }
+
+    /*
+     * Starts the work and, on the event thread, hands its result to onSuccess or
+     * its failure to onError. A cancelled task calls neither. Must be called on
+     * the event thread.
+     */
+    static <T> Task<T> run(Component owner, String message, boolean cancellable, Work<T> work,
+            Consumer<T> onSuccess, Consumer<Throwable> onError) {
+        Task<T> task = submit(work);
+        task.attachDialog(owner, message, cancellable);
+        task.result.whenComplete((value, error) -> SwingUtilities.invokeLater(() -> {
+            task.closeDialog();
+            if (task.isCancelled()) {
+                return;
+            }
+            if (error == null) {
+                onSuccess.accept(value);
+            } else {
+                onError.accept(error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause()
+                        : error);
+            }
+        }));
+        return task;
+    }
+
+    static final class Task<T> implements IoProgress {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        private volatile boolean cancelled;
+        private volatile long done;
+        private volatile long total;
+        private final AtomicBoolean refreshQueued = new AtomicBoolean();
+
+        // Event thread only
+        private Timer dialogTimer;
+        private JDialog dialog;
+        private JProgressBar bar;
+
+        // Asks a cancellable read to stop; its callbacks will not run
+        void cancel() {
+            cancelled = true;
+            result.cancel(false);
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        @Override
+        public void update(long done, long total) {
+            this.done = done;
+            this.total = total;
+            if (refreshQueued.compareAndSet(false, true)) {
+                SwingUtilities.invokeLater(this::refresh);
+            }
+        }
+
+        private void attachDialog(Component owner, String message, boolean cancellable) {
+            dialogTimer = new Timer(DIALOG_DELAY_MS, e -> showDialog(owner, message, cancellable));
+            dialogTimer.setRepeats(false);
+            dialogTimer.start();
+        }
+
+        private void showDialog(Component owner, String message, boolean cancellable) {
+            if (result.isDone()) {
+                return;
+            }
+            Window window = owner == null ? null : SwingUtilities.getWindowAncestor(owner);
+            if (owner instanceof Window) {
+                window = (Window) owner;
+            }
+            dialog = new JDialog(window, "Please wait", Dialog.ModalityType.MODELESS);
+            dialog.setDefaultCloseOperation(WindowConstants.DO_NOTHING_ON_CLOSE);
+
+            JPanel panel = new JPanel(new BorderLayout(10, 10));
+            panel.setBorder(BorderFactory.createEmptyBorder(15, 15, 15, 15));
+            panel.add(new JLabel(message), BorderLayout.NORTH);
+            bar = new JProgressBar();
+            bar.setIndeterminate(true);
+            bar.setStringPainted(false);
+            panel.add(bar, BorderLayout.CENTER);
+            if (cancellable) {
+                JButton cancelButton = new JButton("Cancel");
+                cancelButton.addActionListener(e -> {
+                    cancel();
+                    closeDialog();
+                });
+                JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+                buttons.add(cancelButton);
+                panel.add(buttons, BorderLayout.SOUTH);
+            }
+            dialog.add(panel);
+            dialog.pack();
+            dialog.setLocationRelativeTo(window);
+            dialog.setVisible(true);
+            refresh();
+        }
+
+        private void refresh() {
+            refreshQueued.set(false);
+            long total = this.total;
+            if (bar == null || total <= 0) {
+                return;
+            }
+            bar.setIndeterminate(false);
+            bar.setStringPainted(true);
+            bar.setValue((int) Math.min(100, done * 100 / total));
+        }
+
+        private void closeDialog() {
+            if (dialogTimer != null) {
+                dialogTimer.stop();
+            }
+            if (dialog != null) {
+                dialog.dispose();
+                dialog = null;
+                bar = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,27 @@
+class Booking {
+    Train train;
+    String from;
+    String to;
+    String date;
+    String passengerName;
+    String gender;
+    String seatType;
+    String paymentInfo;
+    int price;
+    String bookingId;
+    int seatNumber;
+
+    Booking(Train train, String from, String to, String date, String passengerName,
+            String gender, String seatType, String paymentInfo, int price) {
+        this.train = train;
+        this.from = from;
+        this.to = to;
+        this.date = date;
+        this.passengerName = passengerName;
+        this.gender = gender;
+        this.seatType = seatType;
+        this.paymentInfo = paymentInfo;
+        this.price = price;
+        this.bookingId = BookingIdGenerator.shared().next();
+    }
+}
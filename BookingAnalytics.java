@@ -0,0 +1,301 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * Occupancy, revenue and cancellation figures kept up to date as bookings are
+ * made and cancelled, so a dashboard reads a handful of counters instead of
+ * scanning the bookings file. Figures are kept per service (train, date and
+ * class), per train, per route (from and to station as booked), per payment
+ * method and in total.
+ *
+ * Load factor is the share of the service's seat-legs that are sold: a booking
+ * from stop 2 to stop 5 fills three legs of one seat.
+ *
+ * rebuild() recomputes everything from the bookings file on the common
+ * fork-join pool, for start-up and backfills. Cancellations are only known from
+ * the file until compaction removes them with the booking they cancelled, so
+ * after a rebuild the cancellation counts start from the last compaction.
+ * Bookings and cancellations that happen while it runs are applied as usual
+ * and also queued, then replayed on top of the rebuilt figures unless the scan
+ * already saw them.
+ */
+final class BookingAnalytics {
+    private static final int LEAF_RECORDS = 4096;
+
+    record ServiceKey(String train, String date, String seatClass) {
+    }
+
+    record RouteKey(String from, String to) {
+    }
+
+    // Live bookings and their revenue in rupees; 'cancelled' counts bookings that were made and then cancelled
+    record Summary(long bookings, long cancelled, long revenue, double loadFactor) {
+        double cancellationRate() {
+            long made = bookings + cancelled;
+            return made == 0 ? 0.0 : (double) cancelled / made;
+        }
+    }
+
+    private final Timetable timetable;
+    private final ReentrantReadWriteLock swap = new ReentrantReadWriteLock();
+    private volatile Figures figures;
+    private Queue<Event> pending; // under the swap lock; non-null while a rebuild runs
+
+    BookingAnalytics(Timetable timetable) {
+        this.timetable = timetable;
+        this.figures = new Figures(timetable);
+    }
+
+    // A booking record just appended at 'offset' in the given store generation
+    void booked(String[] record, long generation, long offset) {
+        apply(new Event(record, false, generation, offset));
+    }
+
+    void cancelled(String[] record) {
+        apply(new Event(record, true, -1, -1));
+    }
+
+    private void apply(Event event) {
+        swap.readLock().lock();
+        try {
+            figures.add(event.record, event.cancel ? -1 : 1);
+            if (pending != null) {
+                pending.add(event);
+            }
+        } finally {
+            swap.readLock().unlock();
+        }
+    }
+
+    /*
+     * Recomputes every figure from the file. Records are decoded in parallel,
+     * LEAF_RECORDS at a time, straight into shared counters. Starts over if a
+     * compaction moves the records under it.
+     */
+    synchronized void rebuild(BookingStore store) throws IOException {
+        long started = System.nanoTime();
+        swap.writeLock().lock();
+        try {
+            pending = new ConcurrentLinkedQueue<>();
+        } finally {
+            swap.writeLock().unlock();
+        }
+        try {
+            Figures rebuilt;
+            BookingStore.Rows rows;
+            Set<String> cancelled;
+            do {
+                rows = store.allBookings();
+                cancelled = store.cancelledIds();
+                rebuilt = new Figures(timetable);
+                Scan scan = new Scan(store, rows, cancelled, rebuilt, 0, rows.offsets.length);
+                ForkJoinPool.commonPool().invoke(scan);
+                if (scan.failure != null) {
+                    throw scan.failure;
+                }
+                if (!scan.moved) {
+                    break;
+                }
+            } while (true);
+
+            swap.writeLock().lock();
+            try {
+                for (Event event : pending) {
+                    if (!seenBy(event, rows, cancelled)) {
+                        rebuilt.add(event.record, event.cancel ? -1 : 1);
+                    }
+                }
+                figures = rebuilt;
+            } finally {
+                swap.writeLock().unlock();
+            }
+            Metrics.logInfo(String.format("Rebuilt booking analytics from %d records in %d ms",
+                    rows.offsets.length, (System.nanoTime() - started) / 1_000_000));
+        } finally {
+            swap.writeLock().lock();
+            try {
+                pending = null;
+            } finally {
+                swap.writeLock().unlock();
+            }
+        }
+    }
+
+    // Bookings are in the scan if they were written before it; cancellations if their ID was in its set
+    private static boolean seenBy(Event event, BookingStore.Rows rows, Set<String> cancelled) {
+        if (event.cancel) {
+            return cancelled.contains(event.record[1]);
+        }
+        return event.generation < rows.generation
+                || event.generation == rows.generation && event.offset < rows.end;
+    }
+
+    Summary service(String trainId, String date, String seatClass) {
+        Tally tally = figures.services.get(new ServiceKey(trainId, date, seatClass));
+        Train train = timetable.trains.get(trainId);
+        long seatLegs = 0;
+        if (train != null && train.stopCount() > 1) {
+            seatLegs = (long) train.seatCapacity.getOrDefault(seatClass, 0) * (train.stopCount() - 1);
+        }
+        return summary(tally, seatLegs);
+    }
+
+    Summary train(String trainId) {
+        return summary(figures.trains.get(trainId), 0);
+    }
+
+    Summary route(String from, String to) {
+        return summary(figures.routes.get(new RouteKey(from, to)), 0);
+    }
+
+    Summary payment(String method) {
+        return summary(figures.payments.get(method), 0);
+    }
+
+    Summary total() {
+        return summary(figures.total, 0);
+    }
+
+    Map<String, Summary> payments() {
+        Map<String, Summary> result = new HashMap<>();
+        figures.payments.forEach((method, tally) -> result.put(method, summary(tally, 0)));
+        return result;
+    }
+
+    // The routes that have brought in the most revenue, best first
+    List<Map.Entry<RouteKey, Summary>> topRoutes(int limit) {
+        List<Map.Entry<RouteKey, Summary>> routes = new ArrayList<>();
+        figures.routes.forEach((route, tally) -> routes.add(Map.entry(route, summary(tally, 0))));
+        routes.sort(Comparator.comparingLong((Map.Entry<RouteKey, Summary> e) -> e.getValue().revenue()).reversed());
+        return routes.subList(0, Math.min(limit, routes.size()));
+    }
+
+    private static Summary summary(Tally tally, long seatLegs) {
+        if (tally == null) {
+            return new Summary(0, 0, 0, 0.0);
+        }
+        double loadFactor = seatLegs == 0 ? 0.0 : (double) tally.seatLegs.sum() / seatLegs;
+        return new Summary(tally.bookings.sum(), tally.cancelled.sum(), tally.revenue.sum(), loadFactor);
+    }
+
+    private record Event(String[] record, boolean cancel, long generation, long offset) {
+    }
+
+    private static final class Tally {
+        final LongAdder bookings = new LongAdder();
+        final LongAdder cancelled = new LongAdder();
+        final LongAdder revenue = new LongAdder();
+        final LongAdder seatLegs = new LongAdder();
+
+        void add(int sign, long price, long legs) {
+            bookings.add(sign);
+            revenue.add(sign * price);
+            seatLegs.add(sign * legs);
+            if (sign < 0) {
+                cancelled.increment();
+            }
+        }
+    }
+
+    private static final class Figures {
+        final Map<ServiceKey, Tally> services = new ConcurrentHashMap<>();
+        final Map<String, Tally> trains = new ConcurrentHashMap<>();
+        final Map<RouteKey, Tally> routes = new ConcurrentHashMap<>();
+        final Map<String, Tally> payments = new ConcurrentHashMap<>();
+        final Tally total = new Tally();
+        private final Timetable timetable;
+
+        Figures(Timetable timetable) {
+            this.timetable = timetable;
+        }
+
+        // sign is 1 for a booking and -1 for its cancellation
+        void add(String[] record, int sign) {
+            long price = Long.parseLong(record[10]);
+            long legs = legs(record);
+            services.computeIfAbsent(new ServiceKey(record[2], record[6], record[9]), k -> new Tally())
+                    .add(sign, price, legs);
+            trains.computeIfAbsent(record[2], k -> new Tally()).add(sign, price, legs);
+            routes.computeIfAbsent(new RouteKey(record[4], record[5]), k -> new Tally()).add(sign, price, legs);
+            payments.computeIfAbsent(record[11], k -> new Tally()).add(sign, price, legs);
+            total.add(sign, price, legs);
+        }
+
+        // Legs of the train the booking covers; 0 if the train or its stops are no longer in the timetable
+        private long legs(String[] record) {
+            Train train = timetable.trains.get(record[2]);
+            if (train == null) {
+                return 0;
+            }
+            int from = train.stopIndex(timetable.stations.get(record[4]));
+            int to = train.stopIndex(timetable.stations.get(record[5]));
+            return from >= 0 && to > from ? to - from : 0;
+        }
+    }
+
+    // Splits the booking offsets in halves until a piece is small enough to decode in one go
+    @SuppressWarnings("serial") // a task, never serialized; neither are the store and sets it holds
+    private static final class Scan extends RecursiveAction {
+        private final BookingStore store;
+        private final BookingStore.Rows rows;
+        private final Set<String> cancelled;
+        private final Figures into;
+        private final int from;
+        private final int to;
+        volatile boolean moved;
+        volatile IOException failure;
+
+        Scan(BookingStore store, BookingStore.Rows rows, Set<String> cancelled, Figures into, int from, int to) {
+            this.store = store;
+            this.rows = rows;
+            this.cancelled = cancelled;
+            this.into = into;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > LEAF_RECORDS) {
+                int middle = (from + to) >>> 1;
+                Scan left = new Scan(store, rows, cancelled, into, from, middle);
+                Scan right = new Scan(store, rows, cancelled, into, middle, to);
+                invokeAll(left, right);
+                moved = left.moved || right.moved;
+                failure = left.failure != null ? left.failure : right.failure;
+                return;
+            }
+            try {
+                String[][] records = store.readAt(rows.generation, Arrays.copyOfRange(rows.offsets, from, to));
+                if (records == null) {
+                    moved = true;
+                    return;
+                }
+                for (String[] record : records) {
+                    if (record == null) {
+                        continue;
+                    }
+                    into.add(record, 1);
+                    if (cancelled.contains(record[1])) {
+                        into.add(record, -1);
+                    }
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+}
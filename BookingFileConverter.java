@@ -0,0 +1,236 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Converts a bookings file from the old comma-separated text format into the
+ * binary BookingFormat. Each line was
+ *
+ *   user, booking ID, train ID, train name, from, to, date, passenger, gender,
+ *   seat class, price, payment [, seat]
+ *
+ * or a "#cancelled,<booking ID>" tombstone. Cancelled bookings are dropped
+ * rather than carried over, so the new file starts compacted. Older versions
+ * did not stop a passenger name from holding commas; such lines are put back
+ * together from the numeric price and seat columns. Lines that still make no
+ * sense are skipped and reported.
+ *
+ * Booking IDs must be unique in the new file. A line repeating an earlier one
+ * exactly is dropped; a different booking under an ID already used gets a new
+ * ID. Both are counted and reported like skipped lines. A tombstone still
+ * cancels every line with its ID.
+ *
+ * The new file is written next to the target and renamed into place with its
+ * index, so an interrupted conversion leaves no target behind and simply runs
+ * again. The old file is left where it was.
+ *
+ *   java BookingFileConverter <old file> <new file>
+ */
+final class BookingFileConverter {
+    private static final int REPORTED_LINES = 10;
+
+    private BookingFileConverter() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: java BookingFileConverter <old file> <new file>");
+            return;
+        }
+        Path target = Paths.get(args[1]);
+        if (Files.exists(target)) {
+            System.err.println(target + " already exists");
+            return;
+        }
+        System.out.println("Converted " + convert(Paths.get(args[0]), target) + " bookings into " + target);
+    }
+
+    // Converts the old file on first start, i.e. only if it exists and the new one does not yet
+    static void migrate(Path legacy, Path target) throws IOException {
+        if (Files.exists(target) || !Files.exists(legacy)) {
+            return;
+        }
+        long started = System.nanoTime();
+        long converted = convert(legacy, target);
+        Metrics.logInfo(String.format("Converted %d bookings from %s into %s in %d ms; the old file can be removed",
+                converted, legacy, target, (System.nanoTime() - started) / 1_000_000));
+    }
+
+    // Returns the number of live bookings written to 'target'
+    static long convert(Path source, Path target) throws IOException {
+        Set<String> cancelled = readTombstones(source);
+        Path temp = target.resolveSibling(target.getFileName() + ".converting");
+        Path tempIndex = BookingIndex.indexPathFor(temp);
+        Path tempDictionary = BookingIndex.dictionaryPathFor(temp);
+        Files.deleteIfExists(temp);
+        Files.deleteIfExists(tempIndex);
+        Files.deleteIfExists(tempDictionary);
+
+        long converted = 0;
+        boolean done = false;
+        try {
+            BookingStore store = new BookingStore(temp, Durability.OS_BUFFERED, 0, 1.0, Long.MAX_VALUE);
+            try (BufferedReader in = open(source)) {
+                Lines skipped = new Lines();
+                Lines repeated = new Lines();
+                Lines renumbered = new Lines();
+                Map<String, String> written = new HashMap<>(); // booking ID -> the record under it, joined
+                long lineNumber = 0;
+                String line;
+                while ((line = in.readLine()) != null) {
+                    lineNumber++;
+                    if (line.isBlank() || line.startsWith(BookingStore.TOMBSTONE + ",")) {
+                        continue;
+                    }
+                    String[] record = parse(line);
+                    if (record == null) {
+                        skipped.add(lineNumber);
+                        continue;
+                    }
+                    if (cancelled.contains(record[1])) {
+                        continue;
+                    }
+                    String joined = String.join("\u0000", record);
+                    String earlier = written.get(record[1]);
+                    if (joined.equals(earlier)) {
+                        repeated.add(lineNumber);
+                        continue;
+                    }
+                    if (earlier != null) {
+                        // Taken by another booking; a fresh ID is also checked, against later legacy IDs
+                        do {
+                            record[1] = BookingIdGenerator.shared().next();
+                        } while (written.containsKey(record[1]));
+                        joined = String.join("\u0000", record);
+                        renumbered.add(lineNumber);
+                    }
+                    written.put(record[1], joined);
+                    store.append(record);
+                    converted++;
+                }
+                skipped.report("Skipped " + skipped.count + " unreadable lines of " + source);
+                repeated.report("Dropped " + repeated.count + " lines of " + source + " that repeat an earlier line");
+                renumbered.report("Gave " + renumbered.count + " bookings in " + source
+                        + " a new ID, since an earlier booking had theirs");
+            } finally {
+                store.close();
+                Files.deleteIfExists(BookingStore.lockPathFor(temp));
+            }
+            force(temp);
+            force(tempIndex);
+            force(tempDictionary);
+            // The data file goes last: its presence is what marks the conversion as done
+            Files.move(tempIndex, BookingIndex.indexPathFor(target), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            Files.move(tempDictionary, BookingIndex.dictionaryPathFor(target), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+            done = true;
+        } finally {
+            if (!done) {
+                Files.deleteIfExists(temp);
+                Files.deleteIfExists(tempIndex);
+                Files.deleteIfExists(tempDictionary);
+            }
+        }
+        return converted;
+    }
+
+    // First pass: IDs cancelled anywhere in the file, since a tombstone follows the booking it cancels
+    private static Set<String> readTombstones(Path source) throws IOException {
+        Set<String> cancelled = new HashSet<>();
+        String prefix = BookingStore.TOMBSTONE + ",";
+        try (BufferedReader in = open(source)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith(prefix)) {
+                    cancelled.add(line.substring(prefix.length()).trim());
+                }
+            }
+        }
+        return cancelled;
+    }
+
+    /*
+     * One old line as a record in the BookingService.toRecord column order, or
+     * null if it cannot be read. A trailing numeric column is the seat number.
+     */
+    static String[] parse(String line) {
+        String[] fields = line.split(",", -1);
+        if (fields.length < BookingFormat.FIELDS - 1) {
+            return null;
+        }
+        int expected = isNumber(fields[fields.length - 1]) ? BookingFormat.FIELDS : BookingFormat.FIELDS - 1;
+        int extra = fields.length - expected;
+        if (extra < 0) {
+            return null;
+        }
+        String[] record = new String[expected];
+        System.arraycopy(fields, 0, record, 0, 7);
+        record[7] = String.join(",", Arrays.copyOfRange(fields, 7, 8 + extra));
+        System.arraycopy(fields, 8 + extra, record, 8, expected - 8);
+        for (int i = 0; i < record.length; i++) {
+            record[i] = record[i].trim();
+        }
+        if (record[0].isEmpty() || BookingStore.isReservedUser(record[0]) || record[1].isEmpty()
+                || !isNumber(record[10])) {
+            return null;
+        }
+        return record;
+    }
+
+    private static boolean isNumber(String field) {
+        String value = field.trim();
+        if (value.isEmpty() || value.length() > 9) {
+            return false;
+        }
+        for (int i = value.charAt(0) == '-' ? 1 : 0; i < value.length(); i++) {
+            if (!Character.isDigit(value.charAt(i))) {
+                return false;
+            }
+        }
+        return value.length() > (value.charAt(0) == '-' ? 1 : 0);
+    }
+
+    // Malformed bytes become U+FFFD instead of failing the whole conversion
+    private static BufferedReader open(Path source) throws IOException {
+        return new BufferedReader(new InputStreamReader(Files.newInputStream(source), StandardCharsets.UTF_8),
+                64 * 1024);
+    }
+
+    private static void force(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    // Line numbers of one kind of problem, the first few of them kept for the log
+    private static final class Lines {
+        int count;
+        private final StringBuilder first = new StringBuilder();
+
+        void add(long lineNumber) {
+            if (count++ < REPORTED_LINES) {
+                first.append(first.length() == 0 ? "" : ", ").append(lineNumber);
+            }
+        }
+
+        void report(String message) {
+            if (count > 0) {
+                Metrics.logError(message + " (lines " + first + (count > REPORTED_LINES ? ", ..." : "") + ")", null);
+            }
+        }
+    }
+}
@@ -0,0 +1,533 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * Binary layout of the bookings file.
+ *
+ * The file starts with an 8 byte header: magic "PKBK", format version (u16),
+ * and two reserved bytes. Records follow back to back, each with a fixed
+ * 4 byte header:
+ *
+ *   kind (u8)   1 = booking, 2 = tombstone, 3 = dictionary entry, 4 = group
+ *   version (u8)
+ *   body length (u16)
+ *
+ * Booking body, version 1:
+ *   flags (u8)          bit 0: the booking ID is an old free-form string
+ *   booking ID          i64, or varint length + UTF-8 when bit 0 is set
+ *   user, train ID, train name, from, to, date, gender, seat class, payment
+ *                       varint dictionary IDs
+ *   price, seat         zigzag varints; seat is -1 for records that predate seat numbers
+ *   passenger name      varint length + UTF-8
+ *
+ * Tombstone body: the same flags byte and booking ID.
+ * Dictionary body: varint ID, then the UTF-8 string.
+ * Group body: the byte length (u32) of the records that follow and belong to
+ * it. A group booking is written as one group, and the Cursor treats a group
+ * that is cut short like one torn record, so after a crash it is either all
+ * there or not at all. Readers never see the group records themselves.
+ *
+ * Version 2 files may hold groups; version 1 files are upgraded in place when
+ * opened, so an older build refuses them instead of cutting off a group.
+ *
+ * Values that repeat (users, trains, stations, dates, classes and payment
+ * methods) are written once as a dictionary entry and then referred to by a
+ * small number. An entry is made durable before any record uses its ID, so a
+ * file never refers to an ID it does not define. IDs are explicit rather than
+ * positional because concurrent appenders may land entries out of order.
+ *
+ * Decoded records are String arrays in the column order of the old text file
+ * (see BookingService.toRecord), and tombstones decode to { TOMBSTONE, bookingId }.
+ * Fields may hold any character, commas included.
+ */
+final class BookingFormat {
+    static final int FILE_MAGIC = 0x504B424B; // "PKBK"
+    static final int FILE_VERSION = 2;
+    static final int FILE_HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 4;
+    static final int MAX_BODY = 0xFFFF;
+
+    static final byte BOOKING = 1;
+    static final byte TOMBSTONE = 2;
+    static final byte DICTIONARY = 3;
+    static final byte GROUP = 4;
+    static final int GROUP_HEADER_SIZE = RECORD_HEADER_SIZE + 4;
+    private static final byte RECORD_VERSION = 1;
+    private static final int LEGACY_ID = 1;
+
+    static final int FIELDS = 13;
+
+    private BookingFormat() {
+    }
+
+    static byte[] fileHeader() {
+        return ByteBuffer.allocate(FILE_HEADER_SIZE).putInt(FILE_MAGIC).putShort((short) FILE_VERSION)
+                .putShort((short) 0).array();
+    }
+
+    // True if these are the first bytes of a bookings file this code can read
+    static boolean isFileHeader(byte[] first) {
+        return fileVersion(first) > 0;
+    }
+
+    // The format version of a bookings file this code can read, or -1
+    static int fileVersion(byte[] first) {
+        if (first.length < FILE_HEADER_SIZE) {
+            return -1;
+        }
+        ByteBuffer header = ByteBuffer.wrap(first);
+        if (header.getInt() != FILE_MAGIC) {
+            return -1;
+        }
+        int version = header.getShort();
+        return version >= 1 && version <= FILE_VERSION ? version : -1;
+    }
+
+    /*
+     * Encodes one record in the BookingService.toRecord column order. New
+     * dictionary values are passed to the dictionary's writer first.
+     */
+    static byte[] encodeBooking(String[] record, Dictionary dictionary) throws IOException {
+        if (record.length < FIELDS - 1) {
+            throw new IllegalArgumentException("A booking record has at least " + (FIELDS - 1) + " fields");
+        }
+        Encoder body = new Encoder(64);
+        writeBookingId(body, record[1]);
+        body.varint(dictionary.intern(record[0]));
+        body.varint(dictionary.intern(record[2]));
+        body.varint(dictionary.intern(record[3]));
+        body.varint(dictionary.intern(record[4]));
+        body.varint(dictionary.intern(record[5]));
+        body.varint(dictionary.intern(record[6]));
+        body.varint(dictionary.intern(record[8]));
+        body.varint(dictionary.intern(record[9]));
+        body.varint(dictionary.intern(record[11]));
+        body.zigzag(Integer.parseInt(record[10]));
+        body.zigzag(record.length >= FIELDS ? Integer.parseInt(record[12]) : -1);
+        body.string(record[7]);
+        return body.record(BOOKING);
+    }
+
+    static byte[] encodeTombstone(String bookingId) {
+        Encoder body = new Encoder(16);
+        writeBookingId(body, bookingId);
+        return body.record(TOMBSTONE);
+    }
+
+    // The group header for 'length' bytes of records that are written right after it
+    static byte[] encodeGroup(int length) {
+        return ByteBuffer.allocate(GROUP_HEADER_SIZE).put(GROUP).put(RECORD_VERSION).putShort((short) 4)
+                .putInt(length).array();
+    }
+
+    static byte[] encodeDictionaryEntry(int id, String value) {
+        Encoder body = new Encoder(value.length() + 8);
+        body.varint(id);
+        body.bytes(value.getBytes(StandardCharsets.UTF_8));
+        return body.record(DICTIONARY);
+    }
+
+    // The booking or tombstone at this offset, or null if no complete one starts there
+    static String[] read(RecordFile file, long offset, Dictionary dictionary) throws IOException {
+        return read(file, offset, dictionary, false);
+    }
+
+    static String[] read(RecordFile file, long offset, Dictionary dictionary, boolean keysOnly) throws IOException {
+        Cursor cursor = new Cursor(file, offset, file.size());
+        if (!cursor.next() || cursor.kind == DICTIONARY) {
+            return null;
+        }
+        return decode(cursor.kind, cursor.body(), dictionary, keysOnly);
+    }
+
+    /*
+     * Decodes a booking or tombstone body. Only the user and booking ID are
+     * filled in when 'keysOnly' is set, which is all the index and the
+     * compactor need.
+     */
+    static String[] decode(byte kind, ByteBuffer body, Dictionary dictionary, boolean keysOnly) throws IOException {
+        try {
+            String bookingId = readBookingId(body);
+            if (kind == TOMBSTONE) {
+                return new String[] { BookingStore.TOMBSTONE, bookingId };
+            }
+            if (kind != BOOKING) {
+                throw new IOException("Not a booking record: kind " + kind);
+            }
+            String user = dictionary.value(varint(body));
+            if (keysOnly) {
+                return new String[] { user, bookingId };
+            }
+            String trainId = dictionary.value(varint(body));
+            String trainName = dictionary.value(varint(body));
+            String from = dictionary.value(varint(body));
+            String to = dictionary.value(varint(body));
+            String date = dictionary.value(varint(body));
+            String gender = dictionary.value(varint(body));
+            String seatType = dictionary.value(varint(body));
+            String payment = dictionary.value(varint(body));
+            int price = unzigzag(varint(body));
+            int seat = unzigzag(varint(body));
+            String passenger = string(body);
+            String[] record = new String[seat < 0 ? FIELDS - 1 : FIELDS];
+            record[0] = user;
+            record[1] = bookingId;
+            record[2] = trainId;
+            record[3] = trainName;
+            record[4] = from;
+            record[5] = to;
+            record[6] = date;
+            record[7] = passenger;
+            record[8] = gender;
+            record[9] = seatType;
+            record[10] = Integer.toString(price);
+            record[11] = payment;
+            if (seat >= 0) {
+                record[12] = Integer.toString(seat);
+            }
+            return record;
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt booking record", e);
+        }
+    }
+
+    // Reads a whole dictionary record, header included, into the dictionary
+    static void decodeDictionaryRecord(byte[] record, Dictionary dictionary) throws IOException {
+        int bodyLength = record.length < RECORD_HEADER_SIZE ? -1 : ((record[2] & 0xFF) << 8) | (record[3] & 0xFF);
+        if (bodyLength < 0 || record[0] != DICTIONARY || record[1] != RECORD_VERSION
+                || RECORD_HEADER_SIZE + bodyLength != record.length) {
+            throw new IOException("Not a dictionary record");
+        }
+        decodeDictionaryEntry(ByteBuffer.wrap(record, RECORD_HEADER_SIZE, bodyLength).slice(), dictionary);
+    }
+
+    // Reads a dictionary entry body into the dictionary
+    static void decodeDictionaryEntry(ByteBuffer body, Dictionary dictionary) throws IOException {
+        try {
+            int id = varint(body);
+            byte[] bytes = new byte[body.remaining()];
+            body.get(bytes);
+            dictionary.define(id, new String(bytes, StandardCharsets.UTF_8));
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            throw new IOException("Corrupt dictionary entry", e);
+        }
+    }
+
+    private static void writeBookingId(Encoder body, String bookingId) {
+        long id = BookingIdGenerator.parse(bookingId);
+        if (id > 0) {
+            body.put(0);
+            body.int64(id);
+        } else {
+            body.put(LEGACY_ID);
+            body.string(bookingId);
+        }
+    }
+
+    private static String readBookingId(ByteBuffer body) {
+        int flags = body.get();
+        return (flags & LEGACY_ID) != 0 ? string(body) : BookingIdGenerator.format(body.getLong());
+    }
+
+    private static int varint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static String string(ByteBuffer in) {
+        int length = varint(in);
+        if (length > in.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        String value = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return value;
+    }
+
+    /*
+     * Whether the bytes from 'from', where a Cursor stopped, to 'end' are what a
+     * crash part way through an append leaves behind: too few for a record
+     * header, all zeros, or one record or group whose header is sound but which
+     * runs past the end. Anything else is damage that cutting the file short
+     * would only hide.
+     */
+    static boolean isTornTail(RecordFile file, long from, long end) throws IOException {
+        if (end - from < RECORD_HEADER_SIZE) {
+            return true;
+        }
+        byte[] header = new byte[GROUP_HEADER_SIZE];
+        int read = (int) Math.min(header.length, end - from);
+        file.read(from, header, 0, read);
+        int bodyLength = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+        if (header[1] == RECORD_VERSION) {
+            if (header[0] == GROUP && bodyLength == 4) {
+                if (read < GROUP_HEADER_SIZE
+                        || from + GROUP_HEADER_SIZE + (ByteBuffer.wrap(header, RECORD_HEADER_SIZE, 4).getInt() & 0xFFFFFFFFL) > end) {
+                    return true;
+                }
+            } else if ((header[0] == BOOKING || header[0] == TOMBSTONE || header[0] == DICTIONARY)
+                    && from + RECORD_HEADER_SIZE + bodyLength > end) {
+                return true;
+            }
+        }
+        byte[] chunk = new byte[64 * 1024];
+        for (long at = from; at < end; at += chunk.length) {
+            int length = (int) Math.min(chunk.length, end - at);
+            file.read(at, chunk, 0, length);
+            for (int i = 0; i < length; i++) {
+                if (chunk[i] != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Walks the records of a bookings file. next() stops at the end, at
+     * a record or group cut short by a crash, or at bytes that cannot start a
+     * record, and 'position' is then the end of the sound part of the file:
+     * the start of a group, if the bad bytes are inside one. Group headers are
+     * stepped over; the records in a whole group are returned like any others.
+     */
+    static final class Cursor {
+        private final RecordFile file;
+        private final long end;
+        private final byte[] header = new byte[RECORD_HEADER_SIZE];
+        private final byte[] groupLength = new byte[4];
+        private byte[] body = new byte[256];
+        long position;  // where the next record starts
+        long start;     // where the current record starts
+        long stopped;   // where next() found the bytes it could not read, once it returns false
+        byte kind;
+        int length;     // of the current body
+        private long groupStart = -1;
+        private long groupEnd;
+
+        Cursor(RecordFile file, long from, long end) {
+            this.file = file;
+            this.end = Math.min(end, file.size());
+            this.position = from;
+        }
+
+        boolean next() throws IOException {
+            byte recordKind;
+            int bodyLength;
+            while (true) {
+                if (groupStart >= 0 && position >= groupEnd) {
+                    groupStart = -1;
+                }
+                if (position + RECORD_HEADER_SIZE > end) {
+                    return stop();
+                }
+                file.read(position, header, 0, RECORD_HEADER_SIZE);
+                recordKind = header[0];
+                bodyLength = ((header[2] & 0xFF) << 8) | (header[3] & 0xFF);
+                if (recordKind != GROUP || header[1] != RECORD_VERSION || bodyLength != 4) {
+                    break;
+                }
+                if (position + GROUP_HEADER_SIZE > end) {
+                    return stop();
+                }
+                file.read(position + RECORD_HEADER_SIZE, groupLength, 0, 4);
+                long nextGroupEnd = position + GROUP_HEADER_SIZE + (ByteBuffer.wrap(groupLength).getInt() & 0xFFFFFFFFL);
+                if (nextGroupEnd > end) {
+                    return stop();
+                }
+                groupStart = position;
+                groupEnd = nextGroupEnd;
+                position += GROUP_HEADER_SIZE;
+            }
+            boolean known = recordKind == BOOKING || recordKind == TOMBSTONE || recordKind == DICTIONARY;
+            if (!known || header[1] != RECORD_VERSION || position + RECORD_HEADER_SIZE + bodyLength > end) {
+                return stop();
+            }
+            start = position;
+            kind = recordKind;
+            length = bodyLength;
+            position = start + RECORD_HEADER_SIZE + bodyLength;
+            return true;
+        }
+
+        // A group is only ever sound as a whole, so the sound part ends before one with bad bytes inside
+        private boolean stop() {
+            stopped = position;
+            if (groupStart >= 0) {
+                position = groupStart;
+                groupStart = -1;
+            }
+            return false;
+        }
+
+        // The current body; valid until the next call
+        ByteBuffer body() throws IOException {
+            if (body.length < length) {
+                body = new byte[Math.max(length, body.length * 2)];
+            }
+            file.read(start + RECORD_HEADER_SIZE, body, 0, length);
+            return ByteBuffer.wrap(body, 0, length);
+        }
+
+        // The current record, header included, for copying it unchanged
+        byte[] raw() throws IOException {
+            byte[] record = new byte[RECORD_HEADER_SIZE + length];
+            file.read(start, record, 0, record.length);
+            return record;
+        }
+    }
+
+    // Growable byte buffer for one record; record() puts the header in front
+    private static final class Encoder {
+        private byte[] bytes;
+        private int size = RECORD_HEADER_SIZE;
+
+        Encoder(int capacity) {
+            bytes = new byte[RECORD_HEADER_SIZE + capacity];
+        }
+
+        void put(int b) {
+            ensure(1);
+            bytes[size++] = (byte) b;
+        }
+
+        void bytes(byte[] value) {
+            ensure(value.length);
+            System.arraycopy(value, 0, bytes, size, value.length);
+            size += value.length;
+        }
+
+        void int64(long value) {
+            ensure(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                bytes[size++] = (byte) (value >>> shift);
+            }
+        }
+
+        void varint(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                bytes[size++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            bytes[size++] = (byte) value;
+        }
+
+        void zigzag(int value) {
+            varint((value << 1) ^ (value >> 31));
+        }
+
+        void string(String value) {
+            byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+            varint(utf8.length);
+            bytes(utf8);
+        }
+
+        byte[] record(byte kind) {
+            int length = size - RECORD_HEADER_SIZE;
+            if (length > MAX_BODY) {
+                throw new IllegalArgumentException("Booking record too long: " + length + " bytes");
+            }
+            bytes[0] = kind;
+            bytes[1] = RECORD_VERSION;
+            bytes[2] = (byte) (length >>> 8);
+            bytes[3] = (byte) length;
+            return Arrays.copyOf(bytes, size);
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+            }
+        }
+    }
+
+    /*
+     * The string <-> ID table of one bookings file. intern() hands a new value
+     * to the writer, which must make its entry durable, before the ID is
+     * published to anyone else. Lookups by ID do not lock.
+     */
+    static final class Dictionary {
+        interface Writer {
+            void write(byte[] entry) throws IOException;
+        }
+
+        // Concurrent appenders can only land entries a little out of order
+        private static final int MAX_OUT_OF_ORDER = 1 << 16;
+
+        private final Map<String, Integer> ids = new ConcurrentHashMap<>();
+        private volatile String[] values = new String[256];
+        private volatile int size;
+        private Writer writer;
+
+        // Entries are passed to the writer from here on; until then intern() only records them
+        synchronized void writeTo(Writer writer) {
+            this.writer = writer;
+        }
+
+        int intern(String value) throws IOException {
+            Integer id = ids.get(value);
+            return id != null ? id : add(value);
+        }
+
+        private synchronized int add(String value) throws IOException {
+            Integer id = ids.get(value);
+            if (id != null) {
+                return id;
+            }
+            int next = size;
+            if (writer != null) {
+                writer.write(encodeDictionaryEntry(next, value));
+            }
+            define(next, value);
+            return next;
+        }
+
+        String value(int id) throws IOException {
+            String[] current = values;
+            String value = id >= 0 && id < size && id < current.length ? current[id] : null;
+            if (value == null) {
+                throw new IOException("Booking record refers to unknown dictionary entry " + id);
+            }
+            return value;
+        }
+
+        // Adds an entry read back from the file, or just written
+        synchronized void define(int id, String value) {
+            if (id < 0 || id > size + MAX_OUT_OF_ORDER) {
+                throw new IllegalArgumentException("Dictionary ID out of range: " + id);
+            }
+            String[] current = values;
+            if (id >= current.length) {
+                current = Arrays.copyOf(current, Math.max(current.length * 2, id + 1));
+            }
+            if (current[id] != null && !current[id].equals(value)) {
+                // The ID was handed out again after a crash cut off its first entry; the later entry wins
+                ids.remove(current[id], id);
+            }
+            current[id] = value;
+            values = current;
+            ids.putIfAbsent(value, id);
+            size = Math.max(size, id + 1);
+        }
+
+        synchronized int size() {
+            return size;
+        }
+    }
+}
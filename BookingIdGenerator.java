@@ -0,0 +1,139 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Snowflake-style booking IDs: 41 bits of milliseconds since 2024-01-01 UTC,
+ * 10 bits of node ID and a 12 bit per-millisecond sequence. IDs from one node
+ * are strictly increasing, so the ID can be used directly as the primary key
+ * of a booking.
+ *
+ * Within one bookings file that holds whatever the node: only one process at
+ * a time has the file open (see BookingStore.lockFile) and it counts on from
+ * the highest ID already in the file. The node bits are what keep apart IDs
+ * that processes make at the same time for different files, so whenever the
+ * bookings of more than one writer can end up in one file, e.g. the output of
+ * a converter run next to the server, or several servers whose files are
+ * merged, each writer must be started with its own -Drailway.node (0-1023).
+ * Without it the node is 0.
+ *
+ * The printed form is "PKR-" plus 13 Crockford base32 digits. It is fixed width,
+ * so sorting the strings sorts the bookings by creation time.
+ */
+class BookingIdGenerator {
+    static final String PREFIX = "PKR-";
+
+    private static final long EPOCH = 1704067200000L; // 2024-01-01T00:00:00Z
+    private static final int NODE_BITS = 10;
+    private static final int SEQUENCE_BITS = 12;
+    private static final long MAX_NODE = (1L << NODE_BITS) - 1;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final int DIGITS = 13;
+    private static final char[] ALPHABET = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+    private static final byte[] DECODE = new byte[128];
+
+    static {
+        Arrays.fill(DECODE, (byte) -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            DECODE[ALPHABET[i]] = (byte) i;
+        }
+    }
+
+    private static final BookingIdGenerator SHARED = new BookingIdGenerator(configuredNode());
+
+    private final long node;
+    // (timestamp << SEQUENCE_BITS) | sequence of the last ID handed out
+    private final AtomicLong state = new AtomicLong();
+
+    BookingIdGenerator(long node) {
+        if (node < 0 || node > MAX_NODE) {
+            throw new IllegalArgumentException("Node ID must be between 0 and " + MAX_NODE + ": " + node);
+        }
+        this.node = node;
+    }
+
+    static BookingIdGenerator shared() {
+        return SHARED;
+    }
+
+    /*
+     * -Drailway.node, or 0. Nothing is derived from the process ID: two
+     * processes can share its low 10 bits, and IDs that only look unique are
+     * worse than a node that is plainly shared. A value that is not a number
+     * fails loudly rather than falling back to 0.
+     */
+    private static long configuredNode() {
+        String configured = System.getProperty("railway.node");
+        if (configured == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(configured.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("railway.node must be a number from 0 to " + MAX_NODE + ": "
+                    + configured);
+        }
+    }
+
+    long nextId() {
+        while (true) {
+            long previous = state.get();
+            long now = System.currentTimeMillis() - EPOCH;
+            // If the clock has not moved (or went backwards) keep counting from the last ID;
+            // a sequence overflow simply carries into the next millisecond
+            long candidate = now > (previous >>> SEQUENCE_BITS) ? now << SEQUENCE_BITS : previous + 1;
+            if (state.compareAndSet(previous, candidate)) {
+                long timestamp = candidate >>> SEQUENCE_BITS;
+                long sequence = candidate & SEQUENCE_MASK;
+                return (timestamp << (NODE_BITS + SEQUENCE_BITS)) | (node << SEQUENCE_BITS) | sequence;
+            }
+        }
+    }
+
+    String next() {
+        return format(nextId());
+    }
+
+    // Makes sure nothing at or below an ID already on disk is handed out again
+    void observe(long id) {
+        long seen = ((id >>> (NODE_BITS + SEQUENCE_BITS)) << SEQUENCE_BITS) | (id & SEQUENCE_MASK);
+        state.accumulateAndGet(seen, Math::max);
+    }
+
+    static String format(long id) {
+        char[] chars = new char[PREFIX.length() + DIGITS];
+        PREFIX.getChars(0, PREFIX.length(), chars, 0);
+        for (int i = chars.length - 1; i >= PREFIX.length(); i--) {
+            chars[i] = ALPHABET[(int) (id & 31)];
+            id >>>= 5;
+        }
+        return new String(chars);
+    }
+
+    // Returns the numeric ID, or -1 for anything that is not a generated ID (such as old "PKR-12345" IDs)
+    static long parse(String bookingId) {
+        if (bookingId.length() != PREFIX.length() + DIGITS || !bookingId.startsWith(PREFIX)) {
+            return -1;
+        }
+        long id = 0;
+        for (int i = PREFIX.length(); i < bookingId.length(); i++) {
+            int digit = digitOf(bookingId.charAt(i));
+            if (digit < 0) {
+                return -1;
+            }
+            id = (id << 5) | digit;
+        }
+        return id;
+    }
+
+    static long timestampOf(long id) {
+        return (id >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+    }
+
+    static long nodeOf(long id) {
+        return (id >>> SEQUENCE_BITS) & MAX_NODE;
+    }
+
+    private static int digitOf(char c) {
+        return c < DECODE.length ? DECODE[c] : -1;
+    }
+}
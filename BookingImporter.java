@@ -0,0 +1,162 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Bulk import of bookings made elsewhere, e.g. by a travel agent, from CSV
+ * with a header row naming the columns
+ *
+ *   user, train, from, to, date, passenger, gender, seatClass, payment
+ *
+ * in any order. Each row is one passenger and gets a seat of its own; rows are
+ * not a party, so a sold-out row does not hold up the others. Rows are booked
+ * CHUNK at a time through BookingService.bookAll, i.e. one journal write, one
+ * flush and one index write per chunk rather than per row.
+ *
+ * Every chunk is committed as it goes. An error that stops the import (an
+ * unreadable file, a failed write) leaves the chunks before it booked; rows
+ * that are wrong or sold out are only counted and reported.
+ *
+ *   java BookingImporter <csv file>
+ *
+ * opens the bookings file itself, so it refuses to run while the desktop app
+ * or the HTTP server has the file open; send the CSV to the running server's
+ * POST /api/bookings/import instead.
+ */
+final class BookingImporter {
+    static final int CHUNK = 4096;
+    private static final int REPORTED_ROWS = 10;
+    private static final String[] COLUMNS = {
+            "user", "train", "from", "to", "date", "passenger", "gender", "seatClass", "payment"
+    };
+
+    // 'problems' describes the first few rejected or sold-out rows, with their line numbers
+    record Result(long imported, long soldOut, long rejected, List<String> problems) {
+    }
+
+    private BookingImporter() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java BookingImporter <csv file>");
+            return;
+        }
+        Path source = Paths.get(args[0]);
+        if (!Files.exists(source)) {
+            System.err.println(source + " does not exist");
+            return;
+        }
+        BookingFileConverter.migrate(Paths.get(PakistanRailwaySystem.LEGACY_BOOKINGS_FILE),
+                Paths.get(PakistanRailwaySystem.BOOKINGS_FILE));
+        BookingService service = BookingService.open(Timetable.configured(),
+                Paths.get(PakistanRailwaySystem.BOOKINGS_FILE));
+        long started = System.nanoTime();
+        Result result;
+        try (TimetableFiles.CsvReader csv = TimetableFiles.CsvReader.open(source)) {
+            result = importFrom(service, csv);
+        } finally {
+            service.close();
+        }
+        long millis = Math.max(1, (System.nanoTime() - started) / 1_000_000);
+        System.out.printf("Imported %d bookings in %d ms (%d/s); %d sold out, %d rejected%n",
+                result.imported(), millis, result.imported() * 1000 / millis, result.soldOut(), result.rejected());
+        for (String problem : result.problems()) {
+            System.out.println("  " + problem);
+        }
+    }
+
+    // Throws an IllegalArgumentException, booking nothing, if a column is missing
+    static Result importFrom(BookingService service, TimetableFiles.CsvReader csv) throws IOException {
+        int[] columns = new int[COLUMNS.length];
+        for (int i = 0; i < COLUMNS.length; i++) {
+            columns[i] = csv.optionalColumn(COLUMNS[i].toLowerCase());
+            if (columns[i] < 0) {
+                throw new IllegalArgumentException("The import has no " + COLUMNS[i] + " column");
+            }
+        }
+        Counts counts = new Counts();
+        List<BookingService.BookingRequest> chunk = new ArrayList<>(CHUNK);
+        List<String> lines = new ArrayList<>(CHUNK); // where() of each row in the chunk
+        String[] row;
+        while ((row = csv.next()) != null) {
+            try {
+                BookingService.BookingRequest request = request(service, row, columns);
+                service.checkRequest(request);
+                chunk.add(request);
+                lines.add(csv.where());
+            } catch (IllegalArgumentException e) {
+                counts.rejected++;
+                counts.report(csv.where() + e.getMessage());
+            }
+            if (chunk.size() == CHUNK) {
+                book(service, chunk, lines, counts);
+            }
+        }
+        book(service, chunk, lines, counts);
+        return new Result(counts.imported, counts.soldOut, counts.rejected, counts.problems);
+    }
+
+    private static void book(BookingService service, List<BookingService.BookingRequest> chunk, List<String> lines,
+            Counts counts) throws IOException {
+        if (chunk.isEmpty()) {
+            return;
+        }
+        Booking[] booked = service.bookAll(chunk);
+        for (int i = 0; i < booked.length; i++) {
+            if (booked[i] != null) {
+                counts.imported++;
+            } else {
+                counts.soldOut++;
+                counts.report(lines.get(i) + chunk.get(i).passenger().seatClass() + " class is sold out");
+            }
+        }
+        chunk.clear();
+        lines.clear();
+    }
+
+    private static BookingService.BookingRequest request(BookingService service, String[] row, int[] columns) {
+        String[] values = new String[COLUMNS.length];
+        for (int i = 0; i < COLUMNS.length; i++) {
+            values[i] = TimetableFiles.CsvReader.field(row, columns[i]);
+            if (values[i].isEmpty()) {
+                throw new IllegalArgumentException("Missing '" + COLUMNS[i] + "'");
+            }
+            for (int c = 0; c < values[i].length(); c++) {
+                if (Character.isISOControl(values[i].charAt(c))) {
+                    throw new IllegalArgumentException("'" + COLUMNS[i] + "' may not contain control characters");
+                }
+            }
+        }
+        Train train = service.train(values[1]);
+        if (train == null) {
+            throw new IllegalArgumentException("Unknown train '" + values[1] + "'");
+        }
+        try {
+            LocalDate.parse(values[4], AvailabilityService.DATE_FORMAT);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Date must be dd/MM/yyyy");
+        }
+        String seatClass = SeatClass.fromLabel(values[7]).label;
+        return new BookingService.BookingRequest(values[0], train, values[2], values[3], values[4],
+                new BookingService.Passenger(values[5], values[6], seatClass), values[8]);
+    }
+
+    private static final class Counts {
+        long imported;
+        long soldOut;
+        long rejected;
+        final List<String> problems = new ArrayList<>();
+
+        void report(String problem) {
+            if (problems.size() < REPORTED_ROWS) {
+                problems.add(problem);
+            }
+        }
+    }
+}
@@ -0,0 +1,513 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+
+/*
+ * Indexes over the bookings file: user name to the offsets of that user's
+ * records, so "My Bookings" only has to touch its own rows, and booking ID to
+ * offset as the primary key. Generated IDs go into a primitive hash map; old
+ * "PKR-12345" style IDs fall back to a HashMap. Both are persisted next to the
+ * data file as a log of (user, booking ID, offset) entries.
+ *
+ * Dictionary records are not indexed; the index only points at bookings and
+ * tombstones, and decodes them through the store's dictionary.
+ *
+ * The index file is never fsynced: if it is missing, torn, behind the data
+ * file or written for a different data file, load() catches up by scanning
+ * only the part of the data file it has not seen. Appends index their records
+ * concurrently, so after a crash the file can hold an entry for a record while
+ * missing one for an earlier record. Entries are therefore trusted only up to
+ * the last mark, written with no append in flight (every MARK_STRIDE entries,
+ * after a catch-up or rebuild, and on close) to say that every record before
+ * a data file offset is indexed; catching up starts from there.
+ *
+ * The store's dictionary is kept next to it in the same way, as a log of
+ * (data file offset, dictionary record) entries, each written after its
+ * record is in the data file, plus a marker of how far the data file went
+ * whenever the store closes. Opening reads the dictionary from there, so the
+ * store only has to scan the data file from where that log leaves off.
+ */
+class BookingIndex {
+    private static final int MAGIC = 0x504B4934; // "PKI4"
+    private static final int DICTIONARY_MAGIC = 0x504B4431; // "PKD1"
+    private static final int PROGRESS_STRIDE = 255; // report every 256 records
+    private static final int MARK = 0xFFFF; // in place of a user name's length: a mark, then its data file offset
+    private static final int MARK_STRIDE = 4096;
+
+    private final Path dataPath;
+    private final Path indexPath;
+    private final Path dictionaryPath;
+    private final BookingFormat.Dictionary dictionary;
+    private Tables tables = new Tables();
+    private FileChannel indexChannel;
+    private FileChannel dictionaryChannel;
+    private long indexedUpTo;
+    private long dictionaryUpTo;
+    private long entriesSinceMark;
+    private boolean entryLost; // an entry write failed, so no later mark may vouch for it
+
+    private BookingIndex(Path dataPath, BookingFormat.Dictionary dictionary) {
+        this.dataPath = dataPath;
+        this.indexPath = indexPathFor(dataPath);
+        this.dictionaryPath = dictionaryPathFor(dataPath);
+        this.dictionary = dictionary;
+    }
+
+    // Reads the saved dictionary; the entries themselves are read by load(), once the data file is recovered
+    static BookingIndex open(Path dataPath, BookingFormat.Dictionary dictionary) throws IOException {
+        BookingIndex index = new BookingIndex(dataPath, dictionary);
+        index.loadDictionary();
+        return index;
+    }
+
+    static Path indexPathFor(Path dataPath) {
+        return dataPath.resolveSibling(dataPath.getFileName() + ".idx");
+    }
+
+    static Path dictionaryPathFor(Path dataPath) {
+        return dataPath.resolveSibling(dataPath.getFileName() + ".dict");
+    }
+
+    // Every dictionary record in the data file before this offset is in the saved dictionary
+    synchronized long dictionaryUpTo() {
+        return dictionaryUpTo;
+    }
+
+    // Saves a dictionary record once it is in the data file at 'offset'
+    synchronized void addDictionaryEntry(long offset, byte[] record) throws IOException {
+        writeDictionaryEntry(dictionaryChannel, offset, record);
+        dictionaryUpTo = offset + record.length;
+    }
+
+    // Notes that the saved dictionary holds every dictionary record up to dataEnd
+    synchronized void markDictionary(long dataEnd) throws IOException {
+        writeDictionaryEntry(dictionaryChannel, dataEnd, new byte[0]);
+        dictionaryUpTo = dataEnd;
+    }
+
+    synchronized void add(String user, String bookingId, long offset) throws IOException {
+        tables.add(user, bookingId, offset);
+        entriesSinceMark++;
+        try {
+            writeEntry(indexChannel, user, bookingId, offset);
+        } catch (IOException | RuntimeException e) {
+            entryLost = true;
+            throw e;
+        }
+    }
+
+    // Indexes a group of records with one write to the index file
+    synchronized void addAll(String[] users, String[] bookingIds, long[] offsets) throws IOException {
+        ByteBuffer entries = ByteBuffer.allocate(64 * offsets.length);
+        for (int i = 0; i < offsets.length; i++) {
+            tables.add(users[i], bookingIds[i], offsets[i]);
+            byte[] name = users[i].getBytes(StandardCharsets.UTF_8);
+            byte[] id = bookingIds[i].getBytes(StandardCharsets.UTF_8);
+            int size = 2 + name.length + 2 + id.length + 8;
+            if (entries.remaining() < size) {
+                entries = ByteBuffer.allocate(Math.max(entries.capacity() * 2, entries.position() + size))
+                        .put(entries.flip());
+            }
+            entries.putShort((short) name.length).put(name).putShort((short) id.length).put(id).putLong(offsets[i]);
+        }
+        entries.flip();
+        entriesSinceMark += offsets.length;
+        try {
+            while (entries.hasRemaining()) {
+                indexChannel.write(entries);
+            }
+        } catch (IOException | RuntimeException e) {
+            entryLost = true;
+            throw e;
+        }
+    }
+
+    // Whether enough entries have gone in since the last mark for the next one to be worth writing
+    synchronized boolean markDue() {
+        return !entryLost && entriesSinceMark >= MARK_STRIDE;
+    }
+
+    // Notes that every record before dataEnd is indexed; only with no append in flight
+    synchronized void mark(long dataEnd) throws IOException {
+        if (entryLost) {
+            return;
+        }
+        try {
+            writeMark(indexChannel, dataEnd);
+        } catch (IOException | RuntimeException e) {
+            entryLost = true; // a torn mark; entries after it would be read out of step
+            throw e;
+        }
+        entriesSinceMark = 0;
+    }
+
+    synchronized long[] offsetsFor(String user) {
+        OffsetList list = tables.byUser.get(user);
+        return list == null ? new long[0] : list.toArray();
+    }
+
+    // Primary key lookup; -1 if no record with this booking ID has been indexed
+    synchronized long offsetOf(String bookingId) {
+        long id = BookingIdGenerator.parse(bookingId);
+        if (id > 0) {
+            return tables.generated.get(id, -1);
+        }
+        Long offset = tables.legacy.get(bookingId);
+        return offset == null ? -1 : offset;
+    }
+
+    synchronized long maxGeneratedId() {
+        return tables.maxGenerated;
+    }
+
+    synchronized long recordCount() {
+        return tables.records;
+    }
+
+    // Decodes only the given user's records, reading them from 'file', the store's view of the data file
+    List<String[]> readRecords(RecordFile file, String user, IoProgress progress) throws IOException {
+        long[] offsets = offsetsFor(user);
+        List<String[]> records = new ArrayList<>(offsets.length);
+        if (offsets.length == 0) {
+            return records;
+        }
+        for (int i = 0; i < offsets.length; i++) {
+            if ((i & PROGRESS_STRIDE) == 0) {
+                if (progress.isCancelled()) {
+                    throw new CancellationException("Read of " + dataPath + " cancelled");
+                }
+                progress.update(i, offsets.length);
+            }
+            String[] record = BookingFormat.read(file, offsets[i], dictionary);
+            if (record != null) {
+                records.add(record);
+            }
+        }
+        progress.update(offsets.length, offsets.length);
+        return records;
+    }
+
+    // Starts a fresh index for a data file that is still being written at tempData
+    Rebuild startRebuild(Path tempData) throws IOException {
+        return new Rebuild(tempData);
+    }
+
+    // Reads the index file and catches up with the data file, which must be recovered by now
+    synchronized void load() throws IOException {
+        indexChannel = FileChannel.open(indexPath,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long dataSize = Files.exists(dataPath) ? Files.size(dataPath) : 0;
+        String identity = identityOf(dataPath);
+
+        // 'good' only moves on at a mark; entries after the last one are dropped and indexed again
+        long good = 0;
+        long markedUpTo = BookingFormat.FILE_HEADER_SIZE;
+        List<Entry> unmarked = new ArrayList<>();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(indexChannel.position(0))))) {
+            if (in.readInt() != MAGIC || !in.readUTF().equals(identity)) {
+                throw new EOFException("Index belongs to another data file");
+            }
+            good = 4 + 2 + identity.getBytes(StandardCharsets.UTF_8).length;
+            long read = good;
+            while (true) {
+                int nameLength = in.readUnsignedShort();
+                if (nameLength == MARK) {
+                    long upTo = in.readLong();
+                    if (upTo < markedUpTo || upTo > dataSize) {
+                        break;
+                    }
+                    for (Entry entry : unmarked) {
+                        tables.add(entry.user(), entry.bookingId(), entry.offset());
+                    }
+                    unmarked.clear();
+                    markedUpTo = upTo;
+                    read += 2 + 8;
+                    good = read;
+                    continue;
+                }
+                byte[] name = new byte[nameLength];
+                in.readFully(name);
+                byte[] id = new byte[in.readUnsignedShort()];
+                in.readFully(id);
+                long offset = in.readLong();
+                if (offset < markedUpTo || offset >= dataSize) {
+                    break;
+                }
+                unmarked.add(new Entry(new String(name, StandardCharsets.UTF_8),
+                        new String(id, StandardCharsets.UTF_8), offset));
+                read += 2 + name.length + 2 + id.length + 8;
+            }
+        } catch (EOFException e) {
+            // Torn last entry or stale header; anything after 'good' is dropped below
+        }
+
+        indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        indexChannel.truncate(good);
+        indexChannel.position(good);
+        indexedUpTo = markedUpTo;
+        if (good == 0) {
+            tables = new Tables();
+            writeHeader(indexChannel, MAGIC, identity);
+        }
+        catchUp();
+    }
+
+    // Entries are trusted only while they follow on from each other and lie inside the data file
+    private synchronized void loadDictionary() throws IOException {
+        dictionaryChannel = FileChannel.open(dictionaryPath,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long dataSize = Files.size(dataPath);
+        String identity = identityOf(dataPath);
+
+        long good = 0;
+        long upTo = BookingFormat.FILE_HEADER_SIZE;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(dictionaryChannel.position(0))))) {
+            if (in.readInt() != DICTIONARY_MAGIC || !in.readUTF().equals(identity)) {
+                throw new EOFException("Dictionary belongs to another data file");
+            }
+            good = 4 + 2 + identity.getBytes(StandardCharsets.UTF_8).length;
+            while (true) {
+                long offset = in.readLong();
+                byte[] record = new byte[in.readUnsignedShort()];
+                in.readFully(record);
+                if (offset < upTo || offset + record.length > dataSize || !define(record)) {
+                    break;
+                }
+                upTo = offset + record.length;
+                good += 8 + 2 + record.length;
+            }
+        } catch (EOFException | UTFDataFormatException e) {
+            // Torn last entry or stale header; anything after 'good' is dropped below
+        }
+
+        dictionaryChannel = FileChannel.open(dictionaryPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        dictionaryChannel.truncate(good);
+        dictionaryChannel.position(good);
+        if (good == 0) {
+            writeHeader(dictionaryChannel, DICTIONARY_MAGIC, identity);
+        }
+        dictionaryUpTo = upTo;
+    }
+
+    // A marker, with no record, defines nothing
+    private boolean define(byte[] record) {
+        if (record.length == 0) {
+            return true;
+        }
+        try {
+            BookingFormat.decodeDictionaryRecord(record, dictionary);
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    // Indexes complete records that were appended after the last mark, and marks the end of them
+    private void catchUp() throws IOException {
+        if (!Files.exists(dataPath)) {
+            return;
+        }
+        try (MappedFile file = MappedFile.open(dataPath)) {
+            BookingFormat.Cursor cursor = new BookingFormat.Cursor(file, indexedUpTo, file.size());
+            while (cursor.next()) {
+                if (cursor.kind != BookingFormat.DICTIONARY) {
+                    String[] keys = BookingFormat.decode(cursor.kind, cursor.body(), dictionary, true);
+                    tables.add(keys[0], keys[1], cursor.start);
+                    writeEntry(indexChannel, keys[0], keys[1], cursor.start);
+                }
+            }
+            if (cursor.position > indexedUpTo) {
+                writeMark(indexChannel, cursor.position);
+            }
+            indexedUpTo = cursor.position;
+        }
+    }
+
+    // A rename keeps the file key, so a rebuilt index stays valid once its data file is moved in
+    private static String identityOf(Path dataPath) throws IOException {
+        if (!Files.exists(dataPath)) {
+            return "";
+        }
+        BasicFileAttributes attributes = Files.readAttributes(dataPath, BasicFileAttributes.class);
+        Object key = attributes.fileKey();
+        return key != null ? key.toString() : attributes.creationTime().toString();
+    }
+
+    private static void writeHeader(FileChannel channel, int magic, String identity) throws IOException {
+        byte[] id = identity.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer header = ByteBuffer.allocate(4 + 2 + id.length);
+        header.putInt(magic).putShort((short) id.length).put(id).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+    }
+
+    private static void writeEntry(FileChannel channel, String user, String bookingId, long offset)
+            throws IOException {
+        byte[] name = user.getBytes(StandardCharsets.UTF_8);
+        byte[] id = bookingId.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer entry = ByteBuffer.allocate(2 + name.length + 2 + id.length + 8);
+        entry.putShort((short) name.length).put(name).putShort((short) id.length).put(id).putLong(offset).flip();
+        while (entry.hasRemaining()) {
+            channel.write(entry);
+        }
+    }
+
+    private static void writeMark(FileChannel channel, long dataEnd) throws IOException {
+        ByteBuffer mark = ByteBuffer.allocate(2 + 8);
+        mark.putShort((short) MARK).putLong(dataEnd).flip();
+        while (mark.hasRemaining()) {
+            channel.write(mark);
+        }
+    }
+
+    private static void writeDictionaryEntry(FileChannel channel, long offset, byte[] record) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(8 + 2 + record.length);
+        entry.putLong(offset).putShort((short) record.length).put(record).flip();
+        while (entry.hasRemaining()) {
+            channel.write(entry);
+        }
+    }
+
+    // dataEnd is where the data file ended as it was closed
+    synchronized void close(long dataEnd) throws IOException {
+        try {
+            markDictionary(dataEnd);
+            mark(dataEnd);
+        } finally {
+            indexChannel.close();
+            dictionaryChannel.close();
+        }
+    }
+
+    /*
+     * Index for a data file being rewritten by compaction. Entries are added as
+     * records are copied, and dictionary records likewise; install() is called
+     * once the new data file has been renamed into place and swaps the index
+     * and dictionary files and the in-memory map.
+     */
+    class Rebuild {
+        private final Path tempIndex;
+        private final Path tempDictionary;
+        private final FileChannel channel;
+        private final FileChannel dictionaryOut;
+        private final Tables rebuilt = new Tables();
+
+        private Rebuild(Path tempData) throws IOException {
+            this.tempIndex = indexPath.resolveSibling(indexPath.getFileName() + ".tmp");
+            this.tempDictionary = dictionaryPath.resolveSibling(dictionaryPath.getFileName() + ".tmp");
+            String identity = identityOf(tempData);
+            this.channel = FileChannel.open(tempIndex, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            writeHeader(channel, MAGIC, identity);
+            this.dictionaryOut = FileChannel.open(tempDictionary, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            writeHeader(dictionaryOut, DICTIONARY_MAGIC, identity);
+        }
+
+        void add(String user, String bookingId, long offset) throws IOException {
+            rebuilt.add(user, bookingId, offset);
+            writeEntry(channel, user, bookingId, offset);
+        }
+
+        void addDictionaryEntry(long offset, byte[] record) throws IOException {
+            writeDictionaryEntry(dictionaryOut, offset, record);
+        }
+
+        void install(long dataSize) throws IOException {
+            channel.close();
+            dictionaryOut.close();
+            synchronized (BookingIndex.this) {
+                indexChannel.close();
+                dictionaryChannel.close();
+                Files.move(tempIndex, indexPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                Files.move(tempDictionary, dictionaryPath, StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                indexChannel = FileChannel.open(indexPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                indexChannel.position(indexChannel.size());
+                dictionaryChannel = FileChannel.open(dictionaryPath, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+                dictionaryChannel.position(dictionaryChannel.size());
+                tables = rebuilt;
+                indexedUpTo = dataSize;
+                entriesSinceMark = 0;
+                entryLost = false;
+                mark(dataSize);
+                markDictionary(dataSize);
+            }
+        }
+
+        void abandon() {
+            try {
+                channel.close();
+                dictionaryOut.close();
+                Files.deleteIfExists(tempIndex);
+                Files.deleteIfExists(tempDictionary);
+            } catch (IOException e) {
+                Metrics.logError("Could not remove " + tempIndex, e);
+            }
+        }
+    }
+
+    private record Entry(String user, String bookingId, long offset) {
+    }
+
+    // Tombstones are kept per user like any record, but never become a primary key
+    private static class Tables {
+        final Map<String, OffsetList> byUser = new HashMap<>();
+        final LongLongMap generated = new LongLongMap(1024);
+        final Map<String, Long> legacy = new HashMap<>();
+        long maxGenerated;
+        long records;
+
+        void add(String user, String bookingId, long offset) {
+            byUser.computeIfAbsent(user, u -> new OffsetList()).add(offset);
+            records++;
+            if (BookingStore.TOMBSTONE.equals(user)) {
+                return;
+            }
+            long id = BookingIdGenerator.parse(bookingId);
+            if (id > 0) {
+                generated.put(id, offset);
+                maxGenerated = Math.max(maxGenerated, id);
+            } else {
+                legacy.put(bookingId, offset);
+            }
+        }
+    }
+
+    private static class OffsetList {
+        private long[] offsets = new long[8];
+        private int size;
+
+        void add(long offset) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size * 2);
+            }
+            offsets[size++] = offset;
+        }
+
+        long[] toArray() {
+            return Arrays.copyOf(offsets, size);
+        }
+    }
+}
@@ -0,0 +1,244 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Append-only journal for the bookings file. Each record (see BookingFormat)
+ * is written through a single channel that stays open for the whole session.
+ *
+ * Group commit works leader/follower style: appenders copy their record into
+ * the pending buffer and wait. Whichever waiter finds no flush in progress
+ * becomes the leader, takes everything pending, writes and fsyncs it outside
+ * the lock and then wakes every appender that batch covered.
+ */
+class BookingJournal implements Closeable {
+    private static final int INITIAL_BUFFER = 64 * 1024;
+
+    private final Path path;
+    private final Durability durability;
+    private final long groupCommitNanos;
+    private FileChannel channel;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushed = lock.newCondition();
+
+    private ByteBuffer pending = ByteBuffer.allocate(INITIAL_BUFFER);
+    private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BUFFER);
+    private long end;          // logical end of file, including pending bytes
+    private long appendedSeq;  // last record handed to append()
+    private long durableSeq;   // last record written (and synced, per durability)
+    private boolean flushing;
+    private IOException failure;
+    private boolean closed;
+
+    // Counters so bookings/sec can be weighed against write latency
+    private long records;
+    private long batches;
+    private long syncs;
+
+    BookingJournal(Path path, Durability durability, long groupCommitMicros) throws IOException {
+        this.path = path;
+        this.durability = durability;
+        this.groupCommitNanos = TimeUnit.MICROSECONDS.toNanos(groupCommitMicros);
+        this.channel = FileChannel.open(path,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        this.end = channel.size();
+        channel.position(end);
+    }
+
+    Path getPath() {
+        return path;
+    }
+
+    Durability getDurability() {
+        return durability;
+    }
+
+    // Appends one encoded record and returns the file offset it starts at
+    long append(byte[] bytes) throws IOException {
+        long started = System.nanoTime();
+        lock.lock();
+        try {
+            ensureOpen();
+            long offset = end;
+            end += bytes.length;
+            records++;
+
+            if (durability == Durability.FSYNC_EACH) {
+                writeFully(ByteBuffer.wrap(bytes));
+                sync();
+                batches++;
+                syncs++;
+                return offset;
+            }
+
+            pending = ensureCapacity(pending, bytes.length);
+            pending.put(bytes);
+            long seq = ++appendedSeq;
+
+            while (durableSeq < seq) {
+                if (failure != null) {
+                    throw new IOException("Booking journal write failed", failure);
+                }
+                if (flushing) {
+                    flushed.awaitUninterruptibly();
+                } else {
+                    flushBatch();
+                }
+            }
+            return offset;
+        } finally {
+            lock.unlock();
+            Metrics.Timer.JOURNAL_APPEND.recordSince(started);
+        }
+    }
+
+    private void sync() throws IOException {
+        long started = System.nanoTime();
+        channel.force(false);
+        Metrics.Timer.JOURNAL_SYNC.recordSince(started);
+    }
+
+    // Called with the lock held; releases it around the actual I/O
+    private void flushBatch() {
+        flushing = true;
+        if (groupCommitNanos > 0 && durability == Durability.GROUP_COMMIT) {
+            // Give other confirms a moment to join this batch
+            lock.unlock();
+            try {
+                TimeUnit.NANOSECONDS.sleep(groupCommitNanos);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.lock();
+            }
+        }
+
+        ByteBuffer batch = pending;
+        pending = spare;
+        pending.clear();
+        long target = appendedSeq;
+        batch.flip();
+
+        lock.unlock();
+        IOException error = null;
+        boolean synced = false;
+        try {
+            writeFully(batch);
+            if (durability == Durability.GROUP_COMMIT) {
+                sync();
+                synced = true;
+            }
+        } catch (IOException e) {
+            error = e;
+        } finally {
+            lock.lock();
+        }
+
+        batch.clear();
+        spare = batch;
+        batches++;
+        if (synced) {
+            syncs++;
+        }
+        if (error != null) {
+            failure = error;
+        } else {
+            durableSeq = target;
+        }
+        flushing = false;
+        flushed.signalAll();
+    }
+
+    // Reopens the journal on whatever file is now at its path, e.g. after compaction
+    // renamed a rewritten file over it. Callers must make sure no append is in flight.
+    void reopen() throws IOException {
+        lock.lock();
+        try {
+            ensureOpen();
+            if (flushing || pending.position() > 0) {
+                throw new IllegalStateException("Cannot reopen the journal with appends in flight");
+            }
+            channel.close();
+            channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.READ);
+            end = channel.size();
+            channel.position(end);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buffer, int extra) {
+        if (buffer.remaining() >= extra) {
+            return buffer;
+        }
+        int size = Math.max(buffer.capacity() * 2, buffer.position() + extra);
+        ByteBuffer bigger = ByteBuffer.allocate(size);
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Booking journal is closed");
+        }
+    }
+
+    long size() {
+        lock.lock();
+        try {
+            return end;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    String stats() {
+        lock.lock();
+        try {
+            return String.format("records=%d batches=%d fsyncs=%d avgBatch=%.2f",
+                    records, batches, syncs, batches == 0 ? 0.0 : (double) records / batches);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            while (flushing) {
+                flushed.awaitUninterruptibly();
+            }
+            closed = true;
+            pending.flip();
+            writeFully(pending);
+            pending.clear();
+            durableSeq = appendedSeq;
+            if (durability != Durability.OS_BUFFERED) {
+                channel.force(false);
+            }
+            channel.close();
+            flushed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,719 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.time.format.TextStyle;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+ * The booking core, with no Swing in it. Searching, booking and cancelling go
+ * through one shared instance, and the state of each client's flow lives in
+ * its own BookingSession, so any number of counters or agents can work in
+ * parallel inside one process. The Swing pages are one such client.
+ *
+ * Everything shared is either immutable after construction (timetable, route
+ * index, journey planner), lock-free (seat inventory, session registry,
+ * analytics, running delays) or guards itself (booking store, distance service). Fare tables
+ * are replaced as a whole when a track changes.
+ *
+ * Search answers and calendar months are cached in bounded LRU caches
+ * (railway.cache.searches and railway.cache.months entries). Every seat,
+ * delay or fare change is recorded in ServiceVersions, which is how a cached
+ * answer knows it no longer holds.
+ *
+ * A party (bookGroup) or a chunk of a bulk import (bookAll) is written as one
+ * group record: one journal write and one flush however many passengers.
+ *
+ * A held seat that is given back for any reason, a cancellation or a failed
+ * write or a party that did not fit, goes through the waitlist first, so a
+ * waiting passenger always gets it before a new booker can.
+ */
+class BookingService {
+    private final Timetable timetable;
+    private final BookingStore store;
+    private final SeatInventory seats = new SeatInventory();
+    private final RouteIndex routeIndex;
+    private final JourneyPlanner journeyPlanner;
+    private final DistanceService distanceService;
+    private final AvailabilityService availability;
+    private final BookingAnalytics analytics;
+    private final Waitlist waitlist = new Waitlist(seats);
+    private final LiveDelays delays = new LiveDelays();
+    private final ServiceVersions changes = new ServiceVersions();
+    private final SearchCache<SearchKey, SearchResult> searches =
+            new SearchCache<>(Integer.getInteger("railway.cache.searches", 4096));
+    private volatile FareEngine fareEngine;
+    private final Map<String, BookingSession> sessions = new ConcurrentHashMap<>();
+
+    BookingService(Timetable timetable, BookingStore store) throws IOException {
+        this.timetable = timetable;
+        this.store = store;
+        routeIndex = RouteIndex.build(timetable.stations.values(), timetable.trains.values());
+        journeyPlanner = JourneyPlanner.build(timetable.stations.values(), timetable.trains.values());
+        distanceService = DistanceService.build(timetable.stations.values());
+        fareEngine = FareEngine.build(timetable.trains.values(), distanceService);
+        availability = new AvailabilityService(routeIndex, seats, timetable.stations, changes,
+                Integer.getInteger("railway.cache.months", 512));
+        analytics = new BookingAnalytics(timetable);
+        loadSeatInventory();
+        analytics.rebuild(store);
+    }
+
+    // Opens the booking file with the journal and compaction settings from system properties
+    static BookingService open(Timetable timetable, Path bookingsFile) throws IOException {
+        Durability durability = Durability.fromProperty(System.getProperty("railway.journal.durability"));
+        long groupCommitMicros = Long.getLong("railway.journal.groupCommitMicros", 0L);
+        double compactionThreshold = Double.parseDouble(
+                System.getProperty("railway.compaction.threshold", "0.5"));
+        long compactionMinDead = Long.getLong("railway.compaction.minDead", 100L);
+        BookingStore store = new BookingStore(bookingsFile, durability, groupCommitMicros,
+                compactionThreshold, compactionMinDead);
+        try {
+            return new BookingService(timetable, store);
+        } catch (IOException | RuntimeException e) {
+            store.close();
+            throw e;
+        }
+    }
+
+    // Throws an IllegalArgumentException for a user name the bookings file keeps for itself
+    BookingSession openSession(String user) {
+        checkUser(user);
+        BookingSession session = new BookingSession(UUID.randomUUID().toString(), user);
+        sessions.put(session.id, session);
+        return session;
+    }
+
+    // The open session with this ID, or null
+    BookingSession session(String id) {
+        return sessions.get(id);
+    }
+
+    void closeSession(BookingSession session) {
+        sessions.remove(session.id);
+    }
+
+    Station station(String name) {
+        return timetable.stations.get(name);
+    }
+
+    Train train(String id) {
+        return timetable.trains.get(id);
+    }
+
+    Collection<String> stationNames() {
+        return timetable.stations.keySet();
+    }
+
+    Collection<Train> trains() {
+        return timetable.trains.values();
+    }
+
+    // Direct trains that call at 'from' and then at 'to', ordered by train ID
+    RouteIndex.RouteEntry[] search(String from, String to) {
+        long started = System.nanoTime();
+        try {
+            return routeIndex.find(station(from), station(to));
+        } finally {
+            Metrics.Timer.SEARCH.recordSince(started);
+        }
+    }
+
+    record SearchKey(String from, String to, String date, SeatClass seatClass) {
+    }
+
+    /*
+     * Direct trains from 'from' to 'to' with their expected times, fares in
+     * 'seatClass' and, given a date, the seats left on it; a train that does
+     * not run on the date is left out. Answered from the cache unless one of
+     * the trains has changed on that date since.
+     */
+    SearchResult search(String from, String to, String date, SeatClass seatClass) {
+        long started = System.nanoTime();
+        try {
+            return searches.get(new SearchKey(from, to, date, seatClass), result -> result.isCurrent(changes),
+                    key -> new SearchResult(runningOn(routeIndex.find(station(from), station(to)), date), from,
+                            to, date, seatClass, delays, fareEngine, seats, changes));
+        } finally {
+            Metrics.Timer.SEARCH.recordSince(started);
+        }
+    }
+
+    // Hit, miss and eviction counts of the search and calendar caches, by name
+    Map<String, SearchCache.Stats> cacheStats() {
+        Map<String, SearchCache.Stats> stats = new LinkedHashMap<>();
+        stats.put("search", searches.stats());
+        stats.put("calendar", availability.cacheStats());
+        return stats;
+    }
+
+    // Itineraries leaving after departAfter on the date, or on any day when it is null
+    List<JourneyPlanner.Itinerary> connections(String from, String to, String date, int departAfter,
+            int maxTransfers) {
+        long started = System.nanoTime();
+        try {
+            return journeyPlanner.plan(station(from), station(to), date == null ? null : day(date), departAfter,
+                    maxTransfers);
+        } finally {
+            Metrics.Timer.JOURNEY_PLAN.recordSince(started);
+        }
+    }
+
+    boolean hasDirectService(String from, String to) {
+        return routeIndex.hasService(station(from), station(to));
+    }
+
+    // Shortest rail distance in km, or -1 if the stations are not connected
+    int distance(String from, String to) {
+        return distanceService.distance(station(from), station(to));
+    }
+
+    // Fare in rupees for this train between the two stations, or -1 if it does not run that way or has no fare
+    int fare(Train train, String from, String to, String seatType) {
+        return fare(train, SeatClass.fromLabel(seatType), train.stopIndex(station(from)),
+                train.stopIndex(station(to)));
+    }
+
+    int fare(Train train, SeatClass seatClass, int fromStop, int toStop) {
+        long started = System.nanoTime();
+        try {
+            return fareEngine.fare(train, seatClass, fromStop, toStop);
+        } finally {
+            Metrics.Timer.FARE_LOOKUP.recordSince(started);
+        }
+    }
+
+    AvailabilityService availability() {
+        return availability;
+    }
+
+    BookingAnalytics analytics() {
+        return analytics;
+    }
+
+    /*
+     * Records that the train reached 'station' 'minutes' late on that date and
+     * carries the delay to its later stops. Returns false if the report is
+     * older than one already recorded for a later stop of the same run; throws
+     * IllegalArgumentException for a run that has not started or is over.
+     */
+    boolean reportDelay(Train train, String date, String station, int minutes) {
+        int stop = train.stopIndex(station(station));
+        if (stop < 0) {
+            throw new IllegalArgumentException(train.id + " does not call at " + station);
+        }
+        boolean applied = delays.report(train, date, stop, minutes);
+        if (applied) {
+            changes.delayed(train, date);
+            Metrics.Counter.DELAY_REPORTS.increment();
+        }
+        return applied;
+    }
+
+    // Running delays of the train on that date, or null if it is running to the timetable as far as we know
+    LiveDelays.Status delay(Train train, String date) {
+        return delays.status(train, date);
+    }
+
+    // The station where the itinerary's change of train is at risk from running delays, or null
+    Station transferAtRisk(JourneyPlanner.Itinerary itinerary, String date) {
+        return delays.transferAtRisk(itinerary, date);
+    }
+
+    // Recomputes the analytics from the whole bookings file, e.g. after restoring a backup
+    void rebuildAnalytics() throws IOException {
+        analytics.rebuild(store);
+    }
+
+    // Track changes go through the distance service so its table stays current
+    synchronized void addTrack(Track track) {
+        distanceService.addTrack(track);
+        fareEngine = FareEngine.build(timetable.trains.values(), distanceService);
+        changes.faresChanged();
+    }
+
+    synchronized void removeTrack(Track track) {
+        distanceService.removeTrack(track);
+        fareEngine = FareEngine.build(timetable.trains.values(), distanceService);
+        changes.faresChanged();
+    }
+
+    /*
+     * Holds a seat and writes the booking to the journal. Returns null if the
+     * class is sold out on these legs. If the write fails the seat is given back
+     * and the IOException is passed on. Does file I/O, so keep it off the EDT.
+     */
+    Booking book(BookingSession session, Train train, String from, String to, String date,
+            String passengerName, String gender, String seatType, String paymentInfo) throws IOException {
+        long started = System.nanoTime();
+        try {
+            return commit(session, train, from, to, date, passengerName, gender, seatType, paymentInfo);
+        } finally {
+            Metrics.Timer.BOOKING_COMMIT.recordSince(started);
+        }
+    }
+
+    private Booking commit(BookingSession session, Train train, String from, String to, String date,
+            String passengerName, String gender, String seatType, String paymentInfo) throws IOException {
+        int fromStop = train.stopIndex(station(from));
+        int toStop = train.stopIndex(station(to));
+        if (fromStop < 0 || toStop <= fromStop) {
+            throw new IllegalArgumentException(train.id + " does not run from " + from + " to " + to);
+        }
+        checkRunsOn(train, date);
+        checkedFare(train, SeatClass.fromLabel(seatType), fromStop, toStop);
+        int seatNumber = seats.reserve(train, date, seatType, fromStop, toStop);
+        if (seatNumber < 0) {
+            Metrics.Counter.SOLD_OUT.increment();
+            return null;
+        }
+
+        Booking booking = write(session.user, train, from, to, fromStop, toStop, date, passengerName, gender,
+                seatType, paymentInfo, seatNumber);
+        session.addBooking(booking);
+        return booking;
+    }
+
+    // Writes a booking whose seat is already held; the seat is given back if the write fails
+    private Booking write(String user, Train train, String from, String to, int fromStop, int toStop, String date,
+            String passengerName, String gender, String seatType, String paymentInfo, int seatNumber)
+            throws IOException {
+        try {
+            return record(user, train, from, to, fromStop, toStop, date, passengerName, gender, seatType,
+                    paymentInfo, seatNumber);
+        } catch (IOException | RuntimeException e) {
+            giveBack(train, date, seatType, seatNumber, fromStop, toStop);
+            throw e;
+        }
+    }
+
+    // Writes a booking whose seat is already held, and leaves the seat held if the write fails
+    private Booking record(String user, Train train, String from, String to, int fromStop, int toStop, String date,
+            String passengerName, String gender, String seatType, String paymentInfo, int seatNumber)
+            throws IOException {
+        changes.seatsChanged(train, date); // the seat is held already, so cached answers without it are stale
+        Booking booking = new Booking(train, from, to, date, passengerName, gender, seatType, paymentInfo,
+                checkedFare(train, SeatClass.fromLabel(seatType), fromStop, toStop));
+        booking.seatNumber = seatNumber;
+        String[] record = toRecord(user, booking);
+        BookingStore.Appended appended = store.append(record);
+        analytics.booked(record, appended.generation(), appended.offsets()[0]);
+        Metrics.Counter.BOOKINGS.increment();
+        return booking;
+    }
+
+    record Passenger(String name, String gender, String seatClass) {
+    }
+
+    // One row of a bulk import: a passenger travelling on their own
+    record BookingRequest(String user, Train train, String from, String to, String date, Passenger passenger,
+            String paymentInfo) {
+    }
+
+    /*
+     * Books a party on one train and date, all or nothing: every passenger
+     * gets a seat in their class or nobody does. Fares are worked out once per
+     * class and the bookings go to the journal in one group write, so after a
+     * crash either the whole party is on file or none of it. Returns null if a
+     * class has too few seats left on these legs. If the write fails the seats
+     * are given back and the IOException is passed on.
+     */
+    List<Booking> bookGroup(BookingSession session, Train train, String from, String to, String date,
+            List<Passenger> passengers, String paymentInfo) throws IOException {
+        long started = System.nanoTime();
+        try {
+            return commitGroup(session, train, from, to, date, passengers, paymentInfo);
+        } finally {
+            Metrics.Timer.GROUP_COMMIT.recordSince(started);
+        }
+    }
+
+    private List<Booking> commitGroup(BookingSession session, Train train, String from, String to, String date,
+            List<Passenger> passengers, String paymentInfo) throws IOException {
+        if (passengers.isEmpty()) {
+            throw new IllegalArgumentException("A group booking needs at least one passenger");
+        }
+        int fromStop = train.stopIndex(station(from));
+        int toStop = train.stopIndex(station(to));
+        if (fromStop < 0 || toStop <= fromStop) {
+            throw new IllegalArgumentException(train.id + " does not run from " + from + " to " + to);
+        }
+        checkRunsOn(train, date);
+        Map<SeatClass, Integer> counts = new LinkedHashMap<>();
+        for (Passenger passenger : passengers) {
+            counts.merge(SeatClass.fromLabel(passenger.seatClass()), 1, Integer::sum);
+        }
+        Map<SeatClass, Integer> fares = new LinkedHashMap<>();
+        Map<SeatClass, Integer> next = new LinkedHashMap<>();
+        for (SeatClass seatClass : counts.keySet()) {
+            fares.put(seatClass, checkedFare(train, seatClass, fromStop, toStop));
+            next.put(seatClass, 0);
+        }
+        Map<SeatClass, int[]> reserved = new LinkedHashMap<>();
+        for (Map.Entry<SeatClass, Integer> count : counts.entrySet()) {
+            int[] seatNumbers = seats.reserveAll(train, date, count.getKey().label, fromStop, toStop,
+                    count.getValue());
+            reserved.put(count.getKey(), seatNumbers);
+            if (seatNumbers.length < count.getValue()) {
+                for (Map.Entry<SeatClass, int[]> held : reserved.entrySet()) {
+                    for (int seatNumber : held.getValue()) {
+                        giveBack(train, date, held.getKey().label, seatNumber, fromStop, toStop);
+                    }
+                }
+                Metrics.Counter.SOLD_OUT.increment();
+                return null;
+            }
+        }
+
+        List<Booking> bookings = new ArrayList<>(passengers.size());
+        String[] users = new String[passengers.size()];
+        for (Passenger passenger : passengers) {
+            SeatClass seatClass = SeatClass.fromLabel(passenger.seatClass());
+            Booking booking = new Booking(train, from, to, date, passenger.name(), passenger.gender(),
+                    seatClass.label, paymentInfo, fares.get(seatClass));
+            booking.seatNumber = reserved.get(seatClass)[next.merge(seatClass, 1, Integer::sum) - 1];
+            users[bookings.size()] = session.user;
+            bookings.add(booking);
+        }
+        writeAll(users, bookings);
+        for (Booking booking : bookings) {
+            session.addBooking(booking);
+        }
+        return bookings;
+    }
+
+    /*
+     * Books independent passengers, e.g. the rows of an agent's bulk import.
+     * Each request gets a seat or, if its class is sold out on its legs, a
+     * null in the returned array; the others are written in one group, as
+     * bookGroup does. Every request is checked before any seat is taken, and
+     * an IllegalArgumentException for the first bad one books nothing.
+     */
+    Booking[] bookAll(List<BookingRequest> requests) throws IOException {
+        long started = System.nanoTime();
+        try {
+            int[][] stops = new int[requests.size()][];
+            for (int i = 0; i < stops.length; i++) {
+                stops[i] = checkRequest(requests.get(i));
+            }
+            Booking[] results = new Booking[requests.size()];
+            List<Booking> bookings = new ArrayList<>(results.length);
+            String[] users = new String[results.length];
+            for (int i = 0; i < results.length; i++) {
+                BookingRequest request = requests.get(i);
+                Passenger passenger = request.passenger();
+                int seatNumber = seats.reserve(request.train(), request.date(), passenger.seatClass(),
+                        stops[i][0], stops[i][1]);
+                if (seatNumber < 0) {
+                    Metrics.Counter.SOLD_OUT.increment();
+                    continue;
+                }
+                Booking booking = new Booking(request.train(), request.from(), request.to(), request.date(),
+                        passenger.name(), passenger.gender(), passenger.seatClass(), request.paymentInfo(),
+                        checkedFare(request.train(), SeatClass.fromLabel(passenger.seatClass()), stops[i][0],
+                                stops[i][1]));
+                booking.seatNumber = seatNumber;
+                users[bookings.size()] = request.user();
+                bookings.add(booking);
+                results[i] = booking;
+            }
+            writeAll(Arrays.copyOf(users, bookings.size()), bookings);
+            return results;
+        } finally {
+            Metrics.Timer.GROUP_COMMIT.recordSince(started);
+        }
+    }
+
+    /*
+     * Throws an IllegalArgumentException saying what is wrong with the request,
+     * or returns its { fromStop, toStop }.
+     */
+    int[] checkRequest(BookingRequest request) {
+        checkUser(request.user());
+        if (request.train() == null) {
+            throw new IllegalArgumentException("Unknown train");
+        }
+        int fromStop = request.train().stopIndex(station(request.from()));
+        int toStop = request.train().stopIndex(station(request.to()));
+        if (fromStop < 0 || toStop <= fromStop) {
+            throw new IllegalArgumentException(request.train().id + " does not run from " + request.from()
+                    + " to " + request.to());
+        }
+        checkRunsOn(request.train(), request.date());
+        checkedFare(request.train(), SeatClass.fromLabel(request.passenger().seatClass()), fromStop, toStop);
+        return new int[] { fromStop, toStop };
+    }
+
+    // A trip over a leg with no track route has no fare and cannot be booked
+    private int checkedFare(Train train, SeatClass seatClass, int fromStop, int toStop) {
+        int fare = fare(train, seatClass, fromStop, toStop);
+        if (fare < 0) {
+            throw new IllegalArgumentException(train.id + " has no fare from " + train.stops[fromStop].name + " to "
+                    + train.stops[toStop].name + ": part of the way has no track");
+        }
+        return fare;
+    }
+
+    // The timetable's days of service hold for booking: no seats are sold on a run that does not exist
+    private static void checkRunsOn(Train train, String date) {
+        LocalDate day = day(date);
+        if (!train.runsOn(day)) {
+            throw new IllegalArgumentException(train.id + " does not run on "
+                    + day.getDayOfWeek().getDisplayName(TextStyle.FULL, Locale.ENGLISH) + "s");
+        }
+    }
+
+    private static LocalDate day(String date) {
+        try {
+            return LocalDate.parse(date, AvailabilityService.DATE_FORMAT);
+        } catch (DateTimeParseException | NullPointerException e) {
+            throw new IllegalArgumentException("Date must be dd/MM/yyyy");
+        }
+    }
+
+    // The routes whose train runs on the date, or all of them for a search without one
+    private static RouteIndex.RouteEntry[] runningOn(RouteIndex.RouteEntry[] routes, String date) {
+        if (date == null) {
+            return routes;
+        }
+        LocalDate day = day(date);
+        return Arrays.stream(routes).filter(route -> route.train.runsOn(day)).toArray(RouteIndex.RouteEntry[]::new);
+    }
+
+    private static void checkUser(String user) {
+        if (user == null || user.isBlank()) {
+            throw new IllegalArgumentException("Missing user");
+        }
+        if (BookingStore.isReservedUser(user)) {
+            throw new IllegalArgumentException("User names may not start with '" + BookingStore.RESERVED_PREFIX + "'");
+        }
+    }
+
+    // Writes bookings whose seats are already held as one group; the seats are given back if the write fails
+    private void writeAll(String[] users, List<Booking> bookings) throws IOException {
+        if (bookings.isEmpty()) {
+            return;
+        }
+        for (Booking booking : bookings) {
+            changes.seatsChanged(booking.train, booking.date);
+        }
+        List<String[]> records = new ArrayList<>(bookings.size());
+        for (int i = 0; i < users.length; i++) {
+            records.add(toRecord(users[i], bookings.get(i)));
+        }
+        BookingStore.Appended appended;
+        try {
+            appended = store.appendAll(records);
+        } catch (IOException | RuntimeException e) {
+            for (Booking booking : bookings) {
+                giveBack(booking.train, booking.date, booking.seatType, booking.seatNumber,
+                        booking.train.stopIndex(station(booking.from)), booking.train.stopIndex(station(booking.to)));
+            }
+            throw e;
+        }
+        long[] offsets = appended.offsets();
+        for (int i = 0; i < offsets.length; i++) {
+            analytics.booked(records.get(i), appended.generation(), offsets[i]);
+        }
+        Metrics.Counter.BOOKINGS.add(offsets.length);
+    }
+
+    /*
+     * Puts a passenger on the waitlist of a sold-out train, date and class.
+     * Lower priority numbers are served first. The entry's 'promoted' future
+     * completes with the booking once a cancellation frees a seat that fits;
+     * if one is already free, it is booked straight away and the future is
+     * complete on return.
+     */
+    Waitlist.Entry joinWaitlist(BookingSession session, Train train, String from, String to, String date,
+            String passengerName, String gender, String seatType, String paymentInfo, int priority)
+            throws IOException {
+        int fromStop = train.stopIndex(station(from));
+        int toStop = train.stopIndex(station(to));
+        if (fromStop < 0 || toStop <= fromStop) {
+            throw new IllegalArgumentException(train.id + " does not run from " + from + " to " + to);
+        }
+        checkRunsOn(train, date);
+        checkedFare(train, SeatClass.fromLabel(seatType), fromStop, toStop);
+        Waitlist.Entry entry = new Waitlist.Entry(session.user, train, from, to, fromStop, toStop, date,
+                passengerName, gender, seatType, paymentInfo, priority);
+        int seatNumber = waitlist.join(entry);
+        if (seatNumber > 0) {
+            entry.promoted.complete(write(entry.user, train, from, to, fromStop, toStop, date, passengerName,
+                    gender, seatType, paymentInfo, seatNumber));
+        } else {
+            Metrics.Counter.WAITLISTED.increment();
+        }
+        return entry;
+    }
+
+    boolean leaveWaitlist(Waitlist.Entry entry) {
+        boolean left = waitlist.leave(entry);
+        if (left) {
+            entry.promoted.cancel(false);
+        }
+        return left;
+    }
+
+    int waitlistLength(Train train, String date, String seatType) {
+        return waitlist.length(train, date, seatType);
+    }
+
+    // The session user's live bookings as records, in the order they were made
+    List<String[]> bookings(BookingSession session, IoProgress progress) throws IOException {
+        List<String[]> rows = new ArrayList<>();
+        for (String[] parts : store.readRecords(session.user, progress)) {
+            if (parts.length >= 12 && parts[0].equals(session.user)) {
+                rows.add(parts);
+            }
+        }
+        return rows;
+    }
+
+    // Where the session user's live bookings are; BookingTableModel decodes them page by page
+    BookingStore.Rows bookingRows(BookingSession session, IoProgress progress) throws IOException {
+        return store.liveRows(session.user, progress);
+    }
+
+    // Records at offsets from bookingRows, or null once a compaction has moved them
+    String[][] bookingsAt(BookingStore.Rows rows, long[] offsets) throws IOException {
+        return store.readAt(rows.generation, offsets);
+    }
+
+    // One of the session user's live bookings as a record, or null
+    String[] lookup(BookingSession session, String bookingId) throws IOException {
+        String[] parts = store.find(bookingId);
+        return parts != null && parts.length >= 12 && parts[0].equals(session.user) ? parts : null;
+    }
+
+    /*
+     * Appends a tombstone for exactly this ID; the compactor reclaims the space
+     * later. Returns false if the booking does not exist, is already cancelled
+     * or belongs to another user.
+     */
+    boolean cancel(BookingSession session, String bookingId) throws IOException {
+        long started = System.nanoTime();
+        try {
+            String[] parts = store.find(bookingId);
+            if (parts == null || !parts[0].equals(session.user) || !store.cancel(bookingId)) {
+                Metrics.Counter.CANCELS_REFUSED.increment();
+                return false;
+            }
+            int seatNumber = parts.length >= 13 ? Integer.parseInt(parts[12]) : -1;
+            List<Waitlist.Entry> promoted = releaseSeat(parts);
+            analytics.cancelled(parts);
+            Metrics.Counter.CANCELLATIONS.increment();
+            promoteAll(promoted, seatNumber);
+            return true;
+        } finally {
+            Metrics.Timer.CANCEL.recordSince(started);
+        }
+    }
+
+    void close() throws IOException {
+        store.close();
+    }
+
+    // Column order shared with the old text file; BookingFormat encodes it
+    static String[] toRecord(String user, Booking booking) {
+        return new String[] {
+                user,
+                booking.bookingId,
+                booking.train.id,
+                booking.train.name,
+                booking.from,
+                booking.to,
+                booking.date,
+                booking.passengerName,
+                booking.gender,
+                booking.seatType,
+                Integer.toString(booking.price),
+                booking.paymentInfo,
+                Integer.toString(booking.seatNumber) };
+    }
+
+    // Frees the cancelled booking's seat; returns the waiting passengers it went to in the same step
+    private List<Waitlist.Entry> releaseSeat(String[] parts) {
+        Train train = parts.length >= 13 ? train(parts[2]) : null;
+        if (train == null) {
+            return List.of();
+        }
+        int fromStop = train.stopIndex(station(parts[4]));
+        int toStop = train.stopIndex(station(parts[5]));
+        if (fromStop < 0 || toStop <= fromStop) {
+            return List.of();
+        }
+        List<Waitlist.Entry> promoted = waitlist.release(train, parts[6], parts[9], Integer.parseInt(parts[12]),
+                SeatInventory.legMask(fromStop, toStop));
+        changes.seatsChanged(train, parts[6]);
+        return promoted;
+    }
+
+    // Gives a held seat back through the waitlist, then books whoever it went to
+    private void giveBack(Train train, String date, String seatType, int seatNumber, int fromStop, int toStop) {
+        List<Waitlist.Entry> promoted = waitlist.release(train, date, seatType, seatNumber,
+                SeatInventory.legMask(fromStop, toStop));
+        changes.seatsChanged(train, date);
+        promoteAll(promoted, seatNumber);
+    }
+
+    /*
+     * Books waiting passengers who were given legs of this seat. The seat has
+     * already left whoever gave it up, so a failed write passes the legs on
+     * through the waitlist in turn and puts the passenger back in the queue,
+     * but only once this seat is settled, so they cannot be handed the legs
+     * their own write just failed on.
+     */
+    private void promoteAll(List<Waitlist.Entry> promoted, int seatNumber) {
+        Deque<Waitlist.Entry> pending = new ArrayDeque<>(promoted);
+        List<Waitlist.Entry> failed = new ArrayList<>();
+        while (!pending.isEmpty()) {
+            Waitlist.Entry entry = pending.poll();
+            try {
+                Booking booking = record(entry.user, entry.train, entry.from, entry.to, entry.fromStop,
+                        entry.toStop, entry.date, entry.passengerName, entry.gender, entry.seatClass,
+                        entry.paymentInfo, seatNumber);
+                Metrics.Counter.PROMOTIONS.increment();
+                entry.promoted.complete(booking);
+            } catch (IOException | RuntimeException e) {
+                Metrics.logError("Could not book waitlisted passenger " + entry.passengerName + " on "
+                        + entry.train.id, e);
+                failed.add(entry);
+                pending.addAll(waitlist.release(entry.train, entry.date, entry.seatClass, seatNumber, entry.legs));
+                changes.seatsChanged(entry.train, entry.date);
+            }
+        }
+        for (Waitlist.Entry entry : failed) {
+            waitlist.requeue(entry);
+        }
+    }
+
+    // Marks the seats of every live booking on disk as sold
+    private void loadSeatInventory() throws IOException {
+        store.forEachLive(parts -> {
+            Train train = parts.length >= 12 ? train(parts[2]) : null;
+            if (train == null) {
+                return;
+            }
+            int fromStop = train.stopIndex(station(parts[4]));
+            int toStop = train.stopIndex(station(parts[5]));
+            if (fromStop < 0 || toStop <= fromStop) {
+                return;
+            }
+            int seat = parts.length >= 13 ? Integer.parseInt(parts[12]) : -1;
+            if (seat < 0 || !seats.claim(train, parts[6], parts[9], seat, fromStop, toStop)) {
+                seats.reserve(train, parts[6], parts[9], fromStop, toStop);
+            }
+        });
+    }
+}
@@ -0,0 +1,35 @@
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+ * One client's booking flow: who is logged in, what they searched for and
+ * which train they picked. Each counter, agent or window gets its own session
+ * from BookingService, so flows never see each other's selections. The fields
+ * are volatile because a session's work may hop between the client thread and
+ * background I/O threads.
+ */
+final class BookingSession {
+    final String id;
+    final String user;
+
+    volatile String fromStation;
+    volatile String toStation;
+    volatile String travelDate;
+    volatile Train selectedTrain;
+
+    // Bookings made through this session since it was opened
+    private final List<Booking> bookings = new CopyOnWriteArrayList<>();
+
+    BookingSession(String id, String user) {
+        this.id = id;
+        this.user = user;
+    }
+
+    void addBooking(Booking booking) {
+        bookings.add(booking);
+    }
+
+    List<Booking> bookings() {
+        return bookings;
+    }
+}
@@ -0,0 +1,695 @@
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/*
+ * Ties the bookings journal and its user index together and owns cancellation.
+ * Records are kept in the binary BookingFormat; callers see them as String
+ * arrays in the BookingService.toRecord column order.
+ *
+ * Cancelling appends a tombstone record instead of rewriting the file, so its
+ * cost does not depend on the file size. Readers drop any record whose exact
+ * booking ID has a tombstone. Once the share of dead records passes the
+ * compaction threshold, a background thread copies the live records into a
+ * new file and renames it over the old one.
+ *
+ * Appends and reads hold the read lock; compaction takes the write lock only to
+ * copy the tail written while it ran and to swap the files.
+ *
+ * Lookups of a few records (find, readAt, a user's rows) read through one
+ * channel kept open per generation of the file, rather than mapping the file
+ * for each call; scans of the whole file still map it.
+ */
+class BookingStore {
+    static final String TOMBSTONE = "#cancelled";
+    // The index files tombstones under TOMBSTONE, so no real user may have a name like it
+    static final String RESERVED_PREFIX = "#";
+
+    private final Path dataPath;
+    private final FileChannel lockChannel;
+    private final BookingJournal journal;
+    private final BookingIndex index;
+    private volatile FileChannel reader; // reopened with each generation, or if an interrupted read closed it
+    private final BookingFormat.Dictionary dictionary = new BookingFormat.Dictionary();
+    private final double compactionThreshold;
+    private final long compactionMinDead;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Set<String> cancelled = ConcurrentHashMap.newKeySet();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private volatile boolean closing; // a compaction in progress gives up at the next record
+    private volatile long generation; // bumped each time compaction moves the records
+    private final ExecutorService compactor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "bookings-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    BookingStore(Path dataPath, Durability durability, long groupCommitMicros,
+            double compactionThreshold, long compactionMinDead) throws IOException {
+        this.dataPath = dataPath;
+        this.compactionThreshold = compactionThreshold;
+        this.compactionMinDead = compactionMinDead;
+        this.lockChannel = lockFile(dataPath);
+        try {
+            if (!Files.exists(dataPath) || Files.size(dataPath) == 0) {
+                createFile(dataPath);
+            }
+            this.index = BookingIndex.open(dataPath, dictionary);
+            recover(dataPath, dictionary, index);
+            this.journal = new BookingJournal(dataPath, durability, groupCommitMicros);
+            index.load();
+            reader = FileChannel.open(dataPath, StandardOpenOption.READ);
+            for (String[] tombstone : index.readRecords(view(), TOMBSTONE, IoProgress.NONE)) {
+                cancelled.add(tombstone[1]);
+            }
+        } catch (IOException | RuntimeException e) {
+            if (reader != null) {
+                reader.close();
+            }
+            lockChannel.close();
+            throw e;
+        }
+        BookingIdGenerator.shared().observe(index.maxGeneratedId());
+        // New dictionary values go through the journal like any record, and are durable before use;
+        // the saved dictionary only gets them after the journal, so it never has one the journal lacks
+        dictionary.writeTo(entry -> {
+            lock.readLock().lock();
+            try {
+                index.addDictionaryEntry(journal.append(entry), entry);
+            } finally {
+                lock.readLock().unlock();
+            }
+        });
+    }
+
+    static Path lockPathFor(Path dataPath) {
+        return dataPath.resolveSibling(dataPath.getFileName() + ".lock");
+    }
+
+    /*
+     * Only one store may have the bookings file open at a time: a second one
+     * would append over the first one's records and index. The lock is held on
+     * a file beside the data file, since compaction renames the data file, and
+     * goes away with the process if it dies.
+     */
+    private static FileChannel lockFile(Path dataPath) throws IOException {
+        FileChannel channel = FileChannel.open(lockPathFor(dataPath), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        try {
+            if (channel.tryLock() != null) {
+                return channel;
+            }
+        } catch (OverlappingFileLockException e) {
+            // Another store in this process has it open
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+        channel.close();
+        throw new IOException(dataPath + " is open in another program; while the railway server is running,"
+                + " import bookings through POST /api/bookings/import instead");
+    }
+
+    // The header goes in first, so the index and dictionary files can tell this file from others
+    private static void createFile(Path dataPath) throws IOException {
+        try (FileChannel channel = FileChannel.open(dataPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(BookingFormat.fileHeader()));
+            channel.force(true);
+        }
+    }
+
+    /*
+     * Checks the file header, reads the dictionary entries written after the
+     * saved dictionary leaves off and cuts off a record or group left
+     * half-written by a crash, so the next append starts on a record boundary,
+     * then marks an older file as the current version. Bad bytes that are not
+     * such a torn tail are left alone and the file is not opened, since cutting
+     * there would throw away every record after them.
+     */
+    private static void recover(Path dataPath, BookingFormat.Dictionary dictionary, BookingIndex index)
+            throws IOException {
+        long soundEnd;
+        long size;
+        int version;
+        try (MappedFile file = MappedFile.open(dataPath)) {
+            size = file.size();
+            byte[] header = new byte[(int) Math.min(size, BookingFormat.FILE_HEADER_SIZE)];
+            file.read(0, header, 0, header.length);
+            version = BookingFormat.fileVersion(header);
+            if (version < 0) {
+                throw new IOException(dataPath + " is not a binary bookings file; convert it with"
+                        + " \"java BookingFileConverter <old file> <new file>\"");
+            }
+            BookingFormat.Cursor cursor = new BookingFormat.Cursor(file, index.dictionaryUpTo(), size);
+            while (cursor.next()) {
+                if (cursor.kind == BookingFormat.DICTIONARY) {
+                    BookingFormat.decodeDictionaryEntry(cursor.body(), dictionary);
+                    index.addDictionaryEntry(cursor.start, cursor.raw());
+                }
+            }
+            soundEnd = cursor.position;
+            if (soundEnd < size && !BookingFormat.isTornTail(file, cursor.stopped, size)) {
+                throw new IOException(dataPath + " is damaged at byte " + cursor.stopped + " of " + size
+                        + "; it was not opened, so that the records after that point are not lost");
+            }
+        }
+        if (soundEnd < size) {
+            Metrics.logError("Dropping " + (size - soundEnd) + " unreadable bytes at the end of " + dataPath, null);
+            try (FileChannel channel = FileChannel.open(dataPath, StandardOpenOption.WRITE)) {
+                channel.truncate(soundEnd);
+                channel.force(true);
+            }
+        }
+        index.markDictionary(soundEnd);
+        if (version < BookingFormat.FILE_VERSION) {
+            // Every older file is also a valid file of the current version; only the header says otherwise
+            try (FileChannel channel = FileChannel.open(dataPath, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(BookingFormat.fileHeader()), 0);
+                channel.force(true);
+            }
+        }
+    }
+
+    static boolean isReservedUser(String user) {
+        return user.startsWith(RESERVED_PREFIX);
+    }
+
+    // Where appended records landed; read under the lock, so a compaction cannot come in between
+    record Appended(long generation, long[] offsets) {
+    }
+
+    // Appends a booking record (BookingService.toRecord column order) and returns where it went
+    Appended append(String[] record) throws IOException {
+        checkUser(record[0]);
+        byte[] bytes = BookingFormat.encodeBooking(record, dictionary);
+        lock.readLock().lock();
+        try {
+            long offset = journal.append(bytes);
+            index.add(record[0], record[1], offset);
+            return new Appended(generation, new long[] { offset });
+        } finally {
+            lock.readLock().unlock();
+            markIndexIfDue();
+        }
+    }
+
+    /*
+     * Appends the records as one group, in a single journal write: after a
+     * crash either all of them are in the file or none is. Returns their
+     * offsets in the same order.
+     */
+    Appended appendAll(List<String[]> records) throws IOException {
+        if (records.isEmpty()) {
+            return new Appended(generation, new long[0]);
+        }
+        byte[][] encoded = new byte[records.size()][];
+        int length = 0;
+        for (int i = 0; i < encoded.length; i++) {
+            checkUser(records.get(i)[0]);
+            encoded[i] = BookingFormat.encodeBooking(records.get(i), dictionary);
+            length += encoded[i].length;
+        }
+        ByteBuffer group = ByteBuffer.allocate(BookingFormat.GROUP_HEADER_SIZE + length);
+        group.put(BookingFormat.encodeGroup(length));
+        String[] users = new String[encoded.length];
+        String[] ids = new String[encoded.length];
+        long[] offsets = new long[encoded.length];
+        for (int i = 0; i < encoded.length; i++) {
+            offsets[i] = group.position(); // relative until the group's offset is known
+            users[i] = records.get(i)[0];
+            ids[i] = records.get(i)[1];
+            group.put(encoded[i]);
+        }
+        lock.readLock().lock();
+        try {
+            long base = journal.append(group.array());
+            for (int i = 0; i < offsets.length; i++) {
+                offsets[i] += base;
+            }
+            index.addAll(users, ids, offsets);
+            return new Appended(generation, offsets);
+        } finally {
+            lock.readLock().unlock();
+            markIndexIfDue();
+        }
+    }
+
+    /*
+     * Every so often the index notes that it holds every record so far, so a
+     * restart after a crash rescans only what came after. That is only true
+     * with no append between its journal write and its index entry, hence the
+     * write lock. The appends themselves are on file, so a failure here is
+     * only logged.
+     */
+    private void markIndexIfDue() {
+        if (!index.markDue()) {
+            return;
+        }
+        lock.writeLock().lock();
+        try {
+            if (index.markDue()) {
+                index.mark(journal.size());
+            }
+        } catch (IOException e) {
+            Metrics.logError("Could not mark the index of " + dataPath, e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private static void checkUser(String user) {
+        if (isReservedUser(user)) {
+            throw new IllegalArgumentException("User names may not start with '" + RESERVED_PREFIX + "'");
+        }
+    }
+
+    /*
+     * Records the cancellation of exactly this booking ID; false if it is
+     * unknown or already cancelled. The ID is claimed in the cancelled set
+     * before the tombstone is written, so of two concurrent cancellations of
+     * the same booking only one returns true.
+     */
+    boolean cancel(String bookingId) throws IOException {
+        lock.readLock().lock();
+        try {
+            if (index.offsetOf(bookingId) < 0 || !cancelled.add(bookingId)) {
+                return false;
+            }
+            try {
+                long offset = journal.append(BookingFormat.encodeTombstone(bookingId));
+                index.add(TOMBSTONE, bookingId, offset);
+            } catch (IOException | RuntimeException e) {
+                cancelled.remove(bookingId);
+                throw e;
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        markIndexIfDue();
+        maybeCompact();
+        return true;
+    }
+
+    boolean isCancelled(String bookingId) {
+        return cancelled.contains(bookingId);
+    }
+
+    // Primary key lookup: one hash probe and one record read, no scan
+    String[] find(String bookingId) throws IOException {
+        lock.readLock().lock();
+        try {
+            long offset = index.offsetOf(bookingId);
+            if (offset < 0 || cancelled.contains(bookingId)) {
+                return null;
+            }
+            return BookingFormat.read(view(), offset, dictionary);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Live records for this user, oldest first
+    List<String[]> readRecords(String user) throws IOException {
+        return readRecords(user, IoProgress.NONE);
+    }
+
+    List<String[]> readRecords(String user, IoProgress progress) throws IOException {
+        long started = System.nanoTime();
+        lock.readLock().lock();
+        try {
+            List<String[]> records = index.readRecords(view(), user, progress);
+            Metrics.Counter.RECORDS_SCANNED.add(records.size());
+            List<String[]> live = new ArrayList<>();
+            for (String[] record : records) {
+                if (!cancelled.contains(record[1])) {
+                    live.add(record);
+                }
+            }
+            return live;
+        } finally {
+            lock.readLock().unlock();
+            Metrics.Timer.SCAN.recordSince(started);
+        }
+    }
+
+    /*
+     * Where this user's live records are, for views that decode them a page at
+     * a time with readAt(). Only the booking ID of each record is looked at.
+     */
+    Rows liveRows(String user, IoProgress progress) throws IOException {
+        lock.readLock().lock();
+        try {
+            long[] offsets = index.offsetsFor(user);
+            if (cancelled.isEmpty()) {
+                return new Rows(generation, journal.size(), offsets);
+            }
+            int live = 0;
+            RecordFile file = view();
+            for (int i = 0; i < offsets.length; i++) {
+                if ((i & 0xFFF) == 0) {
+                    if (progress.isCancelled()) {
+                        throw new CancellationException("Read of " + dataPath + " cancelled");
+                    }
+                    progress.update(i, offsets.length);
+                }
+                String[] keys = BookingFormat.read(file, offsets[i], dictionary, true);
+                if (keys != null && !cancelled.contains(keys[1])) {
+                    offsets[live++] = offsets[i];
+                }
+            }
+            return new Rows(generation, journal.size(), Arrays.copyOf(offsets, live));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Every booking record in the file, cancelled or not, for scans that fan out over threads
+    Rows allBookings() throws IOException {
+        lock.readLock().lock();
+        try (MappedFile file = MappedFile.open(dataPath)) {
+            long end = journal.size();
+            long[] offsets = new long[1024];
+            int count = 0;
+            BookingFormat.Cursor cursor = new BookingFormat.Cursor(file, BookingFormat.FILE_HEADER_SIZE, end);
+            while (cursor.next()) {
+                if (cursor.kind == BookingFormat.BOOKING) {
+                    if (count == offsets.length) {
+                        offsets = Arrays.copyOf(offsets, count * 2);
+                    }
+                    offsets[count++] = cursor.start;
+                }
+            }
+            return new Rows(generation, end, Arrays.copyOf(offsets, count));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    Set<String> cancelledIds() {
+        return new HashSet<>(cancelled);
+    }
+
+    // The records at these offsets, or null if a compaction has moved them since 'generation'
+    String[][] readAt(long generation, long[] offsets) throws IOException {
+        long started = System.nanoTime();
+        lock.readLock().lock();
+        try {
+            if (generation != this.generation) {
+                return null;
+            }
+            String[][] records = new String[offsets.length][];
+            RecordFile file = view();
+            for (int i = 0; i < offsets.length; i++) {
+                records[i] = BookingFormat.read(file, offsets[i], dictionary, false);
+            }
+            Metrics.Counter.RECORDS_SCANNED.add(offsets.length);
+            return records;
+        } finally {
+            lock.readLock().unlock();
+            Metrics.Timer.SCAN.recordSince(started);
+        }
+    }
+
+    // The data file as far as it is written, for reads under the lock
+    private RecordFile view() throws IOException {
+        return new PositionalFile(reader(), journal.size());
+    }
+
+    // A thread interrupted in a read closes the shared channel, so the next reader opens it again
+    private FileChannel reader() throws IOException {
+        FileChannel channel = reader;
+        if (channel.isOpen()) {
+            return channel;
+        }
+        synchronized (this) {
+            if (!reader.isOpen()) {
+                reader = FileChannel.open(dataPath, StandardOpenOption.READ);
+            }
+            return reader;
+        }
+    }
+
+    // Each tombstone stands for itself plus the record it cancelled
+    double deadRatio() {
+        long total = index.recordCount();
+        return total == 0 ? 0.0 : Math.min(1.0, 2.0 * cancelled.size() / total);
+    }
+
+    private void maybeCompact() {
+        if (cancelled.size() >= compactionMinDead && deadRatio() >= compactionThreshold
+                && compacting.compareAndSet(false, true)) {
+            compactor.execute(() -> {
+                try {
+                    compact();
+                } catch (IOException e) {
+                    Metrics.logError("Compaction of " + dataPath + " failed", e);
+                } catch (CancellationException e) {
+                    // The store is closing; the old file is still whole and the temporary one is gone
+                } finally {
+                    compacting.set(false);
+                }
+            });
+        }
+    }
+
+    void compact() throws IOException {
+        if (closing) {
+            return;
+        }
+        long started = System.nanoTime();
+        try {
+            rewrite();
+            Metrics.Counter.COMPACTIONS.increment();
+        } finally {
+            Metrics.Timer.REWRITE.recordSince(started);
+        }
+    }
+
+    private void rewrite() throws IOException {
+        Path temp = dataPath.resolveSibling(dataPath.getFileName() + ".compact");
+        Files.deleteIfExists(temp);
+        Files.createFile(temp);
+
+        long snapshotEnd;
+        lock.writeLock().lock();
+        try {
+            snapshotEnd = journal.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+        // Tombstones up to snapshotEnd are all in the set by now
+        Set<String> dead = new HashSet<>(cancelled);
+
+        BookingIndex.Rebuild rebuild = index.startRebuild(temp);
+        boolean installed = false;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+                CountingOutput out = new CountingOutput(channel)) {
+            out.writeRecord(BookingFormat.fileHeader());
+            try (MappedFile file = MappedFile.open(dataPath)) {
+                copyLive(file, BookingFormat.FILE_HEADER_SIZE, snapshotEnd, dead, out, rebuild);
+            }
+
+            lock.writeLock().lock();
+            try {
+                Set<String> stillCancelled = new HashSet<>();
+                try (MappedFile file = MappedFile.open(dataPath)) {
+                    // Tombstones written while we copied still refer to records we kept
+                    copyTail(file, snapshotEnd, journal.size(), out, rebuild, stillCancelled);
+                }
+                out.flush();
+                channel.force(true);
+
+                Files.move(temp, dataPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                syncDirectory(dataPath.toAbsolutePath().getParent());
+                journal.reopen();
+                reopenReader();
+                rebuild.install(out.count);
+                installed = true;
+                generation++;
+
+                cancelled.retainAll(stillCancelled);
+            } finally {
+                lock.writeLock().unlock();
+            }
+        } finally {
+            if (!installed) {
+                rebuild.abandon();
+                Files.deleteIfExists(temp);
+            }
+        }
+    }
+
+    // Dictionary entries are all kept, since live records may use them; records are copied byte for byte
+    private void copyLive(MappedFile file, long from, long to, Set<String> dead,
+            CountingOutput out, BookingIndex.Rebuild rebuild) throws IOException {
+        BookingFormat.Cursor cursor = new BookingFormat.Cursor(file, from, to);
+        while (cursor.next()) {
+            if (closing) {
+                throw new CancellationException("Compaction of " + dataPath + " stopped: the store is closing");
+            }
+            if (cursor.kind == BookingFormat.DICTIONARY) {
+                byte[] entry = cursor.raw();
+                rebuild.addDictionaryEntry(out.count, entry);
+                out.writeRecord(entry);
+            } else if (cursor.kind == BookingFormat.BOOKING) {
+                String[] keys = BookingFormat.decode(cursor.kind, cursor.body(), dictionary, true);
+                if (!dead.contains(keys[1])) {
+                    rebuild.add(keys[0], keys[1], out.count);
+                    out.writeRecord(cursor.raw());
+                }
+            }
+        }
+    }
+
+    private void copyTail(MappedFile file, long from, long to, CountingOutput out,
+            BookingIndex.Rebuild rebuild, Set<String> tombstones) throws IOException {
+        BookingFormat.Cursor cursor = new BookingFormat.Cursor(file, from, to);
+        while (cursor.next()) {
+            if (cursor.kind != BookingFormat.DICTIONARY) {
+                String[] keys = BookingFormat.decode(cursor.kind, cursor.body(), dictionary, true);
+                if (cursor.kind == BookingFormat.TOMBSTONE) {
+                    tombstones.add(keys[1]);
+                }
+                rebuild.add(keys[0], keys[1], out.count);
+            } else {
+                rebuild.addDictionaryEntry(out.count, cursor.raw());
+            }
+            out.writeRecord(cursor.raw());
+        }
+    }
+
+    private synchronized void reopenReader() throws IOException {
+        reader.close();
+        reader = FileChannel.open(dataPath, StandardOpenOption.READ);
+    }
+
+    private static void syncDirectory(Path directory) {
+        // Not every platform lets a directory be opened for fsync; the rename is atomic regardless
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // best effort
+        }
+    }
+
+    // Streams every live booking record, e.g. to rebuild in-memory state at startup
+    void forEachLive(Consumer<String[]> action) throws IOException {
+        long started = System.nanoTime();
+        long scanned = 0;
+        lock.readLock().lock();
+        try (MappedFile file = MappedFile.open(dataPath)) {
+            BookingFormat.Cursor cursor = new BookingFormat.Cursor(file, BookingFormat.FILE_HEADER_SIZE,
+                    journal.size());
+            while (cursor.next()) {
+                if (cursor.kind == BookingFormat.BOOKING) {
+                    String[] record = BookingFormat.decode(cursor.kind, cursor.body(), dictionary, false);
+                    if (!cancelled.contains(record[1])) {
+                        action.accept(record);
+                    }
+                }
+                scanned++;
+            }
+        } finally {
+            lock.readLock().unlock();
+            Metrics.Counter.RECORDS_SCANNED.add(scanned);
+            Metrics.Timer.SCAN.recordSince(started);
+        }
+    }
+
+    /*
+     * Stops a compaction in progress and waits for it, so it cannot swap the
+     * files under the closed journal, then closes the journal and releases
+     * the lock file.
+     */
+    void close() throws IOException {
+        closing = true;
+        compactor.shutdown();
+        awaitCompactor();
+        lock.writeLock().lock();
+        try {
+            journal.close();
+            index.close(journal.size());
+        } finally {
+            try {
+                closeReader();
+            } finally {
+                lockChannel.close();
+            }
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Not interrupted: an interrupt could stop the compactor half way through swapping the files
+    private void awaitCompactor() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (compactor.awaitTermination(10, TimeUnit.SECONDS)) {
+                    break;
+                }
+                Metrics.logInfo("Waiting for the compaction of " + dataPath + " to stop");
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized void closeReader() throws IOException {
+        reader.close();
+    }
+
+    String stats() {
+        return journal.stats() + String.format(" cancelled=%d deadRatio=%.2f dictionary=%d",
+                cancelled.size(), deadRatio(), dictionary.size());
+    }
+
+    // Offsets of records as they were in one generation of the file, which then ended at 'end'
+    static final class Rows {
+        final long generation;
+        final long end;
+        final long[] offsets;
+
+        Rows(long generation, long end, long[] offsets) {
+            this.generation = generation;
+            this.end = end;
+            this.offsets = offsets;
+        }
+    }
+
+    private static class CountingOutput extends BufferedOutputStream {
+        long count;
+
+        CountingOutput(FileChannel channel) {
+            super(Channels.newOutputStream(channel), 64 * 1024);
+        }
+
+        void writeRecord(byte[] record) throws IOException {
+            write(record);
+            count += record.length;
+        }
+    }
+}
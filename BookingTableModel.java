@@ -0,0 +1,415 @@
+import javax.swing.SwingUtilities;
+import javax.swing.table.AbstractTableModel;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * "My Bookings" table that holds only the file offsets of its rows. A page of
+ * rows is decoded on a virtual thread the first time the table asks for one of
+ * them, and kept in a small LRU cache; until then its cells show "...". The
+ * pages either side are read ahead so scrolling does not wait.
+ *
+ * Sorting and filtering make a new view, an array of row numbers in display
+ * order, from keys kept per column: each row's rank among the column's
+ * distinct values, 4 bytes per booking, and those values in lower case. The
+ * first sort by a column reads every record once to key that column, and the
+ * first filter keys every column. After that, sorting either way round only
+ * sorts ranks, and a change of filter text only looks at each distinct value
+ * once, with no reads. The cells themselves are still read through the page
+ * cache.
+ *
+ * If a compaction moves the records, the offsets are fetched again and the
+ * current view is rebuilt.
+ *
+ * Everything but the background reads runs on the event thread.
+ */
+@SuppressWarnings("serial") // never serialized; the service and cached pages could not be anyway
+final class BookingTableModel extends AbstractTableModel {
+    static final String[] COLUMNS = { "Booking ID", "Train", "From", "To", "Date", "Passenger", "Class", "Seat",
+            "Price", "Payment" };
+    private static final int DATE = 4;
+    private static final int SEAT = 7;
+    private static final int PRICE = 8;
+    private static final int PAGE_SIZE = 128;
+    private static final int MAX_PAGES = 32;
+    private static final int VIEW_CHUNK = 1024;
+    private static final String LOADING = "...";
+    private static final int[] MOVED = new int[0]; // buildView result when a compaction got in the way
+
+    private final BookingService service;
+    private final BookingSession session;
+    private BookingStore.Rows rows;
+    private ColumnKeys columnKeys; // for 'rows'
+    private int[] view; // display row -> row in 'rows'; null while in file order
+    private int viewVersion; // pages started for an older view are dropped
+    private final Map<Integer, String[][]> pages = new LinkedHashMap<>(MAX_PAGES * 2, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, String[][]> eldest) {
+            return size() > MAX_PAGES;
+        }
+    };
+    private final Set<Integer> loading = new HashSet<>();
+
+    private String filter = "";
+    private int sortColumn = -1;
+    private boolean ascending = true;
+    private BackgroundIo.Task<?> viewTask;
+
+    BookingTableModel(BookingService service, BookingSession session, BookingStore.Rows rows) {
+        this.service = service;
+        this.session = session;
+        this.rows = rows;
+        this.columnKeys = new ColumnKeys();
+    }
+
+    // Bookings in the file, whatever the filter
+    int totalCount() {
+        return rows.offsets.length;
+    }
+
+    @Override
+    public int getRowCount() {
+        return view == null ? rows.offsets.length : view.length;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Object getValueAt(int row, int column) {
+        String[] cells = cells(row);
+        return cells == null ? LOADING : cells[column];
+    }
+
+    // The booking ID on this row, or null while its page is still being read
+    String bookingId(int row) {
+        String[] cells = cells(row);
+        return cells == null ? null : cells[0];
+    }
+
+    private String[] cells(int row) {
+        int page = row / PAGE_SIZE;
+        String[][] cached = pages.get(page);
+        if (cached == null) {
+            load(page);
+            return null;
+        }
+        load(page + 1);
+        load(page - 1);
+        return cached[row - page * PAGE_SIZE];
+    }
+
+    private void load(int page) {
+        int from = page * PAGE_SIZE;
+        if (page < 0 || from >= getRowCount() || pages.containsKey(page) || !loading.add(page)) {
+            return;
+        }
+        int to = Math.min(getRowCount(), from + PAGE_SIZE);
+        long[] offsets = new long[to - from];
+        for (int i = 0; i < offsets.length; i++) {
+            offsets[i] = rows.offsets[rowAt(from + i)];
+        }
+        BookingStore.Rows current = rows;
+        int version = viewVersion;
+        BackgroundIo.submit(progress -> service.bookingsAt(current, offsets)).result
+                .whenComplete((records, error) -> SwingUtilities.invokeLater(() -> {
+                    if (version != viewVersion) {
+                        return;
+                    }
+                    loading.remove(page);
+                    if (error != null) {
+                        // Left out of the cache, so the next repaint of these rows tries again
+                        Metrics.logError("Could not read bookings", error);
+                    } else if (records == null) {
+                        reload();
+                    } else {
+                        String[][] decoded = new String[records.length][];
+                        for (int i = 0; i < records.length; i++) {
+                            decoded[i] = display(records[i]);
+                        }
+                        pages.put(page, decoded);
+                        fireTableRowsUpdated(from, to - 1);
+                    }
+                }));
+    }
+
+    private int rowAt(int displayRow) {
+        return view == null ? displayRow : view[displayRow];
+    }
+
+    // Clicking a column once sorts by it, a second time reverses the order
+    void sortBy(int column) {
+        ascending = column != sortColumn || !ascending;
+        sortColumn = column;
+        rebuildView();
+    }
+
+    // Keeps rows where any column contains the text, ignoring case; empty shows everything
+    void filter(String text) {
+        filter = text.trim().toLowerCase(Locale.ROOT);
+        rebuildView();
+    }
+
+    // Stops a sort or filter still being built, e.g. when the window closes
+    void dispose() {
+        if (viewTask != null) {
+            viewTask.cancel();
+        }
+    }
+
+    private void rebuildView() {
+        dispose();
+        BookingStore.Rows current = rows;
+        ColumnKeys keys = columnKeys;
+        String currentFilter = filter;
+        int column = sortColumn;
+        boolean up = ascending;
+        BackgroundIo.Task<int[]> task = BackgroundIo.submit(
+                progress -> buildView(current, keys, currentFilter, column, up, progress));
+        viewTask = task;
+        task.result.whenComplete((built, error) -> SwingUtilities.invokeLater(() -> {
+            if (task != viewTask || task.isCancelled()) {
+                return;
+            }
+            viewTask = null;
+            if (error != null) {
+                Metrics.logError("Could not sort or filter bookings", error);
+            } else if (built == MOVED) {
+                reload();
+            } else if (current != rows) {
+                rebuildView();
+            } else {
+                setView(built);
+            }
+        }));
+    }
+
+    // Offsets moved under us: fetch them again and put the same filter and order back
+    private void reload() {
+        dispose();
+        BackgroundIo.Task<BookingStore.Rows> task = BackgroundIo.submit(
+                progress -> service.bookingRows(session, progress));
+        viewTask = task;
+        task.result.whenComplete((fresh, error) -> SwingUtilities.invokeLater(() -> {
+            if (task != viewTask || task.isCancelled()) {
+                return;
+            }
+            viewTask = null;
+            if (error != null) {
+                Metrics.logError("Could not read bookings", error);
+                return;
+            }
+            rows = fresh;
+            columnKeys = new ColumnKeys();
+            setView(null);
+            if (!filter.isEmpty() || sortColumn >= 0) {
+                rebuildView();
+            }
+        }));
+    }
+
+    private void setView(int[] newView) {
+        view = newView;
+        viewVersion++;
+        pages.clear();
+        loading.clear();
+        fireTableDataChanged();
+    }
+
+    /*
+     * Row numbers of the matching records in display order; null for all rows
+     * in file order, MOVED if a compaction moved the records while we read them.
+     * The records are only read to key the columns that need it and have no
+     * keys yet, and those keys are kept in 'columnKeys'.
+     */
+    private int[] buildView(BookingStore.Rows rows, ColumnKeys columnKeys, String filter, int column,
+            boolean ascending, IoProgress progress) throws Exception {
+        if (filter.isEmpty() && column < 0) {
+            return null;
+        }
+        int count = rows.offsets.length;
+        String[][] keys = new String[COLUMNS.length][];
+        boolean read = false;
+        for (int c = 0; c < COLUMNS.length; c++) {
+            if ((c == column || !filter.isEmpty()) && columnKeys.columns.get(c) == null) {
+                keys[c] = new String[count];
+                read = true;
+            }
+        }
+        for (int from = 0; read && from < count; from += VIEW_CHUNK) {
+            if (progress.isCancelled()) {
+                throw new CancellationException("Sorting bookings cancelled");
+            }
+            int to = Math.min(count, from + VIEW_CHUNK);
+            String[][] records = service.bookingsAt(rows, Arrays.copyOfRange(rows.offsets, from, to));
+            if (records == null) {
+                return MOVED;
+            }
+            for (int i = 0; i < records.length; i++) {
+                String[] cells = display(records[i]);
+                for (int c = 0; c < COLUMNS.length; c++) {
+                    if (keys[c] != null) {
+                        keys[c][from + i] = cells[c];
+                    }
+                }
+            }
+        }
+        for (int c = 0; c < COLUMNS.length; c++) {
+            if (keys[c] != null) {
+                columnKeys.columns.set(c, Column.of(keys[c], order(c)));
+            }
+        }
+
+        int[] matches = new int[count];
+        int matched = 0;
+        if (filter.isEmpty()) {
+            Arrays.setAll(matches, i -> i);
+            matched = count;
+        } else {
+            Column[] columns = new Column[COLUMNS.length];
+            boolean[][] hits = new boolean[COLUMNS.length][];
+            for (int c = 0; c < COLUMNS.length; c++) {
+                columns[c] = columnKeys.columns.get(c);
+                hits[c] = columns[c].matching(filter);
+            }
+            for (int row = 0; row < count; row++) {
+                for (int c = 0; c < COLUMNS.length; c++) {
+                    if (hits[c][columns[c].ranks[row]]) {
+                        matches[matched++] = row;
+                        break;
+                    }
+                }
+            }
+        }
+        matches = Arrays.copyOf(matches, matched);
+        return column < 0 ? matches : sort(matches, columnKeys.columns.get(column).ranks, ascending);
+    }
+
+    /*
+     * Sorts (rank, row) pairs packed into longs, which keeps the file order
+     * among equal keys without boxing a million rows. Descending flips the rank,
+     * not the pair, so equal keys stay in file order that way too.
+     */
+    private static int[] sort(int[] matches, int[] ranks, boolean ascending) {
+        long[] packed = new long[matches.length];
+        for (int i = 0; i < matches.length; i++) {
+            int rank = ranks[matches[i]];
+            packed[i] = (long) (ascending ? rank : Integer.MAX_VALUE - rank) << 32 | matches[i];
+        }
+        Arrays.sort(packed);
+        int[] sorted = new int[packed.length];
+        for (int i = 0; i < packed.length; i++) {
+            sorted[i] = (int) packed[i];
+        }
+        return sorted;
+    }
+
+    private static Comparator<String> order(int column) {
+        switch (column) {
+            case DATE:
+                return Comparator.comparing(BookingTableModel::date);
+            case SEAT:
+            case PRICE:
+                return Comparator.comparingLong(BookingTableModel::number);
+            default:
+                return String.CASE_INSENSITIVE_ORDER;
+        }
+    }
+
+    private static LocalDate date(String value) {
+        try {
+            return LocalDate.parse(value, AvailabilityService.DATE_FORMAT);
+        } catch (DateTimeParseException e) {
+            return LocalDate.MIN;
+        }
+    }
+
+    private static long number(String value) {
+        String digits = value.startsWith("Rs. ") ? value.substring(4) : value;
+        try {
+            return Long.parseLong(digits);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Record columns as shown in the table
+    private static String[] display(String[] booking) {
+        if (booking == null) {
+            String[] missing = new String[COLUMNS.length];
+            Arrays.fill(missing, "?");
+            return missing;
+        }
+        return new String[] {
+                booking[1], // Booking ID
+                booking[3], // Train name
+                booking[4], // From
+                booking[5], // To
+                booking[6], // Date
+                booking[7], // Passenger
+                booking[9], // Class
+                booking.length >= 13 ? booking[12] : "-", // Seat
+                "Rs. " + booking[10], // Price
+                booking[11] }; // Payment
+    }
+
+    // Keys by column, filled in by view builders on background threads
+    private static final class ColumnKeys {
+        final AtomicReferenceArray<Column> columns = new AtomicReferenceArray<>(COLUMNS.length);
+    }
+
+    // One column's keys: each row's rank among its distinct values, and those values, lowercased, by rank
+    private static final class Column {
+        final int[] ranks;
+        final String[] values;
+
+        private Column(int[] ranks, String[] values) {
+            this.ranks = ranks;
+            this.values = values;
+        }
+
+        static Column of(String[] keys, Comparator<String> order) {
+            Map<String, Integer> places = new HashMap<>();
+            for (String key : keys) {
+                places.putIfAbsent(key, 0);
+            }
+            String[] distinct = places.keySet().toArray(new String[0]);
+            Arrays.sort(distinct, order);
+            for (int i = 0; i < distinct.length; i++) {
+                places.put(distinct[i], i);
+                distinct[i] = distinct[i].toLowerCase(Locale.ROOT);
+            }
+            int[] ranks = new int[keys.length];
+            for (int i = 0; i < keys.length; i++) {
+                ranks[i] = places.get(keys[i]);
+            }
+            return new Column(ranks, distinct);
+        }
+
+        // By rank, whether the value contains the lowercased filter text
+        boolean[] matching(String filter) {
+            boolean[] hits = new boolean[values.length];
+            for (int i = 0; i < values.length; i++) {
+                hits[i] = values[i].contains(filter);
+            }
+            return hits;
+        }
+    }
+}
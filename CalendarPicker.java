@@ -0,0 +1,134 @@
+import javax.swing.*;
+import java.awt.*;
+import java.text.SimpleDateFormat;
+import java.time.YearMonth;
+import java.util.Calendar;
+
+class CalendarPicker extends JDialog {
+    private static final long serialVersionUID = 1L;
+    private static final Font HEADER_FONT = new Font("Arial", Font.BOLD, 12);
+    private static final Font DAY_FONT = new Font("Arial", Font.BOLD, 14);
+    private static final String[] DAY_NAMES = { "Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat" };
+
+    private JLabel monthLabel;
+    private JPanel daysPanel;
+    private JButton[] dayCells = new JButton[42];
+    private Calendar calendar;
+    private JTextField dateField;
+    private SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy");
+    private SimpleDateFormat monthFormat = new SimpleDateFormat("MMMM yyyy");
+
+    private String fromStation;
+    private String toStation;
+
+    public CalendarPicker(JFrame parent, JTextField dateField, String fromStation, String toStation) {
+        super(parent, "Select Date", true);
+        this.dateField = dateField;
+        this.fromStation = fromStation;
+        this.toStation = toStation;
+
+        calendar = Calendar.getInstance();
+
+        setSize(320, 350);
+        setLayout(new BorderLayout());
+
+        // Month navigation panel
+        JPanel navPanel = new JPanel(new BorderLayout());
+        JButton prevButton = new JButton("<");
+        prevButton.addActionListener(e -> {
+            calendar.add(Calendar.MONTH, -1);
+            updateCalendar();
+        });
+
+        JButton nextButton = new JButton(">");
+        nextButton.addActionListener(e -> {
+            calendar.add(Calendar.MONTH, 1);
+            updateCalendar();
+        });
+
+        monthLabel = new JLabel("", JLabel.CENTER);
+        navPanel.add(prevButton, BorderLayout.WEST);
+        navPanel.add(monthLabel, BorderLayout.CENTER);
+        navPanel.add(nextButton, BorderLayout.EAST);
+
+        // Days panel: the header row and a fixed 6x7 grid of cells that are reused for every month
+        daysPanel = new JPanel(new GridLayout(0, 7));
+        daysPanel.setPreferredSize(new Dimension(280, 200));
+        for (String dayName : DAY_NAMES) {
+            JLabel dayLabel = new JLabel(dayName, JLabel.CENTER);
+            dayLabel.setFont(HEADER_FONT);
+            daysPanel.add(dayLabel);
+        }
+        for (int i = 0; i < dayCells.length; i++) {
+            JButton dayButton = new JButton();
+            dayButton.setFont(DAY_FONT);
+            dayButton.setMargin(new Insets(0, 0, 0, 0));
+            dayButton.setPreferredSize(new Dimension(40, 40));
+            dayButton.addActionListener(e -> {
+                calendar.set(Calendar.DAY_OF_MONTH, (Integer) dayButton.getClientProperty("day"));
+                dateField.setText(dateFormat.format(calendar.getTime()));
+                dispose();
+            });
+            dayCells[i] = dayButton;
+            daysPanel.add(dayButton);
+        }
+        updateCalendar();
+
+        add(navPanel, BorderLayout.NORTH);
+        add(daysPanel, BorderLayout.CENTER);
+    }
+
+    private void updateCalendar() {
+        monthLabel.setText(monthFormat.format(calendar.getTime()));
+
+        Calendar tempCal = (Calendar) calendar.clone();
+        tempCal.set(Calendar.DAY_OF_MONTH, 1);
+
+        int firstDayOfWeek = tempCal.get(Calendar.DAY_OF_WEEK); 
+        int daysInMonth = tempCal.getActualMaximum(Calendar.DAY_OF_MONTH);
+
+        for (int i = 0; i < dayCells.length; i++) {
+            int day = i - (firstDayOfWeek - 1) + 1;
+            JButton dayButton = dayCells[i];
+            if (day < 1 || day > daysInMonth) {
+                dayButton.setVisible(false);
+                continue;
+            }
+            dayButton.setVisible(true);
+            dayButton.setText(String.valueOf(day));
+            dayButton.putClientProperty("day", day);
+            dayButton.setBackground(null);
+            dayButton.setToolTipText("Checking availability...");
+        }
+
+        // Availability is computed off the EDT; paint it in when it arrives, if still on this month
+        YearMonth month = YearMonth.of(calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1);
+        AvailabilityService availability = PakistanRailwaySystem.getAvailability();
+        availability.month(fromStation, toStation, month).thenAccept(result ->
+                SwingUtilities.invokeLater(() -> showAvailability(result)));
+        availability.prefetch(fromStation, toStation, month);
+    }
+
+    private void showAvailability(AvailabilityService.MonthAvailability result) {
+        YearMonth shown = YearMonth.of(calendar.get(Calendar.YEAR), calendar.get(Calendar.MONTH) + 1);
+        if (!result.month.equals(shown)) {
+            return;
+        }
+        for (JButton dayButton : dayCells) {
+            Integer day = (Integer) dayButton.getClientProperty("day");
+            if (!dayButton.isVisible() || day == null) {
+                continue;
+            }
+            if (!result.hasService(day)) {
+                dayButton.setBackground(Color.LIGHT_GRAY);
+                dayButton.setToolTipText("No train on this route");
+            } else if (result.remaining(day) == 0) {
+                dayButton.setBackground(Color.ORANGE);
+                dayButton.setToolTipText("Sold out");
+            } else {
+                dayButton.setBackground(Color.GREEN);
+                dayButton.setToolTipText(result.remaining(day) + " seats left");
+            }
+        }
+    }
+}
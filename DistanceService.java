@@ -0,0 +1,216 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Shortest rail distance between any two stations over the Station.tracks graph.
+ *
+ * The graph is flattened into a CSR adjacency array and Dijkstra is run from
+ * every station once, filling an all-pairs table. A query is then one array
+ * read. The table is immutable and replaced as a whole, so readers never lock.
+ *
+ * Adding a track relaxes every pair through the new edge in O(n^2). Removing one
+ * re-runs Dijkstra only from the sources whose shortest paths could have used it.
+ */
+class DistanceService {
+    static final int UNREACHABLE = -1;
+    private static final int INF = Integer.MAX_VALUE;
+
+    private final Map<Station, Integer> ordinals = new IdentityHashMap<>();
+    private final Station[] stations;
+
+    // CSR adjacency: edges of station i are edgeTo/edgeLength[edgeStart[i] .. edgeStart[i + 1])
+    private int[] edgeStart;
+    private int[] edgeTo;
+    private int[] edgeLength;
+
+    private volatile int[] table;
+
+    private DistanceService(Collection<Station> stations) {
+        this.stations = stations.toArray(new Station[0]);
+        for (Station station : this.stations) {
+            ordinals.put(station, ordinals.size());
+        }
+    }
+
+    static DistanceService build(Collection<Station> stations) {
+        DistanceService service = new DistanceService(stations);
+        service.rebuildGraph();
+        int n = service.stations.length;
+        int[] table = new int[n * n];
+        for (int source = 0; source < n; source++) {
+            service.dijkstra(source, table);
+        }
+        service.table = table;
+        return service;
+    }
+
+    // Length of the shortest route in km, or UNREACHABLE
+    int distance(Station from, Station to) {
+        Integer a = ordinals.get(from);
+        Integer b = ordinals.get(to);
+        if (a == null || b == null) {
+            return UNREACHABLE;
+        }
+        int d = table[a * stations.length + b];
+        return d == INF ? UNREACHABLE : d;
+    }
+
+    synchronized void addTrack(Track track) {
+        requireKnown(track);
+        track.from.tracks.add(track);
+        rebuildGraph();
+
+        int n = stations.length;
+        int u = ordinals.get(track.from);
+        int v = ordinals.get(track.to);
+        int[] old = table;
+        int[] updated = old.clone();
+        for (int i = 0; i < n; i++) {
+            int toU = old[i * n + u];
+            if (toU == INF) {
+                continue;
+            }
+            for (int j = 0; j < n; j++) {
+                int fromV = old[v * n + j];
+                if (fromV == INF) {
+                    continue;
+                }
+                long through = (long) toU + track.distance + fromV;
+                if (through < updated[i * n + j]) {
+                    updated[i * n + j] = (int) through;
+                }
+            }
+        }
+        table = updated;
+    }
+
+    synchronized void removeTrack(Track track) {
+        requireKnown(track);
+        if (!track.from.tracks.remove(track)) {
+            return;
+        }
+        rebuildGraph();
+
+        int n = stations.length;
+        int u = ordinals.get(track.from);
+        int v = ordinals.get(track.to);
+        int[] old = table;
+        int[] updated = old.clone();
+        for (int i = 0; i < n; i++) {
+            int toU = old[i * n + u];
+            if (toU == INF) {
+                continue;
+            }
+            for (int j = 0; j < n; j++) {
+                int fromV = old[v * n + j];
+                if (fromV != INF && (long) toU + track.distance + fromV == old[i * n + j]) {
+                    dijkstra(i, updated);
+                    break;
+                }
+            }
+        }
+        table = updated;
+    }
+
+    private void requireKnown(Track track) {
+        if (!ordinals.containsKey(track.from) || !ordinals.containsKey(track.to)) {
+            throw new IllegalArgumentException("Track joins a station this service does not know about");
+        }
+    }
+
+    private void rebuildGraph() {
+        int n = stations.length;
+        List<Track> edges = new ArrayList<>();
+        edgeStart = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            edgeStart[i] = edges.size();
+            for (Track track : stations[i].tracks) {
+                if (ordinals.containsKey(track.to)) {
+                    edges.add(track);
+                }
+            }
+        }
+        edgeStart[n] = edges.size();
+        edgeTo = new int[edges.size()];
+        edgeLength = new int[edges.size()];
+        for (int e = 0; e < edges.size(); e++) {
+            edgeTo[e] = ordinals.get(edges.get(e).to);
+            edgeLength[e] = edges.get(e).distance;
+        }
+    }
+
+    // Fills row 'source' of the table, using a binary heap of packed (distance, station) longs
+    private void dijkstra(int source, int[] into) {
+        int n = stations.length;
+        int[] dist = new int[n];
+        Arrays.fill(dist, INF);
+        dist[source] = 0;
+        long[] heap = new long[Math.max(1, edgeTo.length + 1)];
+        int size = 0;
+        heap[size++] = source;
+
+        while (size > 0) {
+            long top = heap[0];
+            heap[0] = heap[--size];
+            siftDown(heap, size);
+            int station = (int) top;
+            int d = (int) (top >>> 32);
+            if (d > dist[station]) {
+                continue;
+            }
+            for (int e = edgeStart[station]; e < edgeStart[station + 1]; e++) {
+                int next = edgeTo[e];
+                int candidate = d + edgeLength[e];
+                if (candidate < dist[next]) {
+                    dist[next] = candidate;
+                    if (size == heap.length) {
+                        heap = Arrays.copyOf(heap, size * 2);
+                    }
+                    heap[size] = ((long) candidate << 32) | next;
+                    siftUp(heap, size++);
+                }
+            }
+        }
+        System.arraycopy(dist, 0, into, source * n, n);
+    }
+
+    private static void siftUp(long[] heap, int index) {
+        long value = heap[index];
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (heap[parent] <= value) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = value;
+    }
+
+    private static void siftDown(long[] heap, int size) {
+        if (size == 0) {
+            return;
+        }
+        long value = heap[0];
+        int index = 0;
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (heap[child] >= value) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = value;
+    }
+}
@@ -0,0 +1,13 @@
+// How hard the journal works to get a record onto disk before append() returns
+enum Durability {
+    FSYNC_EACH,   // write + fsync for every single record
+    GROUP_COMMIT, // concurrent appends share one write + fsync
+    OS_BUFFERED;  // handed to the OS page cache, never fsynced by us
+
+    static Durability fromProperty(String value) {
+        if (value == null || value.isEmpty()) {
+            return GROUP_COMMIT;
+        }
+        return valueOf(value.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,86 @@
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/*
+ * Distance-based fares. Each leg of a train is as long as the shortest track
+ * route between its two stops. A journey's distance is the sum of the legs it
+ * rides. The fare is a base charge plus a per-km rate that drops in bands as
+ * the trip gets longer, times the seat class multiplier.
+ *
+ * Every (class, boarding stop, alighting stop) fare of every train is computed
+ * up front into one flat int array per train. Pricing a booking or a search row
+ * is then an identity-map lookup plus an array read, with no allocation. A trip
+ * over a leg with no track route between its stops has no fare (-1), and
+ * cannot be booked.
+ */
+class FareEngine {
+    // Upper bound of each band in km and the rate inside it, in paisa per km
+    private static final int[] BAND_LIMIT_KM = { 100, 300, 600, Integer.MAX_VALUE };
+    private static final int[] BAND_RATE_PAISA = { 300, 250, 200, 150 };
+
+    private final Map<Train, TrainFares> fares = new IdentityHashMap<>();
+
+    private static class TrainFares {
+        final int stops;
+        final int[] table;
+
+        TrainFares(int stops, int[] table) {
+            this.stops = stops;
+            this.table = table;
+        }
+    }
+
+    static FareEngine build(Collection<Train> trains, DistanceService distances) {
+        FareEngine engine = new FareEngine();
+        SeatClass[] classes = SeatClass.values();
+        for (Train train : trains) {
+            Station[] stops = train.stops;
+            int n = stops.length;
+            int[] cumulativeKm = new int[n];
+            int[] unreachableLegs = new int[n]; // legs with no track route, up to each stop
+            for (int i = 1; i < n; i++) {
+                int leg = distances.distance(stops[i - 1], stops[i]);
+                cumulativeKm[i] = cumulativeKm[i - 1] + Math.max(0, leg);
+                unreachableLegs[i] = unreachableLegs[i - 1] + (leg < 0 ? 1 : 0);
+            }
+
+            int[] table = new int[classes.length * n * n];
+            for (SeatClass seatClass : classes) {
+                for (int from = 0; from < n; from++) {
+                    for (int to = from + 1; to < n; to++) {
+                        table[index(seatClass.ordinal(), from, to, n)] =
+                                unreachableLegs[to] != unreachableLegs[from] ? -1
+                                        : fareFor(seatClass, cumulativeKm[to] - cumulativeKm[from]);
+                    }
+                }
+            }
+            engine.fares.put(train, new TrainFares(n, table));
+        }
+        return engine;
+    }
+
+    // Fare in rupees between two stop positions of the train, or -1 if it is not a forward journey or has no fare
+    int fare(Train train, SeatClass seatClass, int fromStop, int toStop) {
+        TrainFares trainFares = fares.get(train);
+        if (trainFares == null || fromStop < 0 || toStop <= fromStop || toStop >= trainFares.stops) {
+            return -1;
+        }
+        return trainFares.table[index(seatClass.ordinal(), fromStop, toStop, trainFares.stops)];
+    }
+
+    static int fareFor(SeatClass seatClass, int km) {
+        long paisa = 0;
+        int lower = 0;
+        for (int band = 0; band < BAND_LIMIT_KM.length && km > lower; band++) {
+            int inBand = Math.min(km, BAND_LIMIT_KM[band]) - lower;
+            paisa += (long) inBand * BAND_RATE_PAISA[band];
+            lower = BAND_LIMIT_KM[band];
+        }
+        return seatClass.baseFare + (int) Math.round(paisa / 100.0 * seatClass.multiplier);
+    }
+
+    private static int index(int seatClass, int from, int to, int n) {
+        return (seatClass * n + from) * n + to;
+    }
+}
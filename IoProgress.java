@@ -0,0 +1,22 @@
+/*
+ * Progress and cancellation hook for long reads of the booking file. Readers
+ * report how far they got and stop with a CancellationException once the
+ * caller has given up. Cancellation is cooperative on purpose: interrupting a
+ * thread that is inside FileChannel I/O closes the channel for every user.
+ */
+interface IoProgress {
+    IoProgress NONE = new IoProgress() {
+        @Override
+        public void update(long done, long total) {
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+    };
+
+    void update(long done, long total);
+
+    boolean isCancelled();
+}
@@ -0,0 +1,231 @@
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Journey planner over the trains' stop tables using the Connection Scan
+ * Algorithm with one scan per transfer round.
+ *
+ * Every hop of every train (departure from one stop to arrival at the next) is
+ * a connection, kept in flat int arrays sorted by departure time. The
+ * timetable is unrolled over two service days to allow journeys that change
+ * trains after midnight; given a date, a trip whose train does not run on its
+ * day is never boarded. Round r only rides trips boarded in round r,
+ * boarding either at the origin (r = 0) or at a station reached in an earlier
+ * round plus that station's minimum connection time. The best arrival of each
+ * round gives the Pareto set of (arrival time, transfers).
+ */
+class JourneyPlanner {
+    private static final int DAYS = 2;
+    private static final int INF = Integer.MAX_VALUE;
+
+    private final Map<Station, Integer> ordinals = new IdentityHashMap<>();
+    private final Station[] stationsByOrdinal;
+    private final int[] minTransfer;
+
+    // Connections, sorted by departure time
+    private final int[] depStation;
+    private final int[] arrStation;
+    private final int[] depTime;
+    private final int[] arrTime;
+    private final int[] trip;
+    private final Train[] tripTrain;
+
+    static class Leg {
+        final Train train;
+        final Station from;
+        final Station to;
+        final int departure;
+        final int arrival;
+
+        Leg(Train train, Station from, Station to, int departure, int arrival) {
+            this.train = train;
+            this.from = from;
+            this.to = to;
+            this.departure = departure;
+            this.arrival = arrival;
+        }
+    }
+
+    static class Itinerary {
+        final List<Leg> legs;
+        final int arrival;
+
+        Itinerary(List<Leg> legs) {
+            this.legs = legs;
+            this.arrival = legs.get(legs.size() - 1).arrival;
+        }
+
+        int transfers() {
+            return legs.size() - 1;
+        }
+
+        int departure() {
+            return legs.get(0).departure;
+        }
+    }
+
+    private JourneyPlanner(Collection<Station> stations, List<int[]> connections, List<Train> trips) {
+        stationsByOrdinal = new Station[stations.size()];
+        minTransfer = new int[stations.size()];
+        for (Station station : stations) {
+            int ordinal = ordinals.size();
+            ordinals.put(station, ordinal);
+            stationsByOrdinal[ordinal] = station;
+            minTransfer[ordinal] = station.minTransferMinutes;
+        }
+
+        connections.sort((a, b) -> a[2] != b[2] ? Integer.compare(a[2], b[2]) : Integer.compare(a[3], b[3]));
+        int count = connections.size();
+        depStation = new int[count];
+        arrStation = new int[count];
+        depTime = new int[count];
+        arrTime = new int[count];
+        trip = new int[count];
+        for (int i = 0; i < count; i++) {
+            int[] c = connections.get(i);
+            depStation[i] = c[0];
+            arrStation[i] = c[1];
+            depTime[i] = c[2];
+            arrTime[i] = c[3];
+            trip[i] = c[4];
+        }
+        tripTrain = trips.toArray(new Train[0]);
+    }
+
+    static JourneyPlanner build(Collection<Station> stations, Collection<Train> trains) {
+        Map<Station, Integer> ordinals = new IdentityHashMap<>();
+        for (Station station : stations) {
+            ordinals.put(station, ordinals.size());
+        }
+
+        List<int[]> connections = new ArrayList<>();
+        List<Train> trips = new ArrayList<>();
+        for (Train train : trains) {
+            Station[] stops = train.stops;
+            for (int day = 0; day < DAYS; day++) {
+                int tripId = trips.size();
+                trips.add(train);
+                int shift = day * ServiceTime.MINUTES_PER_DAY;
+                for (int i = 0; i + 1 < stops.length; i++) {
+                    connections.add(new int[] { ordinals.get(stops[i]), ordinals.get(stops[i + 1]),
+                            train.departures[i] + shift, train.arrivals[i + 1] + shift, tripId });
+                }
+            }
+        }
+        return new JourneyPlanner(stations, connections, trips);
+    }
+
+    /*
+     * Pareto-optimal itineraries from 'from' to 'to' leaving no earlier than
+     * departAfter (minutes since midnight of 'day'), ordered by number of
+     * transfers. Each one arrives strictly earlier than every itinerary with
+     * fewer transfers. A null day plans as if every train ran daily.
+     */
+    List<Itinerary> plan(Station from, Station to, LocalDate day, int departAfter, int maxTransfers) {
+        List<Itinerary> result = new ArrayList<>();
+        Integer origin = ordinals.get(from);
+        Integer target = ordinals.get(to);
+        if (origin == null || target == null || origin.equals(target)) {
+            return result;
+        }
+
+        int stationCount = stationsByOrdinal.length;
+        int rounds = maxTransfers + 1;
+        int[][] arrival = new int[rounds][stationCount];
+        int[][] inConnection = new int[rounds][stationCount];
+        int[][] tripEntry = new int[rounds][tripTrain.length];
+        int[] bestBefore = new int[stationCount];
+        int[] bestRound = new int[stationCount];
+        Arrays.fill(bestBefore, INF);
+
+        // Trip t is its train's run on day t % DAYS after 'day', as build() adds them
+        boolean[] runs = new boolean[tripTrain.length];
+        for (int t = 0; t < runs.length; t++) {
+            runs[t] = day == null || tripTrain[t].runsOn(day.plusDays(t % DAYS));
+        }
+
+        int first = firstDepartureAtOrAfter(departAfter);
+        int bestAtTarget = INF;
+        for (int round = 0; round < rounds; round++) {
+            int[] arrive = arrival[round];
+            int[] entered = tripEntry[round];
+            Arrays.fill(arrive, INF);
+            Arrays.fill(entered, -1);
+
+            for (int c = first; c < depTime.length; c++) {
+                if (depTime[c] >= bestAtTarget) {
+                    break;
+                }
+                int t = trip[c];
+                if (entered[t] < 0) {
+                    if (!runs[t]) {
+                        continue;
+                    }
+                    int station = depStation[c];
+                    boolean canBoard = round == 0
+                            ? station == origin
+                            : bestBefore[station] != INF && bestBefore[station] + minTransfer[station] <= depTime[c];
+                    if (!canBoard) {
+                        continue;
+                    }
+                    entered[t] = c;
+                }
+                int station = arrStation[c];
+                if (arrTime[c] < arrive[station]) {
+                    arrive[station] = arrTime[c];
+                    inConnection[round][station] = c;
+                }
+            }
+
+            if (arrive[target] < bestAtTarget) {
+                bestAtTarget = arrive[target];
+                result.add(reconstruct(round, target, arrival, inConnection, tripEntry, bestRound));
+            }
+            for (int s = 0; s < stationCount; s++) {
+                if (arrive[s] < bestBefore[s] && s != origin) {
+                    bestBefore[s] = arrive[s];
+                    bestRound[s] = round;
+                }
+            }
+        }
+        return result;
+    }
+
+    private Itinerary reconstruct(int round, int target, int[][] arrival, int[][] inConnection,
+            int[][] tripEntry, int[] bestRound) {
+        List<Leg> legs = new ArrayList<>();
+        int station = target;
+        int currentRound = round;
+        while (currentRound >= 0) {
+            int alight = inConnection[currentRound][station];
+            int board = tripEntry[currentRound][trip[alight]];
+            legs.add(0, new Leg(tripTrain[trip[alight]], stationsByOrdinal[depStation[board]],
+                    stationsByOrdinal[station], depTime[board], arrTime[alight]));
+            station = depStation[board];
+            if (currentRound == 0) {
+                break;
+            }
+            currentRound = bestRound[station];
+        }
+        return new Itinerary(legs);
+    }
+
+    private int firstDepartureAtOrAfter(int minute) {
+        int low = 0;
+        int high = depTime.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (depTime[mid] < minute) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -0,0 +1,309 @@
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Just enough JSON for the HTTP API: a writer for objects and arrays, and a
+ * parser for the flat request bodies it accepts (one object of string, number,
+ * boolean or null values, plus at most one named array of such objects where
+ * the endpoint asks for it). Anything else nested is rejected instead of
+ * guessed at.
+ */
+final class Json {
+    private Json() {
+    }
+
+    static final class Writer {
+        private final StringBuilder out = new StringBuilder(256);
+        private boolean needsComma;
+
+        Writer beginObject() {
+            separator();
+            out.append('{');
+            needsComma = false;
+            return this;
+        }
+
+        Writer endObject() {
+            out.append('}');
+            needsComma = true;
+            return this;
+        }
+
+        Writer beginArray() {
+            separator();
+            out.append('[');
+            needsComma = false;
+            return this;
+        }
+
+        Writer endArray() {
+            out.append(']');
+            needsComma = true;
+            return this;
+        }
+
+        // Starts a member; follow with a value, beginObject() or beginArray()
+        Writer name(String name) {
+            separator();
+            quote(name);
+            out.append(':');
+            needsComma = false;
+            return this;
+        }
+
+        Writer value(String value) {
+            separator();
+            if (value == null) {
+                out.append("null");
+            } else {
+                quote(value);
+            }
+            needsComma = true;
+            return this;
+        }
+
+        Writer value(long value) {
+            separator();
+            out.append(value);
+            needsComma = true;
+            return this;
+        }
+
+        // JSON has no NaN or infinity, so those are written as null
+        Writer value(double value) {
+            separator();
+            out.append(Double.isFinite(value) ? Double.toString(value) : "null");
+            needsComma = true;
+            return this;
+        }
+
+        Writer value(boolean value) {
+            separator();
+            out.append(value);
+            needsComma = true;
+            return this;
+        }
+
+        Writer field(String name, String value) {
+            return name(name).value(value);
+        }
+
+        Writer field(String name, long value) {
+            return name(name).value(value);
+        }
+
+        Writer field(String name, double value) {
+            return name(name).value(value);
+        }
+
+        Writer field(String name, boolean value) {
+            return name(name).value(value);
+        }
+
+        private void separator() {
+            if (needsComma) {
+                out.append(',');
+                needsComma = false;
+            }
+        }
+
+        private void quote(String text) {
+            out.append('"');
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                switch (c) {
+                    case '"' -> out.append("\\\"");
+                    case '\\' -> out.append("\\\\");
+                    case '\n' -> out.append("\\n");
+                    case '\r' -> out.append("\\r");
+                    case '\t' -> out.append("\\t");
+                    default -> {
+                        if (c < 0x20) {
+                            out.append(String.format("\\u%04x", (int) c));
+                        } else {
+                            out.append(c);
+                        }
+                    }
+                }
+            }
+            out.append('"');
+        }
+
+        @Override
+        public String toString() {
+            return out.toString();
+        }
+    }
+
+    static Writer writer() {
+        return new Writer();
+    }
+
+    // Parses {"key": value, ...} into strings; numbers and booleans keep their text, null becomes null
+    static Map<String, String> parseFlatObject(String text) {
+        return parseFlatObject(text, null, null);
+    }
+
+    /*
+     * The same, except that the value of 'arrayField' may be an array of flat
+     * objects, which are added to 'items' in order instead of to the result.
+     */
+    static Map<String, String> parseFlatObject(String text, String arrayField, List<Map<String, String>> items) {
+        Parser parser = new Parser(text);
+        parser.skipWhitespace();
+        Map<String, String> result = parser.object(arrayField, items);
+        parser.skipWhitespace();
+        if (parser.position < text.length()) {
+            throw parser.error("Unexpected trailing content");
+        }
+        return result;
+    }
+
+    private static final class Parser {
+        private final String text;
+        private int position;
+
+        Parser(String text) {
+            this.text = text;
+        }
+
+        char peek() {
+            if (position >= text.length()) {
+                throw error("Unexpected end of input");
+            }
+            return text.charAt(position);
+        }
+
+        char next() {
+            char c = peek();
+            position++;
+            return c;
+        }
+
+        void expect(char expected) {
+            if (next() != expected) {
+                throw error("Expected '" + expected + "'");
+            }
+        }
+
+        Map<String, String> object(String arrayField, List<Map<String, String>> items) {
+            Map<String, String> result = new LinkedHashMap<>();
+            expect('{');
+            skipWhitespace();
+            if (peek() == '}') {
+                next();
+                return result;
+            }
+            while (true) {
+                skipWhitespace();
+                String key = string();
+                skipWhitespace();
+                expect(':');
+                skipWhitespace();
+                if (key.equals(arrayField) && peek() == '[') {
+                    array(items);
+                } else {
+                    result.put(key, scalar());
+                }
+                skipWhitespace();
+                char c = next();
+                if (c == '}') {
+                    return result;
+                }
+                if (c != ',') {
+                    throw error("Expected ',' or '}'");
+                }
+            }
+        }
+
+        private void array(List<Map<String, String>> items) {
+            expect('[');
+            skipWhitespace();
+            if (peek() == ']') {
+                next();
+                return;
+            }
+            while (true) {
+                skipWhitespace();
+                items.add(object(null, null));
+                skipWhitespace();
+                char c = next();
+                if (c == ']') {
+                    return;
+                }
+                if (c != ',') {
+                    throw error("Expected ',' or ']'");
+                }
+            }
+        }
+
+        void skipWhitespace() {
+            while (position < text.length() && Character.isWhitespace(text.charAt(position))) {
+                position++;
+            }
+        }
+
+        String scalar() {
+            char c = peek();
+            if (c == '"') {
+                return string();
+            }
+            if (c == '{' || c == '[') {
+                throw error("Nested values are not supported");
+            }
+            int start = position;
+            while (position < text.length() && ",}] \t\r\n".indexOf(text.charAt(position)) < 0) {
+                position++;
+            }
+            String literal = text.substring(start, position);
+            if (literal.equals("null")) {
+                return null;
+            }
+            if (literal.equals("true") || literal.equals("false") || literal.matches("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?")) {
+                return literal;
+            }
+            throw error("Invalid value '" + literal + "'");
+        }
+
+        String string() {
+            expect('"');
+            StringBuilder value = new StringBuilder();
+            while (true) {
+                char c = next();
+                if (c == '"') {
+                    return value.toString();
+                }
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                char escape = next();
+                switch (escape) {
+                    case '"', '\\', '/' -> value.append(escape);
+                    case 'b' -> value.append('\b');
+                    case 'f' -> value.append('\f');
+                    case 'n' -> value.append('\n');
+                    case 'r' -> value.append('\r');
+                    case 't' -> value.append('\t');
+                    case 'u' -> {
+                        if (position + 4 > text.length()) {
+                            throw error("Truncated \\u escape");
+                        }
+                        try {
+                            value.append((char) Integer.parseInt(text.substring(position, position + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Invalid \\u escape");
+                        }
+                        position += 4;
+                    }
+                    default -> throw error("Invalid escape '\\" + escape + "'");
+                }
+            }
+        }
+
+        IllegalArgumentException error(String message) {
+            return new IllegalArgumentException(message + " at position " + position);
+        }
+    }
+}
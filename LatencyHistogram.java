@@ -0,0 +1,126 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Concurrent latency histogram in the style of HdrHistogram, for timings in
+ * nanoseconds.
+ *
+ * Values below 128 get one bucket each. Above that, every power of two is split
+ * into 64 equal buckets, so a bucket is never wider than 1/64 of the values in it.
+ * Percentiles are therefore within about 1.6%. Values are capped at 2^40 ns (about
+ * 18 minutes), which takes 2241 buckets in all.
+ *
+ * record() works out the bucket with a couple of shifts and then increments
+ * it atomically. It does not allocate or lock, so it can sit on the booking path.
+ * Readers copy the buckets into a Snapshot. A copy taken while recording is
+ * going on may be a few values behind, but never wrong by more than that.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;   // linear range, 0..127
+    private static final int HALF = SUB_BUCKETS / 2;                // buckets per power of two above it
+    static final long MAX_VALUE = 1L << 40;
+    private static final int BUCKETS = indexOf(MAX_VALUE) + 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos) {
+        long value = nanos < 0 ? 0 : Math.min(nanos, MAX_VALUE);
+        counts.incrementAndGet(indexOf(value));
+        sum.addAndGet(value);
+        long seen = max.get();
+        while (value > seen && !max.compareAndSet(seen, value)) {
+            seen = max.get();
+        }
+    }
+
+    // Records the time since 'startNanos', a System.nanoTime() reading
+    void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = counts.get(i);
+            total += copy[i];
+        }
+        return new Snapshot(copy, total, sum.get(), max.get());
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // Shift so the top seven bits are left; they fall in [64, 128)
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BUCKET_BITS - 1);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    // Largest value that lands in this bucket
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        long subBucket = index - (long) shift * HALF;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    // A point-in-time copy; cheap to query, and two of them give the counts in between
+    static final class Snapshot {
+        private final long[] counts;
+        final long count;
+        final long sum;
+        final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        double mean() {
+            return count == 0 ? 0.0 : (double) sum / count;
+        }
+
+        // Upper bound of the bucket holding this percentile (0-100), 0 when empty
+        long percentile(double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueAt(i), max);
+                }
+            }
+            return max;
+        }
+
+        /*
+         * What was recorded after 'earlier' was taken. The exact maximum of that
+         * interval is not known, so it is the top of the highest bucket used.
+         */
+        Snapshot since(Snapshot earlier) {
+            long[] delta = new long[counts.length];
+            long total = 0;
+            int highest = -1;
+            for (int i = 0; i < counts.length; i++) {
+                delta[i] = Math.max(0, counts[i] - earlier.counts[i]);
+                total += delta[i];
+                if (delta[i] > 0) {
+                    highest = i;
+                }
+            }
+            long intervalMax = highest < 0 ? 0 : Math.min(highestValueAt(highest), max);
+            return new Snapshot(delta, total, sum - earlier.sum, intervalMax);
+        }
+    }
+}
@@ -0,0 +1,216 @@
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Running delays of trains on the move, one run per train and service date.
+ * The printed timetable (Train stop tables, RouteIndex, JourneyPlanner) is
+ * never touched; screens add the delay of the run on top of it.
+ *
+ * A report says a train reached one of its stops so many minutes late. The
+ * delay is carried to every later stop: running time between stops is taken
+ * as fixed, and a stop whose timetable allows more dwell than MIN_DWELL wins
+ * back the difference, since the train leaves as soon as it may. Propagation
+ * stops at the first stop whose times come out as they already were, because
+ * everything after it was worked out from the same values before.
+ *
+ * Each run is an immutable Status replaced as a whole, so readers only do a
+ * map lookup and never wait; a report locks nothing but its own run's map
+ * entry while it copies the arrays.
+ *
+ * Runs live in memory only and are gone after a restart. Reports are only
+ * taken for runs on the move: one dated later than tomorrow has not started,
+ * and one whose last stop, at the latest delay allowed, was before today is
+ * over. Finished runs are dropped by the first report of each day.
+ */
+final class LiveDelays {
+    static final int MIN_DWELL = 1; // minutes needed at a stop, however short the printed dwell
+    private static final int MAX_EARLY = 60;
+    private static final int MAX_LATE = ServiceTime.MINUTES_PER_DAY;
+
+    private final Map<RunKey, Status> runs = new ConcurrentHashMap<>();
+    private final Clock clock;
+    private final AtomicReference<LocalDate> prunedOn;
+
+    LiveDelays() {
+        this(Clock.systemDefaultZone());
+    }
+
+    LiveDelays(Clock clock) {
+        this.clock = clock;
+        this.prunedOn = new AtomicReference<>(LocalDate.now(clock));
+    }
+
+    record RunKey(String train, String date) {
+    }
+
+    // One run's delays in minutes at each stop; negative when running early
+    static final class Status {
+        final Train train;
+        final int reportedStop; // the latest stop reported; stops after it are predictions
+        final int reportedDelay;
+        private final int[] arrivalDelay;
+        private final int[] departureDelay;
+
+        private Status(Train train, int reportedStop, int reportedDelay, int[] arrivalDelay, int[] departureDelay) {
+            this.train = train;
+            this.reportedStop = reportedStop;
+            this.reportedDelay = reportedDelay;
+            this.arrivalDelay = arrivalDelay;
+            this.departureDelay = departureDelay;
+        }
+
+        int arrivalDelay(int stop) {
+            return arrivalDelay[stop];
+        }
+
+        int departureDelay(int stop) {
+            return departureDelay[stop];
+        }
+
+        // Expected times as ServiceTime minutes
+        int arrival(int stop) {
+            return train.arrivals[stop] + arrivalDelay[stop];
+        }
+
+        int departure(int stop) {
+            return train.departures[stop] + departureDelay[stop];
+        }
+    }
+
+    /*
+     * Records that the train reached 'stop' 'minutes' late on that date.
+     * Returns false, changing nothing, if a later stop of the run has already
+     * been reported: the report arrived out of order.
+     */
+    boolean report(Train train, String date, int stop, int minutes) {
+        if (stop < 0 || stop >= train.stopCount()) {
+            throw new IllegalArgumentException(train.id + " has no stop " + stop);
+        }
+        if (minutes < -MAX_EARLY || minutes > MAX_LATE) {
+            throw new IllegalArgumentException("Delay of " + minutes + " minutes is out of range");
+        }
+        LocalDate day;
+        try {
+            day = LocalDate.parse(date, AvailabilityService.DATE_FORMAT);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Date must be dd/MM/yyyy");
+        }
+        LocalDate today = LocalDate.now(clock);
+        pruneOncePerDay(today);
+        // Tomorrow too, for a reporter whose clock is ahead of ours
+        if (day.isAfter(today.plusDays(1))) {
+            throw new IllegalArgumentException("The " + date + " run of " + train.id + " has not started yet");
+        }
+        if (finished(train, day, today)) {
+            throw new IllegalArgumentException("The " + date + " run of " + train.id + " is over");
+        }
+        boolean[] applied = new boolean[1];
+        runs.compute(new RunKey(train.id, date), (key, current) -> {
+            if (current != null && current.train == train && stop < current.reportedStop) {
+                return current;
+            }
+            applied[0] = true;
+            return propagate(current != null && current.train == train ? current : null, train, stop, minutes);
+        });
+        return applied[0];
+    }
+
+    private static Status propagate(Status current, Train train, int stop, int minutes) {
+        int count = train.stopCount();
+        int[] arrival = current == null ? new int[count] : current.arrivalDelay.clone();
+        int[] departure = current == null ? new int[count] : current.departureDelay.clone();
+        arrival[stop] = minutes;
+        departure[stop] = leaving(train, stop, minutes);
+        for (int i = stop + 1; i < count; i++) {
+            int arrive = departure[i - 1];
+            int leave = leaving(train, i, arrive);
+            if (arrive == arrival[i] && leave == departure[i]) {
+                break;
+            }
+            arrival[i] = arrive;
+            departure[i] = leave;
+        }
+        return new Status(train, stop, minutes, arrival, departure);
+    }
+
+    // True once even the latest allowed arrival at the last stop was on a day before today
+    private static boolean finished(Train train, LocalDate day, LocalDate today) {
+        int latest = train.arrivals[train.stopCount() - 1] + MAX_LATE;
+        return day.plusDays(latest / ServiceTime.MINUTES_PER_DAY).isBefore(today);
+    }
+
+    private void pruneOncePerDay(LocalDate today) {
+        LocalDate last = prunedOn.get();
+        if (!today.equals(last) && prunedOn.compareAndSet(last, today)) {
+            // Keys were parsed when their run was first reported
+            runs.entrySet().removeIf(run -> finished(run.getValue().train,
+                    LocalDate.parse(run.getKey().date(), AvailabilityService.DATE_FORMAT), today));
+        }
+    }
+
+    // Departure delay at a stop reached 'late' minutes late; trains never leave before the printed time
+    private static int leaving(Train train, int stop, int late) {
+        int slack = Math.max(0, train.departures[stop] - train.arrivals[stop] - MIN_DWELL);
+        return Math.max(0, late - slack);
+    }
+
+    // The run's delays, or null if nothing has been reported for it
+    Status status(Train train, String date) {
+        if (date == null) {
+            return null;
+        }
+        Status status = runs.get(new RunKey(train.id, date));
+        return status != null && status.train == train ? status : null;
+    }
+
+    /*
+     * The first station where the itinerary, travelling on 'date', misses or
+     * may miss its change of train given the running delays: the expected
+     * arrival plus the station's minimum connection time is after the next
+     * train's expected departure. Null if every change still works.
+     */
+    Station transferAtRisk(JourneyPlanner.Itinerary itinerary, String date) {
+        List<JourneyPlanner.Leg> legs = itinerary.legs;
+        if (legs.size() < 2 || date == null) {
+            return null;
+        }
+        LocalDate day;
+        try {
+            day = LocalDate.parse(date, AvailabilityService.DATE_FORMAT);
+        } catch (DateTimeParseException e) {
+            return null; // no run can have been reported under it
+        }
+        for (int i = 0; i + 1 < legs.size(); i++) {
+            JourneyPlanner.Leg in = legs.get(i);
+            JourneyPlanner.Leg out = legs.get(i + 1);
+            int arrive = in.arrival + arrivalDelay(in, day);
+            int leave = out.departure + departureDelay(out, day);
+            if (arrive + in.to.minTransferMinutes > leave) {
+                return in.to;
+            }
+        }
+        return null;
+    }
+
+    private int arrivalDelay(JourneyPlanner.Leg leg, LocalDate day) {
+        int stop = leg.train.stopIndex(leg.to);
+        Status status = status(leg.train, runDate(day, leg.arrival - leg.train.arrivals[stop]));
+        return status == null ? 0 : status.arrivalDelay(stop);
+    }
+
+    private int departureDelay(JourneyPlanner.Leg leg, LocalDate day) {
+        int stop = leg.train.stopIndex(leg.from);
+        Status status = status(leg.train, runDate(day, leg.departure - leg.train.departures[stop]));
+        return status == null ? 0 : status.departureDelay(stop);
+    }
+
+    // Planner legs on a later service day are shifted by whole days
+    private static String runDate(LocalDate day, int shift) {
+        return day.plusDays(shift / ServiceTime.MINUTES_PER_DAY).format(AvailabilityService.DATE_FORMAT);
+    }
+}
@@ -0,0 +1,65 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Read-only view of a file mapped in fixed-size segments so it can exceed 2 GB
+class MappedFile implements RecordFile, AutoCloseable {
+    private static final int SEGMENT_BITS = 28;
+    private static final long SEGMENT_SIZE = 1L << SEGMENT_BITS;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer[] segments;
+    private final long size;
+
+    private MappedFile(FileChannel channel) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        int count = (int) ((size + SEGMENT_SIZE - 1) >>> SEGMENT_BITS);
+        this.segments = new MappedByteBuffer[count];
+    }
+
+    static MappedFile open(Path path) throws IOException {
+        return new MappedFile(FileChannel.open(path, StandardOpenOption.READ));
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    // Copies 'length' bytes starting at 'position', across segment boundaries if need be
+    @Override
+    public void read(long position, byte[] into, int offset, int length) throws IOException {
+        if (position < 0 || position + length > size) {
+            throw new EOFException("Read past the end of the file at " + position);
+        }
+        while (length > 0) {
+            MappedByteBuffer segment = segment(position);
+            int within = (int) (position & (SEGMENT_SIZE - 1));
+            int chunk = Math.min(length, segment.limit() - within);
+            segment.get(within, into, offset, chunk);
+            position += chunk;
+            offset += chunk;
+            length -= chunk;
+        }
+    }
+
+    private MappedByteBuffer segment(long position) throws IOException {
+        int index = (int) (position >>> SEGMENT_BITS);
+        MappedByteBuffer segment = segments[index];
+        if (segment == null) {
+            long start = (long) index << SEGMENT_BITS;
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+            segments[index] = segment;
+        }
+        return segment;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
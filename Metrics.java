@@ -0,0 +1,333 @@
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/*
+ * Process-wide latency histograms and counters for the booking core.
+ *
+ * Call sites take System.nanoTime() before the operation and hand it to
+ * Timer.recordSince() afterwards; neither side allocates. Each timer has its
+ * own MBean (pk.railway:type=Latency,name=...) with the count, mean and p50 to
+ * p99.9 in microseconds since start-up, and the counters share one MBean
+ * (pk.railway:type=Counters). Every railway.metrics.logSeconds (60 by default,
+ * 0 turns it off) the timers and counters that moved are also written to the
+ * "pk.railway" logger, as percentiles over just that interval.
+ *
+ * Errors that used to go to printStackTrace() go through logError(), so they
+ * land in the same log and are counted.
+ */
+final class Metrics {
+    enum Timer {
+        SEARCH("search"),
+        JOURNEY_PLAN("journeyPlan"),
+        FARE_LOOKUP("fareLookup"),
+        BOOKING_COMMIT("bookingCommit"),
+        GROUP_COMMIT("groupCommit"),
+        CANCEL("cancel"),
+        JOURNAL_APPEND("journalAppend"),
+        JOURNAL_SYNC("journalSync"),
+        SCAN("scan"),
+        REWRITE("rewrite"),
+        HTTP_REQUEST("httpRequest");
+
+        final String label;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        Timer(String label) {
+            this.label = label;
+        }
+
+        void recordSince(long startNanos) {
+            histogram.recordSince(startNanos);
+        }
+
+        LatencyHistogram.Snapshot snapshot() {
+            return histogram.snapshot();
+        }
+    }
+
+    enum Counter {
+        BOOKINGS("bookings"),
+        SOLD_OUT("soldOut"),
+        CANCELLATIONS("cancellations"),
+        CANCELS_REFUSED("cancelsRefused"),
+        WAITLISTED("waitlisted"),
+        PROMOTIONS("promotions"),
+        DELAY_REPORTS("delayReports"),
+        RECORDS_SCANNED("recordsScanned"),
+        COMPACTIONS("compactions"),
+        HTTP_REJECTED("httpRejected"),
+        ERRORS("errors");
+
+        final String label;
+        private final LongAdder value = new LongAdder();
+
+        Counter(String label) {
+            this.label = label;
+        }
+
+        void increment() {
+            value.increment();
+        }
+
+        void add(long amount) {
+            value.add(amount);
+        }
+
+        long get() {
+            return value.sum();
+        }
+    }
+
+    static final String DOMAIN = "pk.railway";
+    private static final System.Logger LOG = System.getLogger(DOMAIN);
+    private static final String[] PERCENTILE_NAMES = { "P50Micros", "P90Micros", "P99Micros", "P999Micros" };
+    private static final String[] PERCENTILE_LABELS = { "p50", "p90", "p99", "p99.9" };
+    private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+    private static boolean started;
+
+    private Metrics() {
+    }
+
+    static void logError(String message, Throwable error) {
+        Counter.ERRORS.increment();
+        LOG.log(System.Logger.Level.ERROR, message, error);
+    }
+
+    static void logInfo(String message) {
+        LOG.log(System.Logger.Level.INFO, message);
+    }
+
+    /*
+     * Registers the MBeans and starts the periodic dump; later calls do nothing.
+     * Recording works whether or not this was called.
+     */
+    static synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            for (Timer timer : Timer.values()) {
+                register(server, new TimerMBean(timer), "type=Latency,name=" + timer.label);
+            }
+            register(server, new CounterMBean(), "type=Counters");
+        } catch (JMException e) {
+            logError("Could not register the metrics MBeans", e);
+        }
+
+        long interval = Long.getLong("railway.metrics.logSeconds", 60L);
+        if (interval > 0) {
+            ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "metrics-log");
+                thread.setDaemon(true);
+                return thread;
+            });
+            LatencyHistogram.Snapshot[] previous = snapshots();
+            dumper.scheduleAtFixedRate(() -> dump(previous), interval, interval, TimeUnit.SECONDS);
+        }
+    }
+
+    private static void register(MBeanServer server, DynamicMBean bean, String properties) throws JMException {
+        ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+        try {
+            server.registerMBean(bean, name);
+        } catch (InstanceAlreadyExistsException e) {
+            // Another class loader in this JVM got there first; keep its bean
+        }
+    }
+
+    // A snapshot of every timer, indexed by ordinal, to pass to report() later
+    static LatencyHistogram.Snapshot[] snapshots() {
+        Timer[] timers = Timer.values();
+        LatencyHistogram.Snapshot[] snapshots = new LatencyHistogram.Snapshot[timers.length];
+        for (Timer timer : timers) {
+            snapshots[timer.ordinal()] = timer.snapshot();
+        }
+        return snapshots;
+    }
+
+    /*
+     * One line per timer that recorded anything since 'previous' was taken (or
+     * since start-up if it is null), then the counters. 'previous' is moved on
+     * to now, so the next report covers the next interval.
+     */
+    static String report(LatencyHistogram.Snapshot[] previous) {
+        StringBuilder out = new StringBuilder("metrics");
+        for (Timer timer : Timer.values()) {
+            LatencyHistogram.Snapshot now = timer.snapshot();
+            LatencyHistogram.Snapshot interval = previous == null ? now : now.since(previous[timer.ordinal()]);
+            if (previous != null) {
+                previous[timer.ordinal()] = now;
+            }
+            if (interval.count == 0) {
+                continue;
+            }
+            out.append(String.format("%n  %-14s n=%-8d mean=%.1fus", timer.label, interval.count,
+                    interval.mean() / 1e3));
+            for (int p = 0; p < PERCENTILES.length; p++) {
+                out.append(String.format(" %s=%.1fus", PERCENTILE_LABELS[p],
+                        interval.percentile(PERCENTILES[p]) / 1e3));
+            }
+            out.append(String.format(" max=%.1fus", interval.max / 1e3));
+        }
+        out.append(System.lineSeparator()).append("  counters since start-up:");
+        for (Counter counter : Counter.values()) {
+            out.append(' ').append(counter.label).append('=').append(counter.get());
+        }
+        return out.toString();
+    }
+
+    private static void dump(LatencyHistogram.Snapshot[] previous) {
+        try {
+            logInfo(report(previous));
+        } catch (RuntimeException e) {
+            // A throw here would cancel every later dump
+            logError("Metrics dump failed", e);
+        }
+    }
+
+    // Read-only attributes over one timer, in microseconds since start-up
+    private static final class TimerMBean extends ReadOnlyMBean {
+        private final Timer timer;
+
+        TimerMBean(Timer timer) {
+            super("Latency of " + timer.label + " in microseconds since start-up",
+                    attributes("Count", "long", "MeanMicros", "double", "MaxMicros", "double",
+                            PERCENTILE_NAMES[0], "double", PERCENTILE_NAMES[1], "double",
+                            PERCENTILE_NAMES[2], "double", PERCENTILE_NAMES[3], "double"));
+            this.timer = timer;
+        }
+
+        @Override
+        Object value(String attribute, LatencyHistogram.Snapshot snapshot) throws AttributeNotFoundException {
+            switch (attribute) {
+                case "Count":
+                    return snapshot.count;
+                case "MeanMicros":
+                    return snapshot.mean() / 1e3;
+                case "MaxMicros":
+                    return snapshot.max / 1e3;
+                default:
+                    int p = Arrays.asList(PERCENTILE_NAMES).indexOf(attribute);
+                    if (p < 0) {
+                        throw new AttributeNotFoundException(attribute);
+                    }
+                    return snapshot.percentile(PERCENTILES[p]) / 1e3;
+            }
+        }
+
+        @Override
+        LatencyHistogram.Snapshot snapshot() {
+            return timer.snapshot();
+        }
+    }
+
+    private static final class CounterMBean extends ReadOnlyMBean {
+        CounterMBean() {
+            super("Booking core counters since start-up", counterAttributes());
+        }
+
+        private static MBeanAttributeInfo[] counterAttributes() {
+            Counter[] counters = Counter.values();
+            MBeanAttributeInfo[] infos = new MBeanAttributeInfo[counters.length];
+            for (int i = 0; i < counters.length; i++) {
+                infos[i] = new MBeanAttributeInfo(counters[i].label, "long", counters[i].label, true, false, false);
+            }
+            return infos;
+        }
+
+        @Override
+        Object value(String attribute, LatencyHistogram.Snapshot snapshot) throws AttributeNotFoundException {
+            for (Counter counter : Counter.values()) {
+                if (counter.label.equals(attribute)) {
+                    return counter.get();
+                }
+            }
+            throw new AttributeNotFoundException(attribute);
+        }
+    }
+
+    /*
+     * A DynamicMBean rather than a standard one, because standard MBean
+     * interfaces have to be public and nothing else in the core is.
+     * getAttributes takes one snapshot for all the attributes it returns, so
+     * their percentiles agree with each other.
+     */
+    private abstract static class ReadOnlyMBean implements DynamicMBean {
+        private final MBeanInfo info;
+
+        ReadOnlyMBean(String description, MBeanAttributeInfo[] attributes) {
+            info = new MBeanInfo(getClass().getName(), description, attributes, null, null, null);
+        }
+
+        static MBeanAttributeInfo[] attributes(String... namesAndTypes) {
+            MBeanAttributeInfo[] infos = new MBeanAttributeInfo[namesAndTypes.length / 2];
+            for (int i = 0; i < infos.length; i++) {
+                String name = namesAndTypes[2 * i];
+                infos[i] = new MBeanAttributeInfo(name, namesAndTypes[2 * i + 1], name, true, false, false);
+            }
+            return infos;
+        }
+
+        abstract Object value(String attribute, LatencyHistogram.Snapshot snapshot) throws AttributeNotFoundException;
+
+        LatencyHistogram.Snapshot snapshot() {
+            return null;
+        }
+
+        @Override
+        public Object getAttribute(String attribute) throws AttributeNotFoundException {
+            return value(attribute, snapshot());
+        }
+
+        @Override
+        public AttributeList getAttributes(String[] attributes) {
+            LatencyHistogram.Snapshot snapshot = snapshot();
+            AttributeList list = new AttributeList();
+            for (String attribute : attributes) {
+                try {
+                    list.add(new Attribute(attribute, value(attribute, snapshot)));
+                } catch (AttributeNotFoundException e) {
+                    // Left out, as the DynamicMBean contract asks
+                }
+            }
+            return list;
+        }
+
+        @Override
+        public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+            throw new AttributeNotFoundException(attribute.getName() + " is read-only");
+        }
+
+        @Override
+        public AttributeList setAttributes(AttributeList attributes) {
+            return new AttributeList();
+        }
+
+        @Override
+        public Object invoke(String actionName, Object[] params, String[] signature) {
+            throw new UnsupportedOperationException("No operations on " + actionName);
+        }
+
+        @Override
+        public MBeanInfo getMBeanInfo() {
+            return info;
+        }
+    }
+}
@@ -1,315 +1,73 @@
 import javax.swing.*;
 import java.awt.*;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.List;
 
-class CalendarPicker extends JDialog {
-    private JLabel monthLabel;
-    private JPanel daysPanel;
-    private Calendar calendar;
-    private JTextField dateField;
-    private SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MM/yyyy");
-
-    private String fromStation;
-    private String toStation;
-
-    public CalendarPicker(JFrame parent, JTextField dateField, String fromStation, String toStation) {
-        super(parent, "Select Date", true);
-        this.dateField = dateField;
-        this.fromStation = fromStation;
-        this.toStation = toStation;
-
-        calendar = Calendar.getInstance();
-
-        setSize(320, 350);
-        setLayout(new BorderLayout());
-
-        // Month navigation panel
-        JPanel navPanel = new JPanel(new BorderLayout());
-        JButton prevButton = new JButton("<");
-        prevButton.addActionListener(e -> {
-            calendar.add(Calendar.MONTH, -1);
-            updateCalendar();
-        });
-
-        JButton nextButton = new JButton(">");
-        nextButton.addActionListener(e -> {
-            calendar.add(Calendar.MONTH, 1);
-            updateCalendar();
-        });
-
-        monthLabel = new JLabel("", JLabel.CENTER);
-        navPanel.add(prevButton, BorderLayout.WEST);
-        navPanel.add(monthLabel, BorderLayout.CENTER);
-        navPanel.add(nextButton, BorderLayout.EAST);
+public class PakistanRailwaySystem {
+    static final String BOOKINGS_FILE = "pakistan_railway_bookings.dat";
+    // Comma-separated file used before the binary format; converted on first start
+    static final String LEGACY_BOOKINGS_FILE = "pakistan_railway_bookings.txt";
 
-        // Days panel
-        daysPanel = new JPanel(new GridLayout(0, 7));
-        daysPanel.setPreferredSize(new Dimension(280, 200));
-        updateCalendar();
+    // The Swing pages are one client of the booking core, with one session per login
+    private static BookingService service;
+    private static BookingSession session;
 
-        add(navPanel, BorderLayout.NORTH);
-        add(daysPanel, BorderLayout.CENTER);
+    public static Station getStation(String name) {
+        return service.station(name);
     }
 
-    private void updateCalendar() {
-        daysPanel.removeAll();
-
-        // Day headers
-        String[] dayNames = { "Sun", "Mon", "Tue", "Wed", "Thu", "Fri", "Sat" };
-        for (String dayName : dayNames) {
-            JLabel dayLabel = new JLabel(dayName, JLabel.CENTER);
-            dayLabel.setFont(new Font("Arial", Font.BOLD, 12));
-            daysPanel.add(dayLabel);
-        }
-
-        monthLabel.setText(new SimpleDateFormat("MMMM yyyy").format(calendar.getTime()));
-
-        Calendar tempCal = (Calendar) calendar.clone();
-        tempCal.set(Calendar.DAY_OF_MONTH, 1);
-
-        int firstDayOfWeek = tempCal.get(Calendar.DAY_OF_WEEK); 
-        int daysInMonth = tempCal.getActualMaximum(Calendar.DAY_OF_MONTH);
-
-        // Add empty cells before the first day
-        for (int i = 1; i < firstDayOfWeek; i++) {
-            daysPanel.add(new JLabel(""));
-        }
-
-        // Add day buttons
-        for (int i = 1; i <= daysInMonth; i++) {
-            JButton dayButton = new JButton(String.valueOf(i));
-            dayButton.setFont(new Font("Arial", Font.BOLD, 14));
-            dayButton.setMargin(new Insets(0, 0, 0, 0));
-            dayButton.setPreferredSize(new Dimension(40, 40));
-
-            final int day = i;
-            calendar.set(Calendar.DAY_OF_MONTH, day);
-            // Check train availability
-            if (isTrainAvailable(fromStation, toStation)) {
-                dayButton.setBackground(Color.GREEN);
-                dayButton.setToolTipText("Train available");
-            } else {
-                dayButton.setBackground(Color.LIGHT_GRAY);
-                dayButton.setToolTipText("No train on this route");
-            }
-
-            dayButton.addActionListener(e -> {
-                calendar.set(Calendar.DAY_OF_MONTH, day);
-                dateField.setText(dateFormat.format(calendar.getTime()));
-                dispose();
-            });
-
-            daysPanel.add(dayButton);
-        }
-
-        daysPanel.revalidate();
-        daysPanel.repaint();
+    public static Collection<Train> getAllTrains() {
+        return service.trains();
     }
 
-    private boolean isTrainAvailable(String from, String to) {
-        for (Train train : PakistanRailwaySystem.getAllTrains()) {
-            if (train.schedule.containsKey(PakistanRailwaySystem.getStation(from)) &&
-                    train.schedule.containsKey(PakistanRailwaySystem.getStation(to))) {
-                return true;
-            }
-        }
-        return false;
+    // Shortest rail distance in km, or -1 if the stations are not connected
+    public static int getDistance(String from, String to) {
+        return service.distance(from, to);
     }
-}
 
-class Station {
-    String name;
-    List<Track> tracks = new ArrayList<>();
-
-    Station(String name) {
-        this.name = name;
+    // Fare in rupees for this train between the two stations, or -1 if it does not run that way
+    public static int getFare(Train train, String from, String to, String seatType) {
+        return service.fare(train, from, to, seatType);
     }
-}
-
-class Track {
-    Station from;
-    Station to;
-    int distance;
 
-    Track(Station from, Station to, int distance) {
-        this.from = from;
-        this.to = to;
-        this.distance = distance;
-    }
-}
-
-class Train {
-    String id;
-    String name;
-    Map<Station, String[]> schedule = new LinkedHashMap<>();
-    int delay;
-    Map<String, Integer> seatPrices = new HashMap<>(); 
-
-    Train(String id, String name) {
-        this.id = id;
-        this.name = name;
-        seatPrices.put("Economy", 500);
-        seatPrices.put("Business", 1000);
-        seatPrices.put("AC", 1500);
-    }
-}
-
-class Booking {
-    Train train;
-    String from;
-    String to;
-    String date;
-    String passengerName;
-    String gender;
-    String seatType;
-    String paymentInfo;
-    int price;
-    String bookingId;
-
-    Booking(Train train, String from, String to, String date, String passengerName,
-            String gender, String seatType, String paymentInfo) {
-        this.train = train;
-        this.from = from;
-        this.to = to;
-        this.date = date;
-        this.passengerName = passengerName;
-        this.gender = gender;
-        this.seatType = seatType;
-        this.paymentInfo = paymentInfo;
-        this.price = train.seatPrices.get(seatType);
-        this.bookingId = generateBookingId();
+    public static void addTrack(Track track) {
+        service.addTrack(track);
     }
 
-    private String generateBookingId() {
-        return "PKR-" + System.currentTimeMillis() % 100000;
+    public static void removeTrack(Track track) {
+        service.removeTrack(track);
     }
-}
-
-public class PakistanRailwaySystem {
-    private static Map<String, Station> stations = new HashMap<>();
-    private static Map<String, Train> trains = new HashMap<>();
-    private static List<Booking> bookings = new ArrayList<>();
-    private static Train selectedTrain;
-    private static String fromStation;
-    private static String toStation;
-    private static String travelDate;
-    private static String currentUser = "";
 
-    public static Station getStation(String name) {
-        return stations.get(name);
+    // True if some train calls at 'from' and then at 'to'
+    public static boolean hasDirectService(String from, String to) {
+        return service.hasDirectService(from, to);
     }
 
-    public static Collection<Train> getAllTrains() {
-        return trains.values();
+    public static AvailabilityService getAvailability() {
+        return service.availability();
     }
 
     public static void main(String[] args) {
-        setupData();
+        try {
+            BookingFileConverter.migrate(Paths.get(LEGACY_BOOKINGS_FILE), Paths.get(BOOKINGS_FILE));
+            service = BookingService.open(Timetable.configured(), Paths.get(BOOKINGS_FILE));
+        } catch (IOException e) {
+            Metrics.logError("Could not load the timetable or open " + BOOKINGS_FILE, e);
+            return;
+        }
+        Metrics.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                service.close();
+            } catch (IOException e) {
+                Metrics.logError("Could not close the booking store", e);
+            }
+        }, "bookings-shutdown"));
         SwingUtilities.invokeLater(PakistanRailwaySystem::createWelcomePage);
     }
 
-    private static void setupData() {
-        Station karachi = new Station("Karachi");
-        Station lahore = new Station("Lahore");
-        Station islamabad = new Station("Islamabad");
-        Station peshawar = new Station("Peshawar");
-        Station quetta = new Station("Quetta");
-        Station multan = new Station("Multan");
-        Station faisalabad = new Station("Faisalabad");
-        Station rawalpindi = new Station("Rawalpindi");
-        Station hyderabad = new Station("Hyderabad");
-        Station sialkot = new Station("Sialkot");
-        Station sukker = new Station("Sukkur");
-        Station bahawalpur = new Station("Bahawalpur");
-
-        stations.put("Karachi", karachi);
-        stations.put("Lahore", lahore);
-        stations.put("Islamabad", islamabad);
-        stations.put("Peshawar", peshawar);
-        stations.put("Quetta", quetta);
-        stations.put("Multan", multan);
-        stations.put("Faisalabad", faisalabad);
-        stations.put("Rawalpindi", rawalpindi);
-        stations.put("Hyderabad", hyderabad);
-        stations.put("Sialkot", sialkot);
-        stations.put("Sukkur", sukker);
-        stations.put("Bahawalpur", bahawalpur);
-
-        karachi.tracks.add(new Track(karachi, hyderabad, 164));
-        hyderabad.tracks.add(new Track(hyderabad, karachi, 164));
-
-        karachi.tracks.add(new Track(karachi, sukker, 470));
-        sukker.tracks.add(new Track(sukker, karachi, 470));
-
-        sukker.tracks.add(new Track(sukker, multan, 400));
-        multan.tracks.add(new Track(multan, sukker, 400));
-
-        lahore.tracks.add(new Track(lahore, islamabad, 380));
-        islamabad.tracks.add(new Track(islamabad, lahore, 380));
-
-        lahore.tracks.add(new Track(lahore, peshawar, 520));
-        peshawar.tracks.add(new Track(peshawar, lahore, 520));
-
-        islamabad.tracks.add(new Track(islamabad, peshawar, 180));
-        peshawar.tracks.add(new Track(peshawar, islamabad, 180));
-
-        lahore.tracks.add(new Track(lahore, multan, 350));
-        multan.tracks.add(new Track(multan, lahore, 350));
-
-        multan.tracks.add(new Track(multan, bahawalpur, 90));
-        bahawalpur.tracks.add(new Track(bahawalpur, multan, 90));
-
-        multan.tracks.add(new Track(multan, quetta, 700));
-        quetta.tracks.add(new Track(quetta, multan, 700));
-
-        lahore.tracks.add(new Track(lahore, faisalabad, 130));
-        faisalabad.tracks.add(new Track(faisalabad, lahore, 130));
-
-        lahore.tracks.add(new Track(lahore, sialkot, 125));
-        sialkot.tracks.add(new Track(sialkot, lahore, 125));
-
-        // Pakistani trains with different classes
-        Train greenLine = new Train("PK101", "Green Line Express");
-        greenLine.schedule.put(karachi, new String[] { "08:00", "08:15" });
-        greenLine.schedule.put(lahore, new String[] { "16:30", "16:45" });
-        greenLine.schedule.put(islamabad, new String[] { "19:30", "19:45" });
-        trains.put("PK101", greenLine);
-
-        Train shalimarExpress = new Train("PK202", "Shalimar Express");
-        shalimarExpress.schedule.put(lahore, new String[] { "07:00", "07:15" });
-        shalimarExpress.schedule.put(karachi, new String[] { "19:30", "19:45" });
-        trains.put("PK202", shalimarExpress);
-
-        Train khyberMail = new Train("PK303", "Khyber Mail");
-        khyberMail.schedule.put(karachi, new String[] { "09:00", "09:15" });
-        khyberMail.schedule.put(peshawar, new String[] { "22:30", "22:45" });
-        trains.put("PK303", khyberMail);
-
-        Train awamExpress = new Train("PK404", "Awam Express");
-        awamExpress.schedule.put(karachi, new String[] { "10:00", "10:15" });
-        awamExpress.schedule.put(islamabad, new String[] { "18:30", "18:45" });
-        trains.put("PK404", awamExpress);
-
-        Train bolanMail = new Train("PK505", "Bolan Mail");
-        bolanMail.schedule.put(karachi, new String[] { "11:00", "11:15" });
-        bolanMail.schedule.put(quetta, new String[] { "20:30", "20:45" });
-        trains.put("PK505", bolanMail);
-
-        Train subakRaftar = new Train("PK606", "Subak Raftar");
-        subakRaftar.schedule.put(lahore, new String[] { "12:00", "12:15" });
-        subakRaftar.schedule.put(islamabad, new String[] { "15:30", "15:45" });
-        trains.put("PK606", subakRaftar);
-
-        Train pakBusiness = new Train("PK707", "Pak Business Express");
-        pakBusiness.schedule.put(karachi, new String[] { "14:00", "14:15" });
-        pakBusiness.schedule.put(lahore, new String[] { "21:30", "21:45" });
-        trains.put("PK707", pakBusiness);
-    }
-
     private static void createWelcomePage() {
         JFrame welcomeFrame = new JFrame("Pakistan Railways");
         welcomeFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
@@ -404,7 +162,7 @@ public class PakistanRailwaySystem {
             String password = new String(passField.getPassword());
 
             if (isValidLogin(username, password)) {
-                currentUser = username;
+                session = service.openSession(username);
                 loginFrame.dispose();
                 createMainMenu();
             } else {
@@ -428,7 +186,8 @@ public class PakistanRailwaySystem {
         loginFrame.setVisible(true);
     }
 
-    private static boolean isValidLogin(String username, String password) {
+    // RailwayHttpServer signs API users in against the same names and passwords
+    static boolean isValidLogin(String username, String password) {
         return ("admin".equals(username) && "admin".equals(password)) ||
                 ("user".equals(username) && "user123".equals(password));
     }
@@ -454,7 +213,7 @@ public class PakistanRailwaySystem {
         mainPanel.setLayout(new BoxLayout(mainPanel, BoxLayout.Y_AXIS));
         mainPanel.setBorder(BorderFactory.createEmptyBorder(50, 100, 50, 100));
 
-        JLabel welcomeLabel = new JLabel("Welcome, " + currentUser + "!");
+        JLabel welcomeLabel = new JLabel("Welcome, " + session.user + "!");
         welcomeLabel.setFont(new Font("Arial", Font.BOLD, 16));
         welcomeLabel.setAlignmentX(Component.CENTER_ALIGNMENT);
 
@@ -482,6 +241,7 @@ public class PakistanRailwaySystem {
         logoutButton.setAlignmentX(Component.CENTER_ALIGNMENT);
         logoutButton.setPreferredSize(new Dimension(200, 40));
         logoutButton.addActionListener(e -> {
+            service.closeSession(session); // otherwise every login leaves one behind in the service
             menuFrame.dispose();
             createWelcomePage();
         });
@@ -525,11 +285,11 @@ public class PakistanRailwaySystem {
 
         JLabel fromLabel = new JLabel("From Station:");
         fromLabel.setFont(new Font("Arial", Font.PLAIN, 14));
-        JComboBox<String> fromField = new JComboBox<>(stations.keySet().toArray(new String[0]));
+        JComboBox<String> fromField = new JComboBox<>(service.stationNames().toArray(new String[0]));
 
         JLabel toLabel = new JLabel("To Station:");
         toLabel.setFont(new Font("Arial", Font.PLAIN, 14));
-        JComboBox<String> toField = new JComboBox<>(stations.keySet().toArray(new String[0]));
+        JComboBox<String> toField = new JComboBox<>(service.stationNames().toArray(new String[0]));
 
         JLabel dateLabel = new JLabel("Travel Date:");
         dateLabel.setFont(new Font("Arial", Font.PLAIN, 14));
@@ -547,9 +307,9 @@ public class PakistanRailwaySystem {
         searchButton.setBackground(new Color(0, 102, 0));
         searchButton.setForeground(Color.WHITE);
         searchButton.addActionListener(e -> {
-            fromStation = (String) fromField.getSelectedItem();
-            toStation = (String) toField.getSelectedItem();
-            travelDate = dateField.getText();
+            String fromStation = (String) fromField.getSelectedItem();
+            String toStation = (String) toField.getSelectedItem();
+            String travelDate = dateField.getText();
 
             if (fromStation.equals(toStation)) {
                 JOptionPane.showMessageDialog(searchFrame, "Departure and arrival stations cannot be same!");
@@ -561,6 +321,9 @@ public class PakistanRailwaySystem {
                 return;
             }
 
+            session.fromStation = fromStation;
+            session.toStation = toStation;
+            session.travelDate = travelDate;
             searchFrame.dispose();
             createTrainListPage();
         });
@@ -606,10 +369,9 @@ public class PakistanRailwaySystem {
         JPanel mainPanel = new JPanel(new BorderLayout());
         mainPanel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
 
-        String[][] data = getTrainData(fromStation, toStation);
-        String[] column = { "Train ID", "Train Name", "Departure", "Arrival", "Duration" };
+        String[][] data = getTrainData(service, session.fromStation, session.toStation, session.travelDate);
 
-        JTable trainListTable = new JTable(data, column) {
+        JTable trainListTable = new JTable(data, SearchResult.COLUMNS) {
             public boolean isCellEditable(int row, int column) {
                 return false;
             }
@@ -619,6 +381,23 @@ public class PakistanRailwaySystem {
 
         JScrollPane scrollPane = new JScrollPane(trainListTable);
 
+        // Journeys with a change of train, booked one leg at a time
+        String[][] connectionData = getConnectionData(service, session.fromStation, session.toStation,
+                session.travelDate);
+        if (connectionData.length > 0) {
+            String[] connectionColumn = { "Connecting Journey", "Departure", "Arrival", "Changes", "Status" };
+            JTable connectionTable = new JTable(connectionData, connectionColumn) {
+                public boolean isCellEditable(int row, int column) {
+                    return false;
+                }
+            };
+            connectionTable.getTableHeader().setReorderingAllowed(false);
+            JScrollPane connectionPane = new JScrollPane(connectionTable);
+            connectionPane.setPreferredSize(new Dimension(760, 120));
+            connectionPane.setBorder(BorderFactory.createTitledBorder("Connections (book each train separately)"));
+            mainPanel.add(connectionPane, BorderLayout.NORTH);
+        }
+
         // Button Panel
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER, 20, 20));
 
@@ -629,7 +408,7 @@ public class PakistanRailwaySystem {
             int selectedRow = trainListTable.getSelectedRow();
             if (selectedRow >= 0) {
                 String selectedTrainId = (String) trainListTable.getValueAt(selectedRow, 0);
-                selectedTrain = trains.get(selectedTrainId);
+                session.selectedTrain = service.train(selectedTrainId);
                 trainListFrame.dispose();
                 createBookingPage();
             } else {
@@ -654,45 +433,47 @@ public class PakistanRailwaySystem {
         trainListFrame.setVisible(true);
     }
 
-    private static String[][] getTrainData(String from, String to) {
-        List<String[]> trainData = new ArrayList<>();
-        for (Train train : trains.values()) {
-            if (train.schedule.containsKey(stations.get(from)) && train.schedule.containsKey(stations.get(to))) {
-                String[] scheduleFrom = train.schedule.get(stations.get(from));
-                String[] scheduleTo = train.schedule.get(stations.get(to));
-
-                String duration = calculateDuration(scheduleFrom[0], scheduleTo[1]);
-
-                trainData.add(new String[] {
-                        train.id,
-                        train.name,
-                        scheduleFrom[0] + " (" + from + ")",
-                        scheduleTo[1] + " (" + to + ")",
-                        duration
-                });
-            }
-        }
-        return trainData.toArray(new String[0][0]);
+    /*
+     * Rows of the train list page, with expected times when the train's run on
+     * that date has reported a delay; package-private so the benchmarks can
+     * time the real thing. Identical searches are answered from the cache.
+     */
+    static String[][] getTrainData(BookingService service, String from, String to, String date) {
+        return service.search(from, to, date, SeatClass.ECONOMY).rows;
     }
 
-    private static String calculateDuration(String departure, String arrival) {
-        try {
-            SimpleDateFormat format = new SimpleDateFormat("HH:mm");
-            Date departTime = format.parse(departure);
-            Date arriveTime = format.parse(arrival);
-
-            long diff = arriveTime.getTime() - departTime.getTime();
-            long diffMinutes = diff / (60 * 1000);
-            long hours = diffMinutes / 60;
-            long minutes = diffMinutes % 60;
-
-            return String.format("%dh %02dm", hours, minutes);
-        } catch (Exception e) {
-            return "N/A";
+    // Connections with a change of train; a change that running delays put at risk is flagged
+    static String[][] getConnectionData(BookingService service, String from, String to, String date) {
+        List<String[]> rows = new ArrayList<>();
+        for (JourneyPlanner.Itinerary itinerary : service.connections(from, to, date, 0, 3)) {
+            if (itinerary.transfers() == 0) {
+                continue; // already listed as a direct train
+            }
+            StringBuilder route = new StringBuilder();
+            for (JourneyPlanner.Leg leg : itinerary.legs) {
+                if (route.length() > 0) {
+                    route.append(", then ");
+                }
+                route.append(leg.train.id).append(' ').append(leg.from.name).append(" -> ").append(leg.to.name);
+            }
+            Station risk = service.transferAtRisk(itinerary, date);
+            rows.add(new String[] {
+                    route.toString(),
+                    ServiceTime.format(itinerary.departure()),
+                    ServiceTime.format(itinerary.arrival),
+                    String.valueOf(itinerary.transfers()),
+                    risk == null ? "On time" : "At risk at " + risk.name
+            });
         }
+        return rows.toArray(new String[0][0]);
     }
 
     private static void createBookingPage() {
+        Train selectedTrain = session.selectedTrain;
+        String fromStation = session.fromStation;
+        String toStation = session.toStation;
+        String travelDate = session.travelDate;
+
         JFrame bookingFrame = new JFrame("Book Ticket - Pakistan Railways");
         bookingFrame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         bookingFrame.setSize(600, 700);
@@ -718,13 +499,28 @@ public class PakistanRailwaySystem {
         trainInfoPanel.setBorder(BorderFactory.createTitledBorder("Train Information"));
 
         JLabel trainNameLabel = new JLabel("Train: " + selectedTrain.name);
-        JLabel routeLabel = new JLabel("Route: " + fromStation + " to " + toStation);
+        int distance = getDistance(fromStation, toStation);
+        JLabel routeLabel = new JLabel("Route: " + fromStation + " to " + toStation
+                + (distance >= 0 ? " (" + distance + " km)" : ""));
         JLabel dateLabel = new JLabel("Date: " + travelDate);
 
         trainInfoPanel.add(trainNameLabel);
         trainInfoPanel.add(routeLabel);
         trainInfoPanel.add(dateLabel);
 
+        LiveDelays.Status delay = service.delay(selectedTrain, travelDate);
+        int fromStop = selectedTrain.stopIndex(service.station(fromStation));
+        int toStop = selectedTrain.stopIndex(service.station(toStation));
+        if (delay != null && fromStop >= 0 && toStop > fromStop) {
+            trainInfoPanel.setLayout(new GridLayout(4, 1, 10, 5));
+            JLabel runningLabel = new JLabel("Running " + ServiceTime.formatLateness(delay.reportedDelay) + " at "
+                    + selectedTrain.stops[delay.reportedStop].name + ": expected "
+                    + ServiceTime.format(delay.departure(fromStop)) + " - "
+                    + ServiceTime.format(delay.arrival(toStop)));
+            runningLabel.setForeground(new Color(153, 0, 0));
+            trainInfoPanel.add(runningLabel);
+        }
+
         // Passenger Details Panel
         JPanel passengerPanel = new JPanel(new GridLayout(0, 2, 10, 15));
         passengerPanel.setBorder(BorderFactory.createTitledBorder("Passenger Details"));
@@ -743,7 +539,7 @@ public class PakistanRailwaySystem {
         genderPanel.add(femaleButton);
 
         JLabel seatLabel = new JLabel("Seat Class:");
-        JComboBox<String> seatCombo = new JComboBox<>(new String[] { "Economy", "Business", "AC" });
+        JComboBox<String> seatCombo = new JComboBox<>(SeatClass.labels());
         seatCombo.addActionListener(e -> {
         });
 
@@ -751,7 +547,8 @@ public class PakistanRailwaySystem {
         JLabel priceValueLabel = new JLabel("Select seat class to see price");
         seatCombo.addActionListener(e -> {
             String selectedClass = (String) seatCombo.getSelectedItem();
-            priceValueLabel.setText("Rs. " + selectedTrain.seatPrices.get(selectedClass));
+            int fare = getFare(selectedTrain, fromStation, toStation, selectedClass);
+            priceValueLabel.setText(fare < 0 ? "No fare: part of this trip has no track" : "Rs. " + fare);
         });
 
         JLabel paymentLabel = new JLabel("Payment Method:");
@@ -792,13 +589,29 @@ public class PakistanRailwaySystem {
                 return;
             }
 
-            Booking booking = new Booking(
-                    selectedTrain, fromStation, toStation, travelDate,
-                    passengerName, gender, seatType, paymentInfo);
-            bookings.add(booking);
-            updateBookingFile();
-            bookingFrame.dispose();
-            createThankYouPage(booking);
+            confirmButton.setEnabled(false);
+            BackgroundIo.run(bookingFrame, "Saving booking...", false,
+                    progress -> service.book(session, selectedTrain, fromStation, toStation, travelDate,
+                            passengerName, gender, seatType, paymentInfo),
+                    booking -> {
+                        if (booking == null) {
+                            confirmButton.setEnabled(true);
+                            offerWaitlist(bookingFrame, selectedTrain, fromStation, toStation, travelDate,
+                                    passengerName, gender, seatType, paymentInfo);
+                            return;
+                        }
+                        bookingFrame.dispose();
+                        createThankYouPage(booking);
+                    },
+                    error -> {
+                        confirmButton.setEnabled(true);
+                        if (error instanceof IllegalArgumentException) {
+                            JOptionPane.showMessageDialog(bookingFrame, error.getMessage());
+                            return;
+                        }
+                        Metrics.logError("Could not save booking", error);
+                        JOptionPane.showMessageDialog(bookingFrame, "Could not save booking, please try again.");
+                    });
         });
 
         JButton backButton = new JButton("Back to Trains");
@@ -821,28 +634,35 @@ public class PakistanRailwaySystem {
         bookingFrame.setVisible(true);
     }
 
-    private static void updateBookingFile() {
-        try {
-            FileWriter writer = new FileWriter("pakistan_railway_bookings.txt", true);
-            for (Booking booking : bookings) {
-                writer.write(
-                        currentUser + "," +
-                                booking.bookingId + "," +
-                                booking.train.id + "," +
-                                booking.train.name + "," +
-                                booking.from + "," +
-                                booking.to + "," +
-                                booking.date + "," +
-                                booking.passengerName + "," +
-                                booking.gender + "," +
-                                booking.seatType + "," +
-                                booking.price + "," +
-                                booking.paymentInfo + "\n");
-            }
-            writer.close();
-        } catch (IOException e) {
-            e.printStackTrace();
+    private static void offerWaitlist(JFrame bookingFrame, Train train, String from, String to, String date,
+            String passengerName, String gender, String seatType, String paymentInfo) {
+        int waiting = service.waitlistLength(train, date, seatType);
+        int choice = JOptionPane.showConfirmDialog(bookingFrame,
+                seatType + " class is sold out on this train!\n" + waiting
+                        + " passenger(s) are already waiting. Join the waitlist?",
+                "Sold Out", JOptionPane.YES_NO_OPTION);
+        if (choice != JOptionPane.YES_OPTION) {
+            return;
         }
+        String user = session.user;
+        BackgroundIo.run(bookingFrame, "Joining waitlist...", false,
+                progress -> service.joinWaitlist(session, train, from, to, date, passengerName, gender, seatType,
+                        paymentInfo, 0),
+                entry -> {
+                    // Told whenever a cancellation gives this passenger a seat, whichever window is open then
+                    entry.promoted.thenAccept(booking -> SwingUtilities.invokeLater(() ->
+                            JOptionPane.showMessageDialog(null, "A seat has come free for " + booking.passengerName
+                                    + " (" + user + ").\nBooking ID: " + booking.bookingId + ", seat "
+                                    + booking.seatNumber + ". It is now under My Bookings.")));
+                    if (!entry.promoted.isDone()) {
+                        JOptionPane.showMessageDialog(bookingFrame, passengerName
+                                + " is on the waitlist. You will be told here when a seat comes free.");
+                    }
+                },
+                error -> {
+                    Metrics.logError("Could not join the waitlist", error);
+                    JOptionPane.showMessageDialog(bookingFrame, "Could not join the waitlist, please try again.");
+                });
     }
 
     private static void viewBookings() {
@@ -864,47 +684,74 @@ public class PakistanRailwaySystem {
         JPanel mainPanel = new JPanel(new BorderLayout());
         mainPanel.setBorder(BorderFactory.createEmptyBorder(20, 20, 20, 20));
 
-        // Read bookings from file
-        List<String[]> bookingData = new ArrayList<>();
-        try {
-            Scanner scanner = new Scanner(new java.io.File("pakistan_railway_bookings.txt"));
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                String[] parts = line.split(",");
-                if (parts.length >= 12 && parts[0].equals(currentUser)) {
-                    bookingData.add(parts);
-                }
-            }
-            scanner.close();
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
+        JLabel loadingLabel = new JLabel("Loading bookings...", SwingConstants.CENTER);
+        mainPanel.add(loadingLabel, BorderLayout.CENTER);
 
-        String[] column = { "Booking ID", "Train", "From", "To", "Date", "Passenger", "Class", "Price", "Payment" };
-        String[][] data = new String[bookingData.size()][column.length];
-
-        for (int i = 0; i < bookingData.size(); i++) {
-            String[] booking = bookingData.get(i);
-            data[i][0] = booking[1]; // Booking ID
-            data[i][1] = booking[3]; // Train name
-            data[i][2] = booking[4]; // From
-            data[i][3] = booking[5]; // To
-            data[i][4] = booking[6]; // Date
-            data[i][5] = booking[7]; // Passenger
-            data[i][6] = booking[9]; // Class
-            data[i][7] = "Rs. " + booking[10]; // Price
-            data[i][8] = booking[11]; // Payment
-        }
+        bookingsFrame.add(headerPanel, BorderLayout.NORTH);
+        bookingsFrame.add(mainPanel, BorderLayout.CENTER);
+        bookingsFrame.setVisible(true);
 
-        JTable bookingsTable = new JTable(data, column) {
-            public boolean isCellEditable(int row, int column) {
-                return false;
+        // Only the offsets of this user's bookings are read up front; rows are decoded as they scroll into view
+        BackgroundIo.Task<BookingStore.Rows> load = BackgroundIo.run(bookingsFrame, "Loading bookings...", true,
+                progress -> service.bookingRows(session, progress),
+                rows -> {
+                    mainPanel.remove(loadingLabel);
+                    showBookings(bookingsFrame, mainPanel, new BookingTableModel(service, session, rows));
+                },
+                error -> {
+                    Metrics.logError("Could not load bookings", error);
+                    loadingLabel.setText("Could not load bookings");
+                });
+        load.result.whenComplete((records, error) -> SwingUtilities.invokeLater(() -> {
+            // Cancelled from the progress dialog: go back instead of leaving an empty page
+            if (load.isCancelled() && bookingsFrame.isDisplayable()) {
+                bookingsFrame.dispose();
+                createMainMenu();
             }
-        };
+        }));
+        bookingsFrame.addWindowListener(new java.awt.event.WindowAdapter() {
+            @Override
+            public void windowClosed(java.awt.event.WindowEvent e) {
+                load.cancel();
+            }
+        });
+    }
+
+    private static void showBookings(JFrame bookingsFrame, JPanel mainPanel, BookingTableModel model) {
+        // No row sorter: it would read every row; the model sorts and filters on its own view instead
+        JTable bookingsTable = new JTable(model);
         bookingsTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        bookingsTable.getTableHeader().setReorderingAllowed(false);
+        bookingsTable.getTableHeader().addMouseListener(new java.awt.event.MouseAdapter() {
+            @Override
+            public void mouseClicked(java.awt.event.MouseEvent e) {
+                int column = bookingsTable.columnAtPoint(e.getPoint());
+                if (column >= 0) {
+                    model.sortBy(bookingsTable.convertColumnIndexToModel(column));
+                }
+            }
+        });
+        bookingsFrame.addWindowListener(new java.awt.event.WindowAdapter() {
+            @Override
+            public void windowClosed(java.awt.event.WindowEvent e) {
+                model.dispose();
+            }
+        });
 
         JScrollPane scrollPane = new JScrollPane(bookingsTable);
 
+        // Filter Panel
+        JPanel filterPanel = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        JTextField filterField = new JTextField(20);
+        JLabel countLabel = new JLabel(model.totalCount() + " bookings");
+        filterField.addActionListener(e -> model.filter(filterField.getText()));
+        model.addTableModelListener(e -> countLabel.setText(model.getRowCount() == model.totalCount()
+                ? model.totalCount() + " bookings"
+                : model.getRowCount() + " of " + model.totalCount() + " bookings"));
+        filterPanel.add(new JLabel("Filter:"));
+        filterPanel.add(filterField);
+        filterPanel.add(countLabel);
+
         // Button Panel
         JPanel buttonPanel = new JPanel(new FlowLayout(FlowLayout.CENTER));
         JButton backButton = new JButton("Back to Menu");
@@ -919,16 +766,28 @@ public class PakistanRailwaySystem {
         cancelButton.setForeground(Color.WHITE);
         cancelButton.addActionListener(e -> {
             int selectedRow = bookingsTable.getSelectedRow();
-            if (selectedRow >= 0) {
-                String bookingId = (String) bookingsTable.getValueAt(selectedRow, 0); 
+            String bookingId = selectedRow >= 0 ? model.bookingId(selectedRow) : null;
+            if (bookingId != null) {
                 int confirm = JOptionPane.showConfirmDialog(bookingsFrame,
                         "Are you sure you want to cancel booking ID: " + bookingId + "?",
                         "Confirm Cancellation", JOptionPane.YES_NO_OPTION);
                 if (confirm == JOptionPane.YES_OPTION) {
-                    cancelBooking(bookingId);
-                    bookingsFrame.dispose();
-                    viewBookings(); 
+                    cancelButton.setEnabled(false);
+                    BackgroundIo.run(bookingsFrame, "Cancelling booking...", false,
+                            progress -> service.cancel(session, bookingId),
+                            cancelled -> {
+                                bookingsFrame.dispose();
+                                viewBookings();
+                            },
+                            error -> {
+                                Metrics.logError("Could not cancel booking " + bookingId, error);
+                                cancelButton.setEnabled(true);
+                                JOptionPane.showMessageDialog(bookingsFrame, "Could not cancel booking, please try again.");
+                            });
                 }
+            } else if (selectedRow >= 0) {
+                // bookingId() has started reading the row's page
+                JOptionPane.showMessageDialog(bookingsFrame, "That booking is still loading, please try again in a moment.");
             } else {
                 JOptionPane.showMessageDialog(bookingsFrame, "Please select a booking to cancel.");
             }
@@ -936,41 +795,16 @@ public class PakistanRailwaySystem {
 
         buttonPanel.add(cancelButton);
 
-        if (bookingData.isEmpty()) {
+        if (model.totalCount() == 0) {
             mainPanel.add(new JLabel("No bookings found", SwingConstants.CENTER), BorderLayout.CENTER);
         } else {
+            mainPanel.add(filterPanel, BorderLayout.NORTH);
             mainPanel.add(scrollPane, BorderLayout.CENTER);
         }
 
         mainPanel.add(buttonPanel, BorderLayout.SOUTH);
-
-        bookingsFrame.add(headerPanel, BorderLayout.NORTH);
-        bookingsFrame.add(mainPanel, BorderLayout.CENTER);
-        bookingsFrame.setVisible(true);
-
-    }
-
-    private static void cancelBooking(String bookingId) {
-        List<String> updatedBookings = new ArrayList<>();
-
-        try (Scanner scanner = new Scanner(new java.io.File("pakistan_railway_bookings.txt"))) {
-            while (scanner.hasNextLine()) {
-                String line = scanner.nextLine();
-                if (!line.contains(bookingId)) {
-                    updatedBookings.add(line); 
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-
-        try (FileWriter writer = new FileWriter("pakistan_railway_bookings.txt", false)) {
-            for (String updatedLine : updatedBookings) {
-                writer.write(updatedLine + "\n");
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        mainPanel.revalidate();
+        mainPanel.repaint();
     }
 
     private static void createThankYouPage(Booking booking) {
@@ -1013,6 +847,7 @@ public class PakistanRailwaySystem {
         detailsPanel.add(new JLabel("Passenger: " + booking.passengerName));
         detailsPanel.add(new JLabel("Gender: " + booking.gender));
         detailsPanel.add(new JLabel("Class: " + booking.seatType));
+        detailsPanel.add(new JLabel("Seat: " + booking.seatNumber));
         detailsPanel.add(new JLabel("Price: Rs. " + booking.price));
         detailsPanel.add(new JLabel("Payment: " + booking.paymentInfo));
 
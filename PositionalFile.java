@@ -0,0 +1,39 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Reads the first 'size' bytes of a file with positional reads on a channel
+ * that is shared and stays open, for lookups of a few records at a time. No
+ * mapping is made, so nothing is left for the garbage collector to unmap, and
+ * on Windows the file can still be renamed over or truncated as soon as the
+ * channel is closed. The channel belongs to the caller.
+ */
+class PositionalFile implements RecordFile {
+    private final FileChannel channel;
+    private final long size;
+
+    PositionalFile(FileChannel channel, long size) {
+        this.channel = channel;
+        this.size = size;
+    }
+
+    @Override
+    public long size() {
+        return size;
+    }
+
+    @Override
+    public void read(long position, byte[] into, int offset, int length) throws IOException {
+        if (position < 0 || position + length > size) {
+            throw new EOFException("Read past the end of the file at " + position);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(into, offset, length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - offset) < 0) {
+                throw new EOFException("Read past the end of the file at " + (position + buffer.position() - offset));
+            }
+        }
+    }
+}
@@ -0,0 +1,850 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * JSON API over BookingService for counters and kiosks, on the JDK's built-in
+ * HTTP server. Every exchange runs on its own virtual thread, so a request
+ * that waits on the journal's group commit costs no platform thread.
+ *
+ *   GET    /api/stations
+ *   GET    /api/search?from=&to=[&date=dd/MM/yyyy]   with a date, only trains
+ *                                    running that day, expected times and
+ *                                    connections at risk from running delays
+ *   POST   /api/bookings            {["user",] "train", "from", "to", "date",
+ *                                    "passenger", "gender", "seatClass", "payment"
+ *                                    [, "waitlist": true [, "priority"]]}
+ *   POST   /api/bookings/group      {["user",] "train", "from", "to", "date", "payment",
+ *                                    "passengers": [{"passenger", "gender", "seatClass"}, ...]}
+ *                                    all seats or none, written in one go
+ *   POST   /api/bookings/import     CSV with the POST /api/bookings fields as header row;
+ *                                    streamed, no size limit (see BookingImporter); admin
+ *   GET    /api/bookings[?user=]
+ *   GET    /api/bookings/{id}[?user=]
+ *   DELETE /api/bookings/{id}[?user=]
+ *   GET    /api/analytics[?limit=]    totals, payment methods and top routes by revenue
+ *   GET    /api/analytics/service?train=&date=&class=
+ *   POST   /api/analytics/rebuild     recompute from the bookings file; admin
+ *   POST   /api/delays              {"train", "date", "station", "minutes"}; admin
+ *   GET    /api/delays?train=&date=   expected times at every stop of that run
+ *   GET    /api/cache               hit, miss and eviction counts of the search caches
+ *
+ * At most maxConcurrency requests are handled at once. A request that cannot get
+ * a permit within the queue timeout gets 503 with Retry-After instead of piling
+ * up behind the others. Every response has a Content-Length and request bodies
+ * are always drained, so HTTP/1.1 clients keep their connections open.
+ *
+ * The bookings endpoints act for the user signed in with HTTP Basic
+ * authentication, with the same user names and passwords as the desktop app;
+ * a "user" given as well must be that user, or the answer is 403.
+ *
+ * Settings (system properties): railway.http.port (8080), railway.http.backlog
+ * (1024), railway.http.maxConcurrency (512), railway.http.queueTimeoutMillis
+ * (100), railway.http.adminToken. Admin endpoints need the header
+ * "Authorization: Bearer <adminToken>"; with no token set they only answer
+ * clients on the same machine. The JDK's sun.net.httpserver.maxIdleConnections controls how many idle
+ * keep-alive connections are kept; it is raised to 1000 unless set. Headers and
+ * body go out as separate writes, so sun.net.httpserver.nodelay defaults to true;
+ * with Nagle on, each keep-alive response waits for the client's delayed ACK.
+ */
+class RailwayHttpServer {
+    private static final int MAX_BODY_BYTES = 16 * 1024;
+    private static final String[] BOOKING_FIELDS = {
+            "train", "from", "to", "date", "passenger", "gender", "seatClass", "payment"
+    };
+    private static final String[] GROUP_FIELDS = { "train", "from", "to", "date", "payment" };
+    private static final String[] PASSENGER_FIELDS = { "passenger", "gender", "seatClass" };
+
+    private final BookingService service;
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+    private final Semaphore permits;
+    private final long queueTimeoutMillis;
+    private final byte[] adminToken; // null: admin endpoints are for loopback clients only
+
+    RailwayHttpServer(BookingService service, InetSocketAddress address, int backlog, int maxConcurrency,
+            long queueTimeoutMillis) throws IOException {
+        // Read once by the JDK server, so they only take effect before its first use
+        if (System.getProperty("sun.net.httpserver.maxIdleConnections") == null) {
+            System.setProperty("sun.net.httpserver.maxIdleConnections", "1000");
+        }
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        this.service = service;
+        this.permits = new Semaphore(maxConcurrency);
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        String token = System.getProperty("railway.http.adminToken");
+        this.adminToken = token == null || token.isEmpty() ? null : token.getBytes(StandardCharsets.UTF_8);
+        server = HttpServer.create(address, backlog);
+        server.setExecutor(executor);
+        server.createContext("/api/", this::handle);
+    }
+
+    void start() {
+        server.start();
+    }
+
+    // Stops accepting, gives in-flight exchanges up to delaySeconds to finish
+    void stop(int delaySeconds) {
+        server.stop(delaySeconds);
+        executor.shutdown();
+    }
+
+    InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    public static void main(String[] args) {
+        BookingService service;
+        try {
+            BookingFileConverter.migrate(Paths.get(PakistanRailwaySystem.LEGACY_BOOKINGS_FILE),
+                    Paths.get(PakistanRailwaySystem.BOOKINGS_FILE));
+            service = BookingService.open(Timetable.configured(),
+                    Paths.get(PakistanRailwaySystem.BOOKINGS_FILE));
+        } catch (IOException e) {
+            Metrics.logError("Could not load the timetable or open " + PakistanRailwaySystem.BOOKINGS_FILE, e);
+            return;
+        }
+        Metrics.start();
+        RailwayHttpServer api;
+        try {
+            api = new RailwayHttpServer(service,
+                    new InetSocketAddress(Integer.getInteger("railway.http.port", 8080)),
+                    Integer.getInteger("railway.http.backlog", 1024),
+                    Integer.getInteger("railway.http.maxConcurrency", 512),
+                    Long.getLong("railway.http.queueTimeoutMillis", 100L));
+        } catch (IOException e) {
+            Metrics.logError("Could not start the HTTP server", e);
+            closeQuietly(service);
+            return;
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            api.stop(1);
+            closeQuietly(service);
+        }, "http-shutdown"));
+        api.start();
+        Metrics.logInfo("Pakistan Railways API listening on " + api.getAddress());
+    }
+
+    private static void closeQuietly(BookingService service) {
+        try {
+            service.close();
+        } catch (IOException e) {
+            Metrics.logError("Could not close the booking store", e);
+        }
+    }
+
+    // Timed from arrival, so time spent waiting for a permit counts too
+    private void handle(HttpExchange exchange) throws IOException {
+        long started = System.nanoTime();
+        try (exchange) {
+            boolean admitted;
+            try {
+                admitted = permits.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (!admitted) {
+                Metrics.Counter.HTTP_REJECTED.increment();
+                drain(exchange);
+                exchange.getResponseHeaders().set("Retry-After", "1");
+                sendError(exchange, 503, "Server busy, try again");
+                return;
+            }
+            try {
+                route(exchange);
+            } finally {
+                permits.release();
+            }
+        } finally {
+            Metrics.Timer.HTTP_REQUEST.recordSince(started);
+        }
+    }
+
+    private void route(HttpExchange exchange) throws IOException {
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath();
+        Map<String, String> query = parseQuery(exchange.getRequestURI().getRawQuery());
+        try {
+            if (path.equals("/api/bookings/import")) {
+                // Streamed instead of read up front, since an import is not held to MAX_BODY_BYTES
+                if (!method.equals("POST")) {
+                    drain(exchange);
+                }
+                requireMethod(method, "POST");
+                requireAdmin(exchange);
+                importBookings(exchange);
+                return;
+            }
+            // Read up front so every path leaves the connection reusable
+            String body = readBody(exchange);
+            if (path.equals("/api/stations")) {
+                requireMethod(method, "GET");
+                stations(exchange);
+            } else if (path.equals("/api/search")) {
+                requireMethod(method, "GET");
+                search(exchange, query);
+            } else if (path.equals("/api/bookings")) {
+                if (method.equals("POST")) {
+                    book(exchange, body);
+                } else {
+                    requireMethod(method, "GET");
+                    listBookings(exchange, query);
+                }
+            } else if (path.equals("/api/bookings/group")) {
+                requireMethod(method, "POST");
+                bookGroup(exchange, body);
+            } else if (path.startsWith("/api/bookings/") && path.length() > "/api/bookings/".length()) {
+                String bookingId = path.substring("/api/bookings/".length());
+                if (method.equals("DELETE")) {
+                    cancel(exchange, bookingId, query);
+                } else {
+                    requireMethod(method, "GET");
+                    lookup(exchange, bookingId, query);
+                }
+            } else if (path.equals("/api/analytics")) {
+                requireMethod(method, "GET");
+                analytics(exchange, query);
+            } else if (path.equals("/api/analytics/service")) {
+                requireMethod(method, "GET");
+                serviceAnalytics(exchange, query);
+            } else if (path.equals("/api/analytics/rebuild")) {
+                requireMethod(method, "POST");
+                requireAdmin(exchange);
+                long started = System.nanoTime();
+                service.rebuildAnalytics();
+                send(exchange, 200, Json.writer().beginObject()
+                        .field("millis", (System.nanoTime() - started) / 1_000_000).endObject());
+            } else if (path.equals("/api/cache")) {
+                requireMethod(method, "GET");
+                cacheStats(exchange);
+            } else if (path.equals("/api/delays")) {
+                if (method.equals("POST")) {
+                    requireAdmin(exchange);
+                    reportDelay(exchange, body);
+                } else {
+                    requireMethod(method, "GET");
+                    delays(exchange, query);
+                }
+            } else {
+                sendError(exchange, 404, "No such endpoint");
+            }
+        } catch (MethodNotAllowed e) {
+            exchange.getResponseHeaders().set("Allow", e.getMessage());
+            sendError(exchange, 405, "Use " + e.getMessage());
+        } catch (Unauthorized e) {
+            exchange.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"Pakistan Railways\", charset=\"UTF-8\"");
+            sendError(exchange, 401, e.getMessage());
+        } catch (Forbidden e) {
+            sendError(exchange, 403, e.getMessage());
+        } catch (IllegalArgumentException e) {
+            sendError(exchange, 400, e.getMessage());
+        } catch (TimetableFiles.CsvReader.Malformed e) {
+            // Rows read before the fault are booked; the rest of the body is not read
+            sendError(exchange, 400, e.getMessage());
+        } catch (IOException e) {
+            Metrics.logError(method + " " + path + " failed", e);
+            sendError(exchange, 500, "Booking store unavailable");
+        } catch (RuntimeException e) {
+            Metrics.logError(method + " " + path + " failed", e);
+            sendError(exchange, 500, "Internal error");
+        }
+    }
+
+    private void stations(HttpExchange exchange) throws IOException {
+        Json.Writer json = Json.writer().beginObject().name("stations").beginArray();
+        for (String name : service.stationNames()) {
+            json.value(name);
+        }
+        send(exchange, 200, json.endArray().endObject());
+    }
+
+    private void search(HttpExchange exchange, Map<String, String> query) throws IOException {
+        String from = requireStation(query, "from");
+        String to = requireStation(query, "to");
+        String date = query.get("date");
+        if (date != null) {
+            requireDate(date);
+        }
+
+        Json.Writer json = Json.writer().beginObject()
+                .field("from", from)
+                .field("to", to)
+                .field("distanceKm", service.distance(from, to));
+        // One cached answer per class; the times are the same in all of them
+        SeatClass[] classes = SeatClass.values();
+        SearchResult[] results = new SearchResult[classes.length];
+        for (int c = 0; c < classes.length; c++) {
+            results[c] = service.search(from, to, date, classes[c]);
+        }
+        SearchResult times = results[0];
+        json.name("trains").beginArray();
+        for (int i = 0; i < times.routes.length; i++) {
+            RouteIndex.RouteEntry route = times.routes[i];
+            json.beginObject()
+                    .field("id", route.train.id)
+                    .field("name", route.train.name)
+                    .field("departure", ServiceTime.format(route.departure))
+                    .field("arrival", ServiceTime.format(route.arrival))
+                    .field("duration", ServiceTime.formatDuration(times.arrivals[i] - times.departures[i]));
+            if (times.departures[i] != route.departure || times.arrivals[i] != route.arrival) {
+                json.field("expectedDeparture", ServiceTime.format(times.departures[i]))
+                        .field("expectedArrival", ServiceTime.format(times.arrivals[i]));
+            }
+            json.name("classes").beginArray();
+            for (SearchResult result : results) {
+                json.beginObject().field("class", result.seatClass.label);
+                if (result.fares[i] < 0) {
+                    json.field("fare", (String) null); // part of the way has no track
+                } else {
+                    json.field("fare", result.fares[i]);
+                }
+                if (result.seatsLeft != null) {
+                    json.field("seatsLeft", result.seatsLeft[i]);
+                }
+                json.endObject();
+            }
+            json.endArray().endObject();
+        }
+        json.endArray();
+
+        json.name("connections").beginArray();
+        for (JourneyPlanner.Itinerary itinerary : service.connections(from, to, date, 0, 3)) {
+            if (itinerary.transfers() == 0) {
+                continue; // already listed under trains
+            }
+            json.beginObject()
+                    .field("departure", ServiceTime.format(itinerary.departure()))
+                    .field("arrival", ServiceTime.format(itinerary.arrival))
+                    .field("changes", itinerary.transfers());
+            Station risk = service.transferAtRisk(itinerary, date);
+            if (risk != null) {
+                json.field("atRiskAt", risk.name);
+            }
+            json.name("legs").beginArray();
+            for (JourneyPlanner.Leg leg : itinerary.legs) {
+                json.beginObject()
+                        .field("train", leg.train.id)
+                        .field("from", leg.from.name)
+                        .field("to", leg.to.name)
+                        .field("departure", ServiceTime.format(leg.departure))
+                        .field("arrival", ServiceTime.format(leg.arrival))
+                        .endObject();
+            }
+            json.endArray().endObject();
+        }
+        send(exchange, 200, json.endArray().endObject());
+    }
+
+    private void book(HttpExchange exchange, String requestBody) throws IOException {
+        Map<String, String> body = Json.parseFlatObject(requestBody);
+        requireFields(body, BOOKING_FIELDS);
+        Train train = requireTrain(body);
+        requireStation(body, "from");
+        requireStation(body, "to");
+        requireDate(body.get("date"));
+        String seatClass = SeatClass.fromLabel(body.get("seatClass")).label;
+
+        BookingSession session = service.openSession(requireUser(exchange, body.get("user")));
+        try {
+            Booking booking = service.book(session, train, body.get("from"), body.get("to"), body.get("date"),
+                    body.get("passenger"), body.get("gender"), seatClass, body.get("payment"));
+            if (booking == null && "true".equals(body.get("waitlist"))) {
+                Waitlist.Entry entry = service.joinWaitlist(session, train, body.get("from"), body.get("to"),
+                        body.get("date"), body.get("passenger"), body.get("gender"), seatClass, body.get("payment"),
+                        priority(body.get("priority")));
+                booking = entry.promoted.getNow(null);
+                if (booking == null) {
+                    // The booking shows up under GET /api/bookings once a cancellation frees a seat
+                    send(exchange, 202, Json.writer().beginObject()
+                            .field("waitlisted", true)
+                            .field("waiting", service.waitlistLength(train, body.get("date"), seatClass))
+                            .endObject());
+                    return;
+                }
+            }
+            if (booking == null) {
+                sendError(exchange, 409, seatClass + " class is sold out on this train");
+                return;
+            }
+            Json.Writer json = Json.writer().beginObject()
+                    .field("bookingId", booking.bookingId)
+                    .field("train", booking.train.id)
+                    .field("trainName", booking.train.name)
+                    .field("from", booking.from)
+                    .field("to", booking.to)
+                    .field("date", booking.date)
+                    .field("passenger", booking.passengerName)
+                    .field("gender", booking.gender)
+                    .field("seatClass", booking.seatType)
+                    .field("seat", booking.seatNumber)
+                    .field("price", booking.price)
+                    .field("payment", booking.paymentInfo)
+                    .endObject();
+            exchange.getResponseHeaders().set("Location", "/api/bookings/" + booking.bookingId);
+            send(exchange, 201, json);
+        } finally {
+            service.closeSession(session);
+        }
+    }
+
+    private void bookGroup(HttpExchange exchange, String requestBody) throws IOException {
+        List<Map<String, String>> listed = new ArrayList<>();
+        Map<String, String> body = Json.parseFlatObject(requestBody, "passengers", listed);
+        requireFields(body, GROUP_FIELDS);
+        if (listed.isEmpty()) {
+            throw new IllegalArgumentException("Missing 'passengers'");
+        }
+        List<BookingService.Passenger> passengers = new ArrayList<>(listed.size());
+        for (Map<String, String> passenger : listed) {
+            requireFields(passenger, PASSENGER_FIELDS);
+            passengers.add(new BookingService.Passenger(passenger.get("passenger"), passenger.get("gender"),
+                    SeatClass.fromLabel(passenger.get("seatClass")).label));
+        }
+        Train train = requireTrain(body);
+        requireStation(body, "from");
+        requireStation(body, "to");
+        requireDate(body.get("date"));
+
+        BookingSession session = service.openSession(requireUser(exchange, body.get("user")));
+        try {
+            List<Booking> bookings = service.bookGroup(session, train, body.get("from"), body.get("to"),
+                    body.get("date"), passengers, body.get("payment"));
+            if (bookings == null) {
+                sendError(exchange, 409, "Not enough seats left on this train for the whole group");
+                return;
+            }
+            long total = 0;
+            Json.Writer json = Json.writer().beginObject()
+                    .field("train", train.id)
+                    .field("trainName", train.name)
+                    .field("from", body.get("from"))
+                    .field("to", body.get("to"))
+                    .field("date", body.get("date"))
+                    .name("bookings").beginArray();
+            for (Booking booking : bookings) {
+                json.beginObject()
+                        .field("bookingId", booking.bookingId)
+                        .field("passenger", booking.passengerName)
+                        .field("gender", booking.gender)
+                        .field("seatClass", booking.seatType)
+                        .field("seat", booking.seatNumber)
+                        .field("price", booking.price)
+                        .endObject();
+                total += booking.price;
+            }
+            send(exchange, 201, json.endArray().field("total", total).field("payment", body.get("payment"))
+                    .endObject());
+        } finally {
+            service.closeSession(session);
+        }
+    }
+
+    private void importBookings(HttpExchange exchange) throws IOException {
+        BookingImporter.Result result;
+        try (TimetableFiles.CsvReader csv = TimetableFiles.CsvReader.read("request body",
+                new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8))) {
+            result = BookingImporter.importFrom(service, csv);
+        }
+        Json.Writer json = Json.writer().beginObject()
+                .field("imported", result.imported())
+                .field("soldOut", result.soldOut())
+                .field("rejected", result.rejected())
+                .name("problems").beginArray();
+        for (String problem : result.problems()) {
+            json.value(problem);
+        }
+        send(exchange, 200, json.endArray().endObject());
+    }
+
+    private void listBookings(HttpExchange exchange, Map<String, String> query) throws IOException {
+        BookingSession session = service.openSession(requireUser(exchange, query.get("user")));
+        try {
+            List<String[]> rows = service.bookings(session, IoProgress.NONE);
+            Json.Writer json = Json.writer().beginObject().name("bookings").beginArray();
+            for (String[] row : rows) {
+                writeRecord(json, row);
+            }
+            send(exchange, 200, json.endArray().endObject());
+        } finally {
+            service.closeSession(session);
+        }
+    }
+
+    private void lookup(HttpExchange exchange, String bookingId, Map<String, String> query) throws IOException {
+        BookingSession session = service.openSession(requireUser(exchange, query.get("user")));
+        try {
+            String[] row = service.lookup(session, bookingId);
+            if (row == null) {
+                sendError(exchange, 404, "No live booking " + bookingId + " for this user");
+                return;
+            }
+            send(exchange, 200, writeRecord(Json.writer(), row));
+        } finally {
+            service.closeSession(session);
+        }
+    }
+
+    private void cancel(HttpExchange exchange, String bookingId, Map<String, String> query) throws IOException {
+        BookingSession session = service.openSession(requireUser(exchange, query.get("user")));
+        try {
+            if (!service.cancel(session, bookingId)) {
+                sendError(exchange, 404, "No live booking " + bookingId + " for this user");
+                return;
+            }
+            send(exchange, 200, Json.writer().beginObject()
+                    .field("bookingId", bookingId)
+                    .field("cancelled", true)
+                    .endObject());
+        } finally {
+            service.closeSession(session);
+        }
+    }
+
+    private void analytics(HttpExchange exchange, Map<String, String> query) throws IOException {
+        int limit = 10;
+        if (query.containsKey("limit")) {
+            try {
+                limit = Math.max(0, Integer.parseInt(query.get("limit")));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("'limit' must be a number");
+            }
+        }
+        BookingAnalytics analytics = service.analytics();
+        Json.Writer json = Json.writer().beginObject().name("total");
+        writeSummary(json, analytics.total(), false);
+        json.name("payments").beginObject();
+        for (Map.Entry<String, BookingAnalytics.Summary> payment : analytics.payments().entrySet()) {
+            writeSummary(json.name(payment.getKey()), payment.getValue(), false);
+        }
+        json.endObject();
+        json.name("topRoutes").beginArray();
+        for (Map.Entry<BookingAnalytics.RouteKey, BookingAnalytics.Summary> route : analytics.topRoutes(limit)) {
+            json.beginObject()
+                    .field("from", route.getKey().from())
+                    .field("to", route.getKey().to())
+                    .name("figures");
+            writeSummary(json, route.getValue(), false);
+            json.endObject();
+        }
+        send(exchange, 200, json.endArray().endObject());
+    }
+
+    private void serviceAnalytics(HttpExchange exchange, Map<String, String> query) throws IOException {
+        String train = query.get("train");
+        if (train == null || service.train(train) == null) {
+            throw new IllegalArgumentException("Unknown train in 'train'");
+        }
+        String date = query.get("date");
+        if (date == null) {
+            throw new IllegalArgumentException("Missing 'date'");
+        }
+        requireDate(date);
+        String seatClass = query.get("class");
+        if (seatClass == null) {
+            throw new IllegalArgumentException("Missing 'class'");
+        }
+        SeatClass.fromLabel(seatClass);
+        Json.Writer json = Json.writer().beginObject()
+                .field("train", train)
+                .field("date", date)
+                .field("class", seatClass)
+                .name("figures");
+        writeSummary(json, service.analytics().service(train, date, seatClass), true);
+        send(exchange, 200, json.endObject());
+    }
+
+    private static Json.Writer writeSummary(Json.Writer json, BookingAnalytics.Summary summary,
+            boolean withLoadFactor) {
+        json.beginObject()
+                .field("bookings", summary.bookings())
+                .field("cancelled", summary.cancelled())
+                .field("cancellationRate", summary.cancellationRate())
+                .field("revenue", summary.revenue());
+        if (withLoadFactor) {
+            json.field("loadFactor", summary.loadFactor());
+        }
+        return json.endObject();
+    }
+
+    // Same fields as the booking file record; see BookingService.toRecord
+    private static Json.Writer writeRecord(Json.Writer json, String[] row) {
+        return json.beginObject()
+                .field("bookingId", row[1])
+                .field("train", row[2])
+                .field("trainName", row[3])
+                .field("from", row[4])
+                .field("to", row[5])
+                .field("date", row[6])
+                .field("passenger", row[7])
+                .field("gender", row[8])
+                .field("seatClass", row[9])
+                .field("seat", row.length >= 13 ? Long.parseLong(row[12]) : -1)
+                .field("price", Long.parseLong(row[10]))
+                .field("payment", row[11])
+                .endObject();
+    }
+
+    private void cacheStats(HttpExchange exchange) throws IOException {
+        Json.Writer json = Json.writer().beginObject();
+        for (Map.Entry<String, SearchCache.Stats> cache : service.cacheStats().entrySet()) {
+            SearchCache.Stats stats = cache.getValue();
+            json.name(cache.getKey()).beginObject()
+                    .field("hits", stats.hits())
+                    .field("misses", stats.misses())
+                    .field("stale", stats.stale())
+                    .field("evictions", stats.evictions())
+                    .field("hitRate", stats.hitRate())
+                    .field("size", stats.size())
+                    .field("capacity", stats.capacity())
+                    .endObject();
+        }
+        send(exchange, 200, json.endObject());
+    }
+
+    private void reportDelay(HttpExchange exchange, String requestBody) throws IOException {
+        Map<String, String> body = Json.parseFlatObject(requestBody);
+        Train train = requireTrain(body);
+        String date = body.get("date");
+        if (date == null) {
+            throw new IllegalArgumentException("Missing 'date'");
+        }
+        requireDate(date);
+        String station = requireStation(body, "station");
+        int minutes;
+        try {
+            minutes = Integer.parseInt(String.valueOf(body.get("minutes")));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("'minutes' must be a whole number");
+        }
+        boolean applied = service.reportDelay(train, date, station, minutes);
+        // 409 for a report overtaken by one from a later stop, so feeds can tell it was dropped
+        send(exchange, applied ? 200 : 409, writeRun(Json.writer(), train, date,
+                service.delay(train, date)).field("applied", applied).endObject());
+    }
+
+    private void delays(HttpExchange exchange, Map<String, String> query) throws IOException {
+        Train train = requireTrain(query);
+        String date = query.get("date");
+        if (date == null) {
+            throw new IllegalArgumentException("Missing 'date'");
+        }
+        requireDate(date);
+        send(exchange, 200, writeRun(Json.writer(), train, date, service.delay(train, date)).endObject());
+    }
+
+    // Leaves the object open; a run with no reports shows the printed times
+    private static Json.Writer writeRun(Json.Writer json, Train train, String date, LiveDelays.Status delay) {
+        json.beginObject()
+                .field("train", train.id)
+                .field("date", date);
+        if (delay != null) {
+            json.field("reportedAt", train.stops[delay.reportedStop].name)
+                    .field("delay", delay.reportedDelay);
+        }
+        json.name("stops").beginArray();
+        for (int stop = 0; stop < train.stopCount(); stop++) {
+            json.beginObject()
+                    .field("station", train.stops[stop].name)
+                    .field("arrival", ServiceTime.format(train.arrivals[stop]))
+                    .field("departure", ServiceTime.format(train.departures[stop]))
+                    .field("expectedArrival", ServiceTime.format(
+                            delay == null ? train.arrivals[stop] : delay.arrival(stop)))
+                    .field("expectedDeparture", ServiceTime.format(
+                            delay == null ? train.departures[stop] : delay.departure(stop)))
+                    .endObject();
+        }
+        return json.endArray();
+    }
+
+    private static int priority(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("'priority' must be a whole number");
+        }
+    }
+
+    private static void requireFields(Map<String, String> values, String[] fields) {
+        for (String field : fields) {
+            String value = values.get(field);
+            if (value == null || value.isBlank()) {
+                throw new IllegalArgumentException("Missing '" + field + "'");
+            }
+            requireRecordSafe(field, value);
+        }
+    }
+
+    private static void requireMethod(String method, String allowed) {
+        if (!method.equals(allowed)) {
+            throw new MethodNotAllowed(allowed);
+        }
+    }
+
+    // Compared in constant time, so the token cannot be guessed byte by byte from response times
+    private void requireAdmin(HttpExchange exchange) {
+        if (adminToken == null) {
+            if (!exchange.getRemoteAddress().getAddress().isLoopbackAddress()) {
+                throw new Forbidden("Only allowed from the server itself");
+            }
+            return;
+        }
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        byte[] given = authorization != null && authorization.startsWith("Bearer ")
+                ? authorization.substring("Bearer ".length()).getBytes(StandardCharsets.UTF_8)
+                : new byte[0];
+        if (!MessageDigest.isEqual(given, adminToken)) {
+            throw new Forbidden("Needs the admin token");
+        }
+    }
+
+    private String requireStation(Map<String, String> values, String name) {
+        String station = values.get(name);
+        if (station == null || service.station(station) == null) {
+            throw new IllegalArgumentException("Unknown station in '" + name + "'");
+        }
+        return station;
+    }
+
+    private Train requireTrain(Map<String, String> values) {
+        Train train = values.get("train") == null ? null : service.train(values.get("train"));
+        if (train == null) {
+            throw new IllegalArgumentException("Unknown train '" + values.get("train") + "'");
+        }
+        return train;
+    }
+
+    // The user signed in with HTTP Basic; 'named', the user the request names if it names one, must be them
+    private static String requireUser(HttpExchange exchange, String named) {
+        String authorization = exchange.getRequestHeaders().getFirst("Authorization");
+        if (authorization == null || !authorization.regionMatches(true, 0, "Basic ", 0, "Basic ".length())) {
+            throw new Unauthorized("Sign in with your user name and password");
+        }
+        String credentials;
+        try {
+            credentials = new String(Base64.getDecoder().decode(authorization.substring("Basic ".length()).trim()),
+                    StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new Unauthorized("Sign in with your user name and password");
+        }
+        int colon = credentials.indexOf(':');
+        String user = colon < 0 ? credentials : credentials.substring(0, colon);
+        if (colon < 0 || !PakistanRailwaySystem.isValidLogin(user, credentials.substring(colon + 1))) {
+            throw new Unauthorized("Invalid username or password");
+        }
+        if (named != null && !named.equals(user)) {
+            throw new Forbidden("Signed in as " + user + ", not " + named);
+        }
+        return user;
+    }
+
+    private static void requireDate(String date) {
+        try {
+            LocalDate.parse(date, AvailabilityService.DATE_FORMAT);
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Date must be dd/MM/yyyy");
+        }
+    }
+
+    // The binary record format takes any text, but control characters have no business in a name
+    private static void requireRecordSafe(String field, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            if (Character.isISOControl(value.charAt(i))) {
+                throw new IllegalArgumentException("'" + field + "' may not contain control characters");
+            }
+        }
+    }
+
+    private static Map<String, String> parseQuery(String rawQuery) {
+        Map<String, String> query = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = eq < 0 ? pair : pair.substring(0, eq);
+            String value = eq < 0 ? "" : pair.substring(eq + 1);
+            query.put(URLDecoder.decode(key, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return query;
+    }
+
+    private static String readBody(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            byte[] body = in.readNBytes(MAX_BODY_BYTES + 1);
+            if (body.length > MAX_BODY_BYTES) {
+                throw new IllegalArgumentException("Request body too large");
+            }
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+
+    // Unread request bytes would stop the connection from being reused
+    private static void drain(HttpExchange exchange) throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            in.transferTo(OutputStream.nullOutputStream());
+        }
+    }
+
+    private static void sendError(HttpExchange exchange, int status, String message) throws IOException {
+        send(exchange, status, Json.writer().beginObject().field("error", message).endObject());
+    }
+
+    private static void send(HttpExchange exchange, int status, Json.Writer json) throws IOException {
+        byte[] body = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static class MethodNotAllowed extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        MethodNotAllowed(String allowed) {
+            super(allowed);
+        }
+    }
+
+    private static class Unauthorized extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        Unauthorized(String message) {
+            super(message);
+        }
+    }
+
+    private static class Forbidden extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+
+        Forbidden(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,9 @@
+import java.io.IOException;
+
+// The bytes of a bookings file as BookingFormat reads them, mapped (MappedFile) or not (PositionalFile)
+interface RecordFile {
+    long size();
+
+    // Copies 'length' bytes starting at 'position', or throws an EOFException if they run past size()
+    void read(long position, byte[] into, int offset, int length) throws IOException;
+}
@@ -0,0 +1,90 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Precomputed (from, to) station pair -> trains that serve it in that
+ * direction. Built once when the timetable is loaded, so a search only walks
+ * its own results instead of every train. Each entry carries the stop positions
+ * of the two stations and the departure and arrival times, so callers never go
+ * back to the train's stop tables.
+ */
+class RouteIndex {
+    private static final RouteEntry[] NONE = new RouteEntry[0];
+
+    private final Map<Station, Integer> ordinals = new IdentityHashMap<>();
+    private final Map<Long, RouteEntry[]> routes;
+
+    static class RouteEntry {
+        final Train train;
+        final int fromStop;
+        final int toStop;
+        final int departure; // ServiceTime minutes
+        final int arrival;
+
+        RouteEntry(Train train, int fromStop, int toStop) {
+            this.train = train;
+            this.fromStop = fromStop;
+            this.toStop = toStop;
+            this.departure = train.departures[fromStop];
+            this.arrival = train.arrivals[toStop];
+        }
+    }
+
+    private RouteIndex(Map<Long, RouteEntry[]> routes) {
+        this.routes = routes;
+    }
+
+    static RouteIndex build(Collection<Station> stations, Collection<Train> trains) {
+        Map<Long, List<RouteEntry>> building = new HashMap<>();
+        RouteIndex index = new RouteIndex(new HashMap<>());
+        for (Station station : stations) {
+            index.ordinals.put(station, index.ordinals.size());
+        }
+
+        for (Train train : trains) {
+            Station[] stops = train.stops;
+            for (int from = 0; from < stops.length; from++) {
+                for (int to = from + 1; to < stops.length; to++) {
+                    long key = index.key(stops[from], stops[to]);
+                    if (key < 0) {
+                        continue;
+                    }
+                    building.computeIfAbsent(key, k -> new ArrayList<>()).add(new RouteEntry(train, from, to));
+                }
+            }
+        }
+
+        for (Map.Entry<Long, List<RouteEntry>> route : building.entrySet()) {
+            List<RouteEntry> entries = route.getValue();
+            entries.sort((a, b) -> a.train.id.compareTo(b.train.id));
+            index.routes.put(route.getKey(), entries.toArray(NONE));
+        }
+        return index;
+    }
+
+    // Trains that call at 'from' and later at 'to', ordered by train ID
+    RouteEntry[] find(Station from, Station to) {
+        long key = key(from, to);
+        if (key < 0) {
+            return NONE;
+        }
+        return routes.getOrDefault(key, NONE);
+    }
+
+    boolean hasService(Station from, Station to) {
+        return find(from, to).length > 0;
+    }
+
+    private long key(Station from, Station to) {
+        Integer fromOrdinal = from == null ? null : ordinals.get(from);
+        Integer toOrdinal = to == null ? null : ordinals.get(to);
+        if (fromOrdinal == null || toOrdinal == null) {
+            return -1;
+        }
+        return ((long) fromOrdinal << 32) | toOrdinal;
+    }
+}
@@ -0,0 +1,124 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/*
+ * Bounded map of recent search answers with least-recently-used eviction.
+ * The entries are spread over segments by key hash, each an access-ordered
+ * LinkedHashMap under its own lock, so searches for different routes rarely
+ * wait for each other; eviction is LRU within a segment.
+ *
+ * Nothing is ever invalidated by walking the map. A value knows whether it is
+ * still current (see ServiceVersions), and one found stale on lookup is
+ * computed again and counted under 'stale' as well as 'misses'. Stale values
+ * nobody asks for again age out like any other.
+ *
+ * Values are computed outside the locks, so a slow computation holds up no
+ * other key. Two threads missing on the same key at once both compute it and
+ * the later one is kept.
+ */
+final class SearchCache<K, V> {
+    private static final int MAX_SEGMENTS = 16;
+
+    // Counts since start-up; 'stale' lookups found an entry that had to be recomputed and are also misses
+    record Stats(long hits, long misses, long stale, long evictions, int size, int capacity) {
+        double hitRate() {
+            long lookups = hits + misses;
+            return lookups == 0 ? 0.0 : (double) hits / lookups;
+        }
+    }
+
+    private final int capacity;
+    private final List<Segment<K, V>> segments = new ArrayList<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder stale = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    SearchCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Cache capacity must be positive, not " + capacity);
+        }
+        this.capacity = capacity;
+        int count = Math.min(MAX_SEGMENTS, capacity);
+        for (int i = 0; i < count; i++) {
+            // Rounded up, so the segments together hold at least 'capacity'
+            segments.add(new Segment<>((capacity + count - 1) / count, evictions));
+        }
+    }
+
+    /*
+     * The cached value for the key if 'current' accepts it, otherwise a new
+     * one from 'load', which is then cached. 'load' must not return null.
+     */
+    V get(K key, Predicate<? super V> current, Function<? super K, ? extends V> load) {
+        Segment<K, V> segment = segmentFor(key);
+        V cached;
+        synchronized (segment) {
+            cached = segment.get(key);
+        }
+        if (cached != null && current.test(cached)) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        if (cached != null) {
+            stale.increment();
+        }
+        V loaded = load.apply(key);
+        synchronized (segment) {
+            segment.put(key, loaded);
+        }
+        return loaded;
+    }
+
+    void clear() {
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    Stats stats() {
+        int size = 0;
+        for (Segment<K, V> segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return new Stats(hits.sum(), misses.sum(), stale.sum(), evictions.sum(), size, capacity);
+    }
+
+    private Segment<K, V> segmentFor(K key) {
+        int hash = key.hashCode();
+        hash ^= hash >>> 16; // record hash codes vary mostly in the low bits
+        return segments.get(Math.floorMod(hash, segments.size()));
+    }
+
+    // Guarded by itself
+    private static final class Segment<K, V> extends LinkedHashMap<K, V> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+        private final LongAdder evictions;
+
+        Segment(int capacity, LongAdder evictions) {
+            super(Math.min(capacity, 1024) * 2, 0.75f, true);
+            this.capacity = capacity;
+            this.evictions = evictions;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            if (size() > capacity) {
+                evictions.increment();
+                return true;
+            }
+            return false;
+        }
+    }
+}
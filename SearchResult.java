@@ -0,0 +1,66 @@
+/*
+ * One answer to "direct trains from 'from' to 'to' on 'date' in 'seatClass'",
+ * as cached by BookingService: per train the expected times (printed ones
+ * plus any running delay), the fare in that class and the seats of that class
+ * left on the date, and the rows of the train list page built from them.
+ * Without a date there are no delays or seat counts and the times are the
+ * printed ones.
+ *
+ * Immutable; the arrays are shared with every caller and must not be changed.
+ */
+final class SearchResult {
+    static final String[] COLUMNS = { "Train ID", "Train Name", "Departure", "Arrival", "Duration", "Fare from" };
+
+    final RouteIndex.RouteEntry[] routes;
+    final String date; // null for a search without one
+    final SeatClass seatClass;
+    final int[] departures; // expected, as ServiceTime minutes
+    final int[] arrivals;
+    final int[] fares;
+    final int[] seatsLeft; // null without a date
+    final String[][] rows;
+    private final long epoch;
+    private final long[] versions; // ServiceVersions day counter per route, read before the rest was worked out
+
+    SearchResult(RouteIndex.RouteEntry[] routes, String from, String to, String date, SeatClass seatClass,
+            LiveDelays delays, FareEngine fares, SeatInventory seats, ServiceVersions changes) {
+        this.routes = routes;
+        this.date = date;
+        this.seatClass = seatClass;
+        this.epoch = changes.epoch();
+        this.versions = date == null ? null : changes.days(routes, date);
+        departures = new int[routes.length];
+        arrivals = new int[routes.length];
+        this.fares = new int[routes.length];
+        seatsLeft = date == null ? null : new int[routes.length];
+        rows = new String[routes.length][];
+        for (int i = 0; i < routes.length; i++) {
+            RouteIndex.RouteEntry route = routes[i];
+            LiveDelays.Status delay = delays.status(route.train, date);
+            departures[i] = delay == null ? route.departure : delay.departure(route.fromStop);
+            arrivals[i] = delay == null ? route.arrival : delay.arrival(route.toStop);
+            this.fares[i] = fares.fare(route.train, seatClass, route.fromStop, route.toStop);
+            if (seatsLeft != null) {
+                seatsLeft[i] = seats.available(route.train, date, seatClass.label, route.fromStop, route.toStop);
+            }
+            rows[i] = new String[] {
+                    route.train.id,
+                    route.train.name,
+                    ServiceTime.format(departures[i]) + " (" + from + late(route.departure, departures[i]) + ")",
+                    ServiceTime.format(arrivals[i]) + " (" + to + late(route.arrival, arrivals[i]) + ")",
+                    ServiceTime.formatDuration(arrivals[i] - departures[i]),
+                    this.fares[i] < 0 ? "No fare" : "Rs. " + this.fares[i]
+            };
+        }
+    }
+
+    // False once a booking, cancellation, delay or fare change has touched one of its trains on its date
+    boolean isCurrent(ServiceVersions changes) {
+        return epoch == changes.epoch() && (date == null || changes.daysUnchanged(routes, date, versions));
+    }
+
+    // ", 12 min late" after an expected time that differs from the printed one
+    private static String late(int printed, int expected) {
+        return expected == printed ? "" : ", " + ServiceTime.formatLateness(expected - printed);
+    }
+}
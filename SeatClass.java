@@ -0,0 +1,34 @@
+// Seat classes in ordinal order; the ordinal indexes fare and inventory tables
+enum SeatClass {
+    ECONOMY("Economy", 100, 1.0),
+    BUSINESS("Business", 100, 2.0),
+    AC("AC", 100, 3.0);
+
+    final String label;
+    final int baseFare;
+    final double multiplier;
+
+    SeatClass(String label, int baseFare, double multiplier) {
+        this.label = label;
+        this.baseFare = baseFare;
+        this.multiplier = multiplier;
+    }
+
+    static SeatClass fromLabel(String label) {
+        for (SeatClass seatClass : values()) {
+            if (seatClass.label.equals(label)) {
+                return seatClass;
+            }
+        }
+        throw new IllegalArgumentException("Unknown seat class: " + label);
+    }
+
+    static String[] labels() {
+        SeatClass[] classes = values();
+        String[] labels = new String[classes.length];
+        for (int i = 0; i < classes.length; i++) {
+            labels[i] = classes[i].label;
+        }
+        return labels;
+    }
+}
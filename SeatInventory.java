@@ -0,0 +1,162 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.LongUnaryOperator;
+
+/*
+ * Seat inventory per train, travel date and seat class.
+ *
+ * A train with n stops has n - 1 legs, and each seat is one long whose bit i is
+ * set while leg i is sold. A Karachi -> Lahore booking on a Karachi -> Lahore ->
+ * Islamabad train only sets bit 0, so the same seat can still be sold for
+ * Lahore -> Islamabad. Reservation is a CAS on that one long, so there is no
+ * global lock and two reservations can only collide on the same seat. Each
+ * search starts at a random seat so concurrent bookers spread across the coach.
+ */
+class SeatInventory {
+    static final int MAX_LEGS = Long.SIZE;
+
+    private final Map<SeatKey, SeatMap> maps = new ConcurrentHashMap<>();
+
+    record SeatKey(String trainId, String date, String seatClass) {
+    }
+
+    // Returns the reserved seat number (1-based), or -1 if the class is sold out on these legs
+    int reserve(Train train, String date, String seatClass, int fromStop, int toStop) {
+        long legs = legMask(fromStop, toStop);
+        SeatMap map = mapFor(train, date, seatClass);
+        int capacity = map.seats.length();
+        int start = capacity == 0 ? 0 : ThreadLocalRandom.current().nextInt(capacity);
+        for (int i = 0; i < capacity; i++) {
+            int seat = (start + i) % capacity;
+            if (map.tryClaim(seat, legs)) {
+                return seat + 1;
+            }
+        }
+        return -1;
+    }
+
+    /*
+     * Reserves up to 'count' seats on the same legs and returns their numbers.
+     * If the class runs out part way the array is shorter than 'count', and it
+     * is up to the caller to give those seats back, so that it can tell the
+     * waitlist and the search caches about them. The seats are searched from
+     * one random start, so a party mostly gets neighbouring seats.
+     */
+    int[] reserveAll(Train train, String date, String seatClass, int fromStop, int toStop, int count) {
+        long legs = legMask(fromStop, toStop);
+        SeatMap map = mapFor(train, date, seatClass);
+        int capacity = map.seats.length();
+        int[] reserved = new int[count];
+        int claimed = 0;
+        int start = capacity == 0 ? 0 : ThreadLocalRandom.current().nextInt(capacity);
+        for (int i = 0; i < capacity && claimed < count; i++) {
+            int seat = (start + i) % capacity;
+            if (map.tryClaim(seat, legs)) {
+                reserved[claimed++] = seat + 1;
+            }
+        }
+        return claimed < count ? Arrays.copyOf(reserved, claimed) : reserved;
+    }
+
+    // Claims a specific seat, e.g. while replaying bookings that are already on disk
+    boolean claim(Train train, String date, String seatClass, int seatNumber, int fromStop, int toStop) {
+        SeatMap map = mapFor(train, date, seatClass);
+        int seat = seatNumber - 1;
+        return seat >= 0 && seat < map.seats.length() && map.tryClaim(seat, legMask(fromStop, toStop));
+    }
+
+    void release(Train train, String date, String seatClass, int seatNumber, int fromStop, int toStop) {
+        SeatMap map = maps.get(new SeatKey(train.id, date, seatClass));
+        int seat = seatNumber - 1;
+        if (map != null && seat >= 0 && seat < map.seats.length()) {
+            map.release(seat, legMask(fromStop, toStop));
+        }
+    }
+
+    /*
+     * Frees 'legs' of one seat and, in the same compare-and-set, sells whichever
+     * of its legs 'pick' chooses, so no other booker can take the seat in
+     * between. 'pick' is given what is still sold on the seat after the release
+     * and returns the legs to sell, or 0; it may be called more than once.
+     * Returns the legs sold.
+     */
+    long releaseTo(Train train, String date, String seatClass, int seatNumber, long legs, LongUnaryOperator pick) {
+        SeatMap map = mapFor(train, date, seatClass);
+        int seat = seatNumber - 1;
+        if (seat < 0 || seat >= map.seats.length()) {
+            return 0;
+        }
+        while (true) {
+            long sold = map.seats.get(seat);
+            long released = sold & ~legs;
+            long claimed = pick.applyAsLong(released);
+            if ((released & claimed) != 0) {
+                throw new IllegalStateException("Picked legs that are still sold");
+            }
+            if (map.seats.compareAndSet(seat, sold, released | claimed)) {
+                return claimed;
+            }
+        }
+    }
+
+    // Seats that are free on every leg between the two stops
+    int available(Train train, String date, String seatClass, int fromStop, int toStop) {
+        SeatMap map = maps.get(new SeatKey(train.id, date, seatClass));
+        if (map == null) {
+            return train.seatCapacity.getOrDefault(seatClass, 0);
+        }
+        long legs = legMask(fromStop, toStop);
+        int free = 0;
+        for (int seat = 0; seat < map.seats.length(); seat++) {
+            if ((map.seats.get(seat) & legs) == 0) {
+                free++;
+            }
+        }
+        return free;
+    }
+
+    private SeatMap mapFor(Train train, String date, String seatClass) {
+        return maps.computeIfAbsent(new SeatKey(train.id, date, seatClass),
+                key -> new SeatMap(train.seatCapacity.getOrDefault(seatClass, 0)));
+    }
+
+    static long legMask(int fromStop, int toStop) {
+        if (fromStop < 0 || toStop <= fromStop || toStop > MAX_LEGS) {
+            throw new IllegalArgumentException("Invalid stop range " + fromStop + " -> " + toStop);
+        }
+        long upTo = toStop == MAX_LEGS ? -1L : (1L << toStop) - 1;
+        return upTo & -(1L << fromStop);
+    }
+
+    private static class SeatMap {
+        final AtomicLongArray seats;
+
+        SeatMap(int capacity) {
+            seats = new AtomicLongArray(capacity);
+        }
+
+        boolean tryClaim(int seat, long legs) {
+            while (true) {
+                long sold = seats.get(seat);
+                if ((sold & legs) != 0) {
+                    return false;
+                }
+                if (seats.compareAndSet(seat, sold, sold | legs)) {
+                    return true;
+                }
+            }
+        }
+
+        void release(int seat, long legs) {
+            while (true) {
+                long sold = seats.get(seat);
+                if (seats.compareAndSet(seat, sold, sold & ~legs)) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Times of day packed as int minutes since the start of a train's service day.
+ * Anything at or past 1440 belongs to a following day, so overnight runs stay
+ * ordered and durations are plain subtraction.
+ */
+final class ServiceTime {
+    static final int MINUTES_PER_DAY = 24 * 60;
+
+    private ServiceTime() {
+    }
+
+    // "HH:mm" -> minutes; only used while loading a timetable
+    static int parse(String time) {
+        int colon = time.indexOf(':');
+        if (colon < 1) {
+            throw new IllegalArgumentException("Expected HH:mm but got " + time);
+        }
+        int hours = Integer.parseInt(time.substring(0, colon));
+        int minutes = Integer.parseInt(time.substring(colon + 1));
+        if (hours > 23 || minutes > 59) {
+            throw new IllegalArgumentException("Not a time of day: " + time);
+        }
+        return hours * 60 + minutes;
+    }
+
+    // Times within one run only move forward, so an earlier clock time means the next day
+    static int rollForward(int minuteOfDay, int previous) {
+        int minute = minuteOfDay;
+        while (minute < previous) {
+            minute += MINUTES_PER_DAY;
+        }
+        return minute;
+    }
+
+    // "HH:mm", with "(+n)" when the time falls n days after the service day
+    static String format(int minutes) {
+        int day = minutes / MINUTES_PER_DAY;
+        int ofDay = minutes % MINUTES_PER_DAY;
+        String time = String.format("%02d:%02d", ofDay / 60, ofDay % 60);
+        return day == 0 ? time : time + " (+" + day + ")";
+    }
+
+    static String formatDuration(int minutes) {
+        return String.format("%dh %02dm", minutes / 60, minutes % 60);
+    }
+
+    // A running delay: "12 min late", or "5 min early" when negative
+    static String formatLateness(int minutes) {
+        return minutes >= 0 ? minutes + " min late" : -minutes + " min early";
+    }
+}
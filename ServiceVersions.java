@@ -0,0 +1,162 @@
+import java.time.Clock;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Change counters that tell cached search answers whether they still hold.
+ *
+ * Every change to the seats of a train on a date moves that train's counter
+ * for the date and for the month around it; a running delay moves only the
+ * date's. A change to the fares (a track added or removed) moves the epoch.
+ * A cached answer keeps the counters of the trains it was worked out from
+ * and is current while none of them has moved, so a booking only invalidates
+ * answers that include its train and date.
+ *
+ * A counter is moved after the change it stands for is visible, and read
+ * before an answer is worked out, so an answer can be needlessly recomputed
+ * but never kept past a change it missed.
+ *
+ * Counters are moved to the next value of one shared sequence rather than
+ * counted up, so no counter ever comes back to a value it had. That lets the
+ * first change of each day drop the counters of past dates and months: a
+ * dropped counter reads as the sequence value at the time of the drop, which
+ * an answer read before a later change can only have if it was already
+ * current.
+ */
+final class ServiceVersions {
+    private final Clock clock;
+    private final AtomicLong epoch = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+    private final Map<Day, Long> days = new ConcurrentHashMap<>();
+    private final Map<Month, Long> months = new ConcurrentHashMap<>();
+    private final AtomicReference<LocalDate> prunedOn;
+    private volatile long dropped; // what a counter that is not in the maps reads as
+
+    ServiceVersions() {
+        this(Clock.systemDefaultZone());
+    }
+
+    ServiceVersions(Clock clock) {
+        this.clock = clock;
+        this.prunedOn = new AtomicReference<>(LocalDate.now(clock));
+    }
+
+    private record Day(String train, String date) {
+    }
+
+    private record Month(String train, YearMonth month) {
+    }
+
+    // Seats of the train on that date were sold or freed
+    void seatsChanged(Train train, String date) {
+        pruneOncePerDay();
+        days.put(new Day(train.id, date), sequence.incrementAndGet());
+        YearMonth month = monthOf(date);
+        if (month != null) {
+            months.put(new Month(train.id, month), sequence.incrementAndGet());
+        }
+    }
+
+    // The train's expected times on that date moved
+    void delayed(Train train, String date) {
+        pruneOncePerDay();
+        days.put(new Day(train.id, date), sequence.incrementAndGet());
+    }
+
+    void faresChanged() {
+        epoch.incrementAndGet();
+    }
+
+    long epoch() {
+        return epoch.get();
+    }
+
+    long day(Train train, String date) {
+        Long version = days.get(new Day(train.id, date));
+        return version != null ? version : dropped;
+    }
+
+    long month(Train train, YearMonth month) {
+        Long version = months.get(new Month(train.id, month));
+        return version != null ? version : dropped;
+    }
+
+    long[] days(RouteIndex.RouteEntry[] routes, String date) {
+        long[] versions = new long[routes.length];
+        for (int i = 0; i < routes.length; i++) {
+            versions[i] = day(routes[i].train, date);
+        }
+        return versions;
+    }
+
+    long[] months(RouteIndex.RouteEntry[] routes, YearMonth month) {
+        long[] versions = new long[routes.length];
+        for (int i = 0; i < routes.length; i++) {
+            versions[i] = month(routes[i].train, month);
+        }
+        return versions;
+    }
+
+    boolean daysUnchanged(RouteIndex.RouteEntry[] routes, String date, long[] versions) {
+        for (int i = 0; i < routes.length; i++) {
+            if (day(routes[i].train, date) != versions[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean monthsUnchanged(RouteIndex.RouteEntry[] routes, YearMonth month, long[] versions) {
+        for (int i = 0; i < routes.length; i++) {
+            if (month(routes[i].train, month) != versions[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void pruneOncePerDay() {
+        LocalDate today = LocalDate.now(clock);
+        LocalDate last = prunedOn.get();
+        if (!today.equals(last) && prunedOn.compareAndSet(last, today)) {
+            prune(today);
+        }
+    }
+
+    /*
+     * Drops the counters of dates before today and months before this one.
+     * 'dropped' moves first, and only counters no newer than it are removed,
+     * so a change made while this runs is never lost.
+     */
+    private void prune(LocalDate today) {
+        long upTo = sequence.get();
+        dropped = upTo;
+        YearMonth thisMonth = YearMonth.from(today);
+        days.entrySet().removeIf(e -> e.getValue() <= upTo && isPast(dateOf(e.getKey().date()), today));
+        months.entrySet().removeIf(e -> e.getValue() <= upTo && e.getKey().month().isBefore(thisMonth));
+    }
+
+    // Dropping a counter is always safe, so one for a date that does not parse goes too
+    private static boolean isPast(LocalDate date, LocalDate today) {
+        return date == null || date.isBefore(today);
+    }
+
+    private static LocalDate dateOf(String date) {
+        try {
+            return LocalDate.parse(date, AvailabilityService.DATE_FORMAT);
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    // Null for a date that is not dd/MM/yyyy; no calendar month shows such a date anyway
+    private static YearMonth monthOf(String date) {
+        LocalDate day = dateOf(date);
+        return day == null ? null : YearMonth.from(day);
+    }
+}
@@ -0,0 +1,12 @@
+import java.util.ArrayList;
+import java.util.List;
+
+class Station {
+    String name;
+    List<Track> tracks = new ArrayList<>();
+    int minTransferMinutes = 15;
+
+    Station(String name) {
+        this.name = name;
+    }
+}
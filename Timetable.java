@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * The station network and the trains that run over it. Built once and not
+ * changed afterwards, so any number of sessions and threads can read it
+ * without locking. Track changes go through BookingService, which keeps the
+ * distance table in step.
+ */
+final class Timetable {
+    final Map<String, Station> stations;
+    final Map<String, Train> trains;
+
+    private Timetable(Map<String, Station> stations, Map<String, Train> trains) {
+        this.stations = Collections.unmodifiableMap(stations);
+        this.trains = Collections.unmodifiableMap(trains);
+    }
+
+    // Takes ownership of the maps; callers must not change them afterwards
+    static Timetable of(Map<String, Station> stations, Map<String, Train> trains) {
+        return new Timetable(stations, trains);
+    }
+
+    // The timetable in the railway.timetable.dir directory if that is set, else the built-in one
+    static Timetable configured() throws IOException {
+        String dir = System.getProperty("railway.timetable.dir");
+        return dir == null || dir.isEmpty() ? standard() : TimetableFiles.load(Paths.get(dir));
+    }
+
+    // The built-in Pakistan Railways network
+    static Timetable standard() {
+        Map<String, Station> stations = new HashMap<>();
+        Map<String, Train> trains = new HashMap<>();
+
+        Station karachi = new Station("Karachi");
+        Station lahore = new Station("Lahore");
+        Station islamabad = new Station("Islamabad");
+        Station peshawar = new Station("Peshawar");
+        Station quetta = new Station("Quetta");
+        Station multan = new Station("Multan");
+        Station faisalabad = new Station("Faisalabad");
+        Station rawalpindi = new Station("Rawalpindi");
+        Station hyderabad = new Station("Hyderabad");
+        Station sialkot = new Station("Sialkot");
+        Station sukker = new Station("Sukkur");
+        Station bahawalpur = new Station("Bahawalpur");
+
+        stations.put("Karachi", karachi);
+        stations.put("Lahore", lahore);
+        stations.put("Islamabad", islamabad);
+        stations.put("Peshawar", peshawar);
+        stations.put("Quetta", quetta);
+        stations.put("Multan", multan);
+        stations.put("Faisalabad", faisalabad);
+        stations.put("Rawalpindi", rawalpindi);
+        stations.put("Hyderabad", hyderabad);
+        stations.put("Sialkot", sialkot);
+        stations.put("Sukkur", sukker);
+        stations.put("Bahawalpur", bahawalpur);
+
+        karachi.tracks.add(new Track(karachi, hyderabad, 164));
+        hyderabad.tracks.add(new Track(hyderabad, karachi, 164));
+
+        karachi.tracks.add(new Track(karachi, sukker, 470));
+        sukker.tracks.add(new Track(sukker, karachi, 470));
+
+        sukker.tracks.add(new Track(sukker, multan, 400));
+        multan.tracks.add(new Track(multan, sukker, 400));
+
+        lahore.tracks.add(new Track(lahore, islamabad, 380));
+        islamabad.tracks.add(new Track(islamabad, lahore, 380));
+
+        lahore.tracks.add(new Track(lahore, peshawar, 520));
+        peshawar.tracks.add(new Track(peshawar, lahore, 520));
+
+        islamabad.tracks.add(new Track(islamabad, peshawar, 180));
+        peshawar.tracks.add(new Track(peshawar, islamabad, 180));
+
+        lahore.tracks.add(new Track(lahore, multan, 350));
+        multan.tracks.add(new Track(multan, lahore, 350));
+
+        multan.tracks.add(new Track(multan, bahawalpur, 90));
+        bahawalpur.tracks.add(new Track(bahawalpur, multan, 90));
+
+        multan.tracks.add(new Track(multan, quetta, 700));
+        quetta.tracks.add(new Track(quetta, multan, 700));
+
+        lahore.tracks.add(new Track(lahore, faisalabad, 130));
+        faisalabad.tracks.add(new Track(faisalabad, lahore, 130));
+
+        lahore.tracks.add(new Track(lahore, sialkot, 125));
+        sialkot.tracks.add(new Track(sialkot, lahore, 125));
+
+        // Pakistani trains with different classes
+        Train greenLine = new Train("PK101", "Green Line Express");
+        greenLine.addStop(karachi, "08:00", "08:15");
+        greenLine.addStop(lahore, "16:30", "16:45");
+        greenLine.addStop(islamabad, "19:30", "19:45");
+        trains.put("PK101", greenLine);
+
+        Train shalimarExpress = new Train("PK202", "Shalimar Express");
+        shalimarExpress.addStop(lahore, "07:00", "07:15");
+        shalimarExpress.addStop(karachi, "19:30", "19:45");
+        trains.put("PK202", shalimarExpress);
+
+        Train khyberMail = new Train("PK303", "Khyber Mail");
+        khyberMail.addStop(karachi, "09:00", "09:15");
+        khyberMail.addStop(peshawar, "22:30", "22:45");
+        trains.put("PK303", khyberMail);
+
+        Train awamExpress = new Train("PK404", "Awam Express");
+        awamExpress.addStop(karachi, "10:00", "10:15");
+        awamExpress.addStop(islamabad, "18:30", "18:45");
+        trains.put("PK404", awamExpress);
+
+        Train bolanMail = new Train("PK505", "Bolan Mail");
+        bolanMail.addStop(karachi, "11:00", "11:15");
+        bolanMail.addStop(quetta, "20:30", "20:45");
+        trains.put("PK505", bolanMail);
+
+        Train subakRaftar = new Train("PK606", "Subak Raftar");
+        subakRaftar.addStop(lahore, "12:00", "12:15");
+        subakRaftar.addStop(islamabad, "15:30", "15:45");
+        subakRaftar.serviceDays = 0b0111111; // no Sunday service
+        trains.put("PK606", subakRaftar);
+
+        Train pakBusiness = new Train("PK707", "Pak Business Express");
+        pakBusiness.addStop(karachi, "14:00", "14:15");
+        pakBusiness.addStop(lahore, "21:30", "21:45");
+        trains.put("PK707", pakBusiness);
+
+        // Big junctions need longer to change platforms
+        lahore.minTransferMinutes = 30;
+        karachi.minTransferMinutes = 30;
+
+        return new Timetable(stations, trains);
+    }
+}
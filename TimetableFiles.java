@@ -0,0 +1,562 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * Timetables kept as a directory of CSV files, laid out like a cut-down GTFS
+ * feed. Every file starts with a header row, and columns are found by name, so
+ * their order does not matter and unknown columns are ignored:
+ *
+ *   stations.csv     station_name [, min_transfer_minutes]
+ *   tracks.csv       from_station, to_station, distance_km   (each row runs both ways)
+ *   trains.csv       train_id, train_name [, monday .. sunday] [, economy_seats, ...]
+ *   stop_times.csv   train_id, stop_sequence, station_name, arrival_time, departure_time
+ *
+ * Times are H:mm or HH:mm:ss. As in GTFS they may go past 24:00 for a run that
+ * goes over midnight, but an earlier clock time than the previous stop is also
+ * taken to be the next day. Day columns hold 0 or 1 and default to 1. Seat
+ * columns default to the standard coach sizes. Stop rows may come in any order.
+ *
+ * The files are read a row at a time, so only the timetable itself is held in
+ * memory. load() keeps a TimetableSnapshot next to them and maps that instead
+ * while the CSV files are unchanged.
+ *
+ *   java TimetableFiles <dir>    writes the built-in network there, as a starting point
+ */
+final class TimetableFiles {
+    static final String STATIONS = "stations.csv";
+    static final String TRACKS = "tracks.csv";
+    static final String TRAINS = "trains.csv";
+    static final String STOP_TIMES = "stop_times.csv";
+    static final String SNAPSHOT = "timetable.snapshot";
+    private static final String[] SOURCES = { STATIONS, TRACKS, TRAINS, STOP_TIMES };
+    private static final String[] DAYS = { "monday", "tuesday", "wednesday", "thursday", "friday",
+            "saturday", "sunday" };
+
+    private TimetableFiles() {
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: java TimetableFiles <directory>");
+            return;
+        }
+        write(Timetable.standard(), Paths.get(args[0]));
+    }
+
+    // The timetable in 'dir', from its snapshot if that is still current
+    static Timetable load(Path dir) throws IOException {
+        long started = System.nanoTime();
+        long stamp = sourceStamp(dir);
+        Path snapshot = dir.resolve(SNAPSHOT);
+        Timetable timetable = TimetableSnapshot.read(snapshot, stamp);
+        String source = "snapshot";
+        if (timetable == null) {
+            timetable = parse(dir);
+            source = "CSV";
+            try {
+                TimetableSnapshot.write(timetable, snapshot, stamp);
+            } catch (IOException e) {
+                // Still usable, just parsed again next time
+                Metrics.logError("Could not write timetable snapshot " + snapshot, e);
+            }
+        }
+        Metrics.logInfo(String.format("Loaded %d stations and %d trains from %s %s in %d ms",
+                timetable.stations.size(), timetable.trains.size(), source, dir,
+                (System.nanoTime() - started) / 1_000_000));
+        return timetable;
+    }
+
+    // Changes whenever one of the CSV files is replaced or edited
+    static long sourceStamp(Path dir) throws IOException {
+        long stamp = 17;
+        for (String name : SOURCES) {
+            Path file = dir.resolve(name);
+            stamp = 31 * stamp + Files.size(file);
+            stamp = 31 * stamp + Files.getLastModifiedTime(file).toMillis();
+        }
+        return stamp;
+    }
+
+    static Timetable parse(Path dir) throws IOException {
+        Map<String, Station> stations = new HashMap<>();
+        Map<String, Train> trains = new HashMap<>();
+
+        try (CsvReader csv = CsvReader.open(dir.resolve(STATIONS))) {
+            int name = csv.column("station_name");
+            int transfer = csv.optionalColumn("min_transfer_minutes");
+            for (String[] row; (row = csv.next()) != null; ) {
+                Station station = new Station(csv.required(row, name));
+                String minutes = CsvReader.field(row, transfer);
+                if (!minutes.isEmpty()) {
+                    station.minTransferMinutes = csv.parseInt(minutes);
+                    if (station.minTransferMinutes < 0) {
+                        throw csv.error("Negative transfer time: " + station.minTransferMinutes);
+                    }
+                }
+                if (stations.putIfAbsent(station.name, station) != null) {
+                    throw csv.error("Duplicate station " + station.name);
+                }
+            }
+        }
+
+        try (CsvReader csv = CsvReader.open(dir.resolve(TRACKS))) {
+            int from = csv.column("from_station");
+            int to = csv.column("to_station");
+            int km = csv.column("distance_km");
+            for (String[] row; (row = csv.next()) != null; ) {
+                Station a = csv.station(stations, csv.required(row, from));
+                Station b = csv.station(stations, csv.required(row, to));
+                int distance = csv.parseInt(csv.required(row, km));
+                if (distance < 0) {
+                    throw csv.error("Negative distance: " + distance);
+                }
+                a.tracks.add(new Track(a, b, distance));
+                b.tracks.add(new Track(b, a, distance));
+            }
+        }
+
+        try (CsvReader csv = CsvReader.open(dir.resolve(TRAINS))) {
+            int id = csv.column("train_id");
+            int name = csv.column("train_name");
+            int[] days = new int[DAYS.length];
+            for (int d = 0; d < DAYS.length; d++) {
+                days[d] = csv.optionalColumn(DAYS[d]);
+            }
+            SeatClass[] classes = SeatClass.values();
+            int[] seats = new int[classes.length];
+            for (SeatClass seatClass : classes) {
+                seats[seatClass.ordinal()] = csv.optionalColumn(seatColumn(seatClass));
+            }
+            for (String[] row; (row = csv.next()) != null; ) {
+                Train train = new Train(csv.required(row, id), csv.required(row, name));
+                for (int d = 0; d < DAYS.length; d++) {
+                    if (CsvReader.field(row, days[d]).equals("0")) {
+                        train.serviceDays &= ~(1 << d);
+                    }
+                }
+                for (SeatClass seatClass : classes) {
+                    String count = CsvReader.field(row, seats[seatClass.ordinal()]);
+                    if (!count.isEmpty()) {
+                        int capacity = csv.parseInt(count);
+                        if (capacity < 0) {
+                            throw csv.error("Negative seat count: " + capacity);
+                        }
+                        train.seatCapacity.put(seatClass.label, capacity);
+                    }
+                }
+                if (trains.putIfAbsent(train.id, train) != null) {
+                    throw csv.error("Duplicate train " + train.id);
+                }
+            }
+        }
+
+        Map<Train, StopList> stopLists = new HashMap<>();
+        try (CsvReader csv = CsvReader.open(dir.resolve(STOP_TIMES))) {
+            int trainId = csv.column("train_id");
+            int sequence = csv.column("stop_sequence");
+            int station = csv.column("station_name");
+            int arrival = csv.column("arrival_time");
+            int departure = csv.column("departure_time");
+            for (String[] row; (row = csv.next()) != null; ) {
+                String id = csv.required(row, trainId);
+                Train train = trains.get(id);
+                if (train == null) {
+                    throw csv.error("Unknown train " + id);
+                }
+                // GTFS leaves one of the two times blank at the ends of a trip
+                String arrive = CsvReader.field(row, arrival);
+                String depart = CsvReader.field(row, departure);
+                if (arrive.isEmpty() && depart.isEmpty()) {
+                    throw csv.error("Stop has neither an arrival nor a departure time");
+                }
+                StopList stops = stopLists.computeIfAbsent(train, t -> new StopList());
+                // The seat inventory keeps one bit per leg
+                if (stops.size == SeatInventory.MAX_LEGS + 1) {
+                    throw csv.error("Train " + id + " has more than " + (SeatInventory.MAX_LEGS + 1) + " stops");
+                }
+                stops.add(
+                        csv.parseInt(csv.required(row, sequence)),
+                        csv.station(stations, csv.required(row, station)),
+                        csv.parseClock(arrive.isEmpty() ? depart : arrive),
+                        csv.parseClock(depart.isEmpty() ? arrive : depart));
+            }
+        }
+        for (Train train : trains.values()) {
+            StopList stops = stopLists.get(train);
+            if (stops == null || stops.size < 2) {
+                throw new IOException(dir.resolve(STOP_TIMES) + ": train " + train.id
+                        + " needs at least two stops");
+            }
+            stops.applyTo(train);
+        }
+        return Timetable.of(stations, trains);
+    }
+
+    // Writes the timetable in the layout parse() reads back
+    static void write(Timetable timetable, Path dir) throws IOException {
+        Files.createDirectories(dir);
+        List<Station> stations = new ArrayList<>(timetable.stations.values());
+        stations.sort((a, b) -> a.name.compareTo(b.name));
+        List<Train> trains = new ArrayList<>(timetable.trains.values());
+        trains.sort((a, b) -> a.id.compareTo(b.id));
+
+        try (BufferedWriter out = Files.newBufferedWriter(dir.resolve(STATIONS), StandardCharsets.UTF_8)) {
+            out.write("station_name,min_transfer_minutes\n");
+            for (Station station : stations) {
+                writeRow(out, station.name, Integer.toString(station.minTransferMinutes));
+            }
+        }
+
+        try (BufferedWriter out = Files.newBufferedWriter(dir.resolve(TRACKS), StandardCharsets.UTF_8)) {
+            out.write("from_station,to_station,distance_km\n");
+            for (Station station : stations) {
+                for (Track track : station.tracks) {
+                    // One row per pair of directions; a one-way track becomes two-way
+                    if (track.from.name.compareTo(track.to.name) < 0 || !hasReverse(track)) {
+                        writeRow(out, track.from.name, track.to.name, Integer.toString(track.distance));
+                    }
+                }
+            }
+        }
+
+        try (BufferedWriter out = Files.newBufferedWriter(dir.resolve(TRAINS), StandardCharsets.UTF_8)) {
+            StringBuilder header = new StringBuilder("train_id,train_name");
+            for (String day : DAYS) {
+                header.append(',').append(day);
+            }
+            for (SeatClass seatClass : SeatClass.values()) {
+                header.append(',').append(seatColumn(seatClass));
+            }
+            out.write(header.append('\n').toString());
+            for (Train train : trains) {
+                List<String> row = new ArrayList<>(List.of(train.id, train.name));
+                for (int d = 0; d < DAYS.length; d++) {
+                    row.add((train.serviceDays & (1 << d)) != 0 ? "1" : "0");
+                }
+                for (SeatClass seatClass : SeatClass.values()) {
+                    row.add(Integer.toString(train.seatCapacity.getOrDefault(seatClass.label, 0)));
+                }
+                writeRow(out, row.toArray(new String[0]));
+            }
+        }
+
+        try (BufferedWriter out = Files.newBufferedWriter(dir.resolve(STOP_TIMES), StandardCharsets.UTF_8)) {
+            out.write("train_id,stop_sequence,station_name,arrival_time,departure_time\n");
+            for (Train train : trains) {
+                for (int i = 0; i < train.stopCount(); i++) {
+                    writeRow(out, train.id, Integer.toString(i + 1), train.stops[i].name,
+                            clock(train.arrivals[i]), clock(train.departures[i]));
+                }
+            }
+        }
+    }
+
+    private static String seatColumn(SeatClass seatClass) {
+        return seatClass.label.toLowerCase() + "_seats";
+    }
+
+    private static boolean hasReverse(Track track) {
+        for (Track back : track.to.tracks) {
+            if (back.to == track.from) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // GTFS style: hours keep counting past midnight instead of wrapping
+    private static String clock(int minutes) {
+        return String.format("%02d:%02d:00", minutes / 60, minutes % 60);
+    }
+
+    private static void writeRow(BufferedWriter out, String... fields) throws IOException {
+        for (int i = 0; i < fields.length; i++) {
+            if (i > 0) {
+                out.write(',');
+            }
+            String field = fields[i];
+            if (field.indexOf(',') >= 0 || field.indexOf('"') >= 0 || field.indexOf('\n') >= 0) {
+                out.write('"' + field.replace("\"", "\"\"") + '"');
+            } else {
+                out.write(field);
+            }
+        }
+        out.write('\n');
+    }
+
+    // One train's stops as they arrive from stop_times.csv, put in sequence order at the end
+    private static final class StopList {
+        int size;
+        int[] sequence = new int[8];
+        Station[] stations = new Station[8];
+        int[] arrivals = new int[8];
+        int[] departures = new int[8];
+
+        void add(int stopSequence, Station station, int arrival, int departure) {
+            if (size == sequence.length) {
+                sequence = Arrays.copyOf(sequence, size * 2);
+                stations = Arrays.copyOf(stations, size * 2);
+                arrivals = Arrays.copyOf(arrivals, size * 2);
+                departures = Arrays.copyOf(departures, size * 2);
+            }
+            sequence[size] = stopSequence;
+            stations[size] = station;
+            arrivals[size] = arrival;
+            departures[size] = departure;
+            size++;
+        }
+
+        void applyTo(Train train) throws IOException {
+            // Insertion sort: trains have a handful of stops and usually arrive in order
+            for (int i = 1; i < size; i++) {
+                for (int j = i; j > 0 && sequence[j - 1] > sequence[j]; j--) {
+                    swap(j - 1, j);
+                }
+            }
+            Station[] stops = Arrays.copyOf(stations, size);
+            int[] arrive = new int[size];
+            int[] depart = new int[size];
+            int previous = 0;
+            for (int i = 0; i < size; i++) {
+                if (i > 0 && sequence[i] == sequence[i - 1]) {
+                    throw new IOException("Train " + train.id + " has two stops numbered " + sequence[i]);
+                }
+                arrive[i] = ServiceTime.rollForward(arrivals[i], previous);
+                depart[i] = ServiceTime.rollForward(departures[i], arrive[i]);
+                previous = depart[i];
+            }
+            train.setStops(stops, arrive, depart);
+        }
+
+        private void swap(int a, int b) {
+            int s = sequence[a];
+            sequence[a] = sequence[b];
+            sequence[b] = s;
+            Station station = stations[a];
+            stations[a] = stations[b];
+            stations[b] = station;
+            int t = arrivals[a];
+            arrivals[a] = arrivals[b];
+            arrivals[b] = t;
+            t = departures[a];
+            departures[a] = departures[b];
+            departures[b] = t;
+        }
+    }
+
+    /*
+     * Streaming RFC 4180 reader: quoted fields may hold commas, doubled quotes
+     * and line breaks, unquoted fields are trimmed, blank lines are skipped and
+     * a UTF-8 byte order mark is dropped. Errors carry the file and line number.
+     * Faults in the CSV itself are thrown as Malformed, so a caller can tell them
+     * from a failed read.
+     */
+    static final class CsvReader implements Closeable {
+        private final String source; // file name or other label for error messages
+        private final Reader in;
+        private final char[] buffer = new char[64 * 1024];
+        private int position;
+        private int limit;
+        private final StringBuilder field = new StringBuilder();
+        private final List<String> row = new ArrayList<>();
+        private final Map<String, Integer> header = new HashMap<>();
+        private long line;      // line the current row started on
+        private long nextLine = 1;
+
+        // The CSV is wrong, as opposed to the stream under it failing
+        static final class Malformed extends IOException {
+            private static final long serialVersionUID = 1L;
+
+            Malformed(String message) {
+                super(message);
+            }
+        }
+
+        private CsvReader(String source, Reader in) throws IOException {
+            this.source = source;
+            this.in = in;
+            String[] names = next();
+            if (names == null) {
+                throw new Malformed(source + " is empty; it needs a header row");
+            }
+            if (names.length > 0 && !names[0].isEmpty() && names[0].charAt(0) == '\uFEFF') {
+                names[0] = names[0].substring(1);
+            }
+            for (int i = 0; i < names.length; i++) {
+                header.putIfAbsent(names[i].toLowerCase(), i);
+            }
+        }
+
+        static CsvReader open(Path path) throws IOException {
+            return new CsvReader(path.toString(), Files.newBufferedReader(path, StandardCharsets.UTF_8));
+        }
+
+        // CSV from any stream, e.g. a request body; 'source' names it in error messages
+        static CsvReader read(String source, Reader in) throws IOException {
+            return new CsvReader(source, in);
+        }
+
+        int column(String name) throws IOException {
+            Integer index = header.get(name);
+            if (index == null) {
+                throw new Malformed(source + " has no " + name + " column");
+            }
+            return index;
+        }
+
+        // -1 when the column is missing; field() then returns ""
+        int optionalColumn(String name) {
+            return header.getOrDefault(name, -1);
+        }
+
+        static String field(String[] row, int column) {
+            return column >= 0 && column < row.length ? row[column] : "";
+        }
+
+        String required(String[] row, int column) throws IOException {
+            String value = field(row, column);
+            if (value.isEmpty()) {
+                throw error("Missing value in column " + (column + 1));
+            }
+            return value;
+        }
+
+        int parseInt(String value) throws IOException {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                throw error("Not a whole number: " + value);
+            }
+        }
+
+        // H:mm or HH:mm:ss in minutes; hours may pass 23, seconds are dropped
+        int parseClock(String value) throws IOException {
+            int first = value.indexOf(':');
+            int second = value.indexOf(':', first + 1);
+            try {
+                int hours = Integer.parseInt(value.substring(0, first));
+                int minutes = Integer.parseInt(second < 0 ? value.substring(first + 1)
+                        : value.substring(first + 1, second));
+                if (first < 1 || hours < 0 || minutes < 0 || minutes > 59) {
+                    throw new NumberFormatException();
+                }
+                return hours * 60 + minutes;
+            } catch (RuntimeException e) {
+                throw error("Not a time: " + value);
+            }
+        }
+
+        Station station(Map<String, Station> stations, String name) throws IOException {
+            Station station = stations.get(name);
+            if (station == null) {
+                throw error("Unknown station " + name);
+            }
+            return station;
+        }
+
+        Malformed error(String message) {
+            return new Malformed(where() + message);
+        }
+
+        // "source:line: " for the current row
+        String where() {
+            return source + ":" + line + ": ";
+        }
+
+        // The next non-blank row, or null at the end of the file
+        String[] next() throws IOException {
+            while (true) {
+                if (!fill()) {
+                    return null;
+                }
+                line = nextLine;
+                readRow();
+                if (row.size() > 1 || !row.get(0).isEmpty()) {
+                    return row.toArray(new String[0]);
+                }
+            }
+        }
+
+        private void readRow() throws IOException {
+            row.clear();
+            field.setLength(0);
+            boolean quoted = false;
+            boolean wasQuoted = false;
+            while (true) {
+                int c = read();
+                if (c < 0) {
+                    if (quoted) {
+                        throw error("Quoted field is not closed");
+                    }
+                    break;
+                }
+                if (quoted) {
+                    if (c != '"') {
+                        if (c == '\n') {
+                            nextLine++;
+                        }
+                        field.append((char) c);
+                    } else if (fill() && buffer[position] == '"') {
+                        position++;
+                        field.append('"');
+                    } else {
+                        quoted = false;
+                    }
+                } else if (c == '"') {
+                    quoted = true;
+                    wasQuoted = true;
+                } else if (c == ',') {
+                    endField(wasQuoted);
+                    wasQuoted = false;
+                } else if (c == '\n') {
+                    nextLine++;
+                    break;
+                } else if (c != '\r') {
+                    field.append((char) c);
+                }
+            }
+            endField(wasQuoted);
+        }
+
+        private void endField(boolean wasQuoted) {
+            row.add(wasQuoted ? field.toString() : field.toString().trim());
+            field.setLength(0);
+        }
+
+        private int read() throws IOException {
+            return fill() ? buffer[position++] : -1;
+        }
+
+        private boolean fill() throws IOException {
+            if (position < limit) {
+                return true;
+            }
+            int read;
+            do {
+                read = in.read(buffer, 0, buffer.length);
+            } while (read == 0);
+            if (read < 0) {
+                return false;
+            }
+            position = 0;
+            limit = read;
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/*
+ * Compact binary copy of a parsed timetable. Startup maps it and reads it
+ * with plain getInt calls, with no text parsing or per-stop array growth.
+ *
+ * Layout, big-endian, all counts and fields ints unless noted:
+ *
+ *   magic "PKTT", version, source stamp (long)
+ *   stations: count, then per station  name, min transfer minutes
+ *   tracks:   count, then per track     from station, to station, km  (station numbers as above)
+ *   trains:   count, then per train     id, name, service days, one seat count per SeatClass,
+ *                                       stop count, then per stop  station, arrival, departure
+ *
+ * A name is its UTF-8 length followed by the bytes. Tracks are stored one
+ * direction at a time, exactly as they are held in memory.
+ */
+final class TimetableSnapshot {
+    private static final int MAGIC = 0x504B5454; // "PKTT"
+    private static final int VERSION = 1;
+
+    private TimetableSnapshot() {
+    }
+
+    // Written to a temporary file and renamed, so a reader never sees half a snapshot
+    static void write(Timetable timetable, Path path, long sourceStamp) throws IOException {
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        Station[] stations = timetable.stations.values().toArray(new Station[0]);
+        Map<Station, Integer> ordinals = new IdentityHashMap<>();
+        for (Station station : stations) {
+            ordinals.put(station, ordinals.size());
+        }
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(temp), 64 * 1024))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceStamp);
+
+            out.writeInt(stations.length);
+            int tracks = 0;
+            for (Station station : stations) {
+                writeName(out, station.name);
+                out.writeInt(station.minTransferMinutes);
+                tracks += station.tracks.size();
+            }
+
+            out.writeInt(tracks);
+            for (Station station : stations) {
+                for (Track track : station.tracks) {
+                    out.writeInt(ordinals.get(track.from));
+                    out.writeInt(ordinals.get(track.to));
+                    out.writeInt(track.distance);
+                }
+            }
+
+            out.writeInt(timetable.trains.size());
+            for (Train train : timetable.trains.values()) {
+                writeName(out, train.id);
+                writeName(out, train.name);
+                out.writeInt(train.serviceDays);
+                for (SeatClass seatClass : SeatClass.values()) {
+                    out.writeInt(train.seatCapacity.getOrDefault(seatClass.label, 0));
+                }
+                out.writeInt(train.stopCount());
+                for (int i = 0; i < train.stopCount(); i++) {
+                    out.writeInt(ordinals.get(train.stops[i]));
+                    out.writeInt(train.arrivals[i]);
+                    out.writeInt(train.departures[i]);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /*
+     * The timetable in the snapshot, or null if there is none, or it was made
+     * from other source files, by another version, or is cut short.
+     */
+    static Timetable read(Path path, long sourceStamp) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                return null;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION || buffer.getLong() != sourceStamp) {
+                return null;
+            }
+            return decode(buffer);
+        } catch (RuntimeException e) {
+            // Cut short or damaged: an index or count out of range, or a bad stop table
+            return null;
+        }
+    }
+
+    private static Timetable decode(ByteBuffer buffer) {
+        int stationCount = count(buffer);
+        Station[] stations = new Station[stationCount];
+        Map<String, Station> byName = new HashMap<>(stationCount * 2);
+        for (int i = 0; i < stationCount; i++) {
+            Station station = new Station(readName(buffer));
+            station.minTransferMinutes = nonNegative(buffer.getInt());
+            stations[i] = station;
+            byName.put(station.name, station);
+        }
+
+        int trackCount = count(buffer);
+        for (int i = 0; i < trackCount; i++) {
+            Station from = stations[buffer.getInt()];
+            Station to = stations[buffer.getInt()];
+            from.tracks.add(new Track(from, to, nonNegative(buffer.getInt())));
+        }
+
+        int trainCount = count(buffer);
+        Map<String, Train> trains = new HashMap<>(trainCount * 2);
+        SeatClass[] classes = SeatClass.values();
+        for (int t = 0; t < trainCount; t++) {
+            Train train = new Train(readName(buffer), readName(buffer));
+            train.serviceDays = buffer.getInt();
+            for (SeatClass seatClass : classes) {
+                train.seatCapacity.put(seatClass.label, nonNegative(buffer.getInt()));
+            }
+            int stopCount = count(buffer);
+            if (stopCount > SeatInventory.MAX_LEGS + 1) {
+                throw new IllegalArgumentException("Too many stops");
+            }
+            Station[] stops = new Station[stopCount];
+            int[] arrivals = new int[stopCount];
+            int[] departures = new int[stopCount];
+            for (int i = 0; i < stopCount; i++) {
+                stops[i] = stations[buffer.getInt()];
+                arrivals[i] = buffer.getInt();
+                departures[i] = buffer.getInt();
+            }
+            train.setStops(stops, arrivals, departures);
+            trains.put(train.id, train);
+        }
+        return Timetable.of(byName, trains);
+    }
+
+    private static void writeName(DataOutputStream out, String name) throws IOException {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    // Every counted item takes at least a byte, so a count past the end of the buffer is damage
+    private static int count(ByteBuffer buffer) {
+        int count = buffer.getInt();
+        if (count < 0 || count > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        return count;
+    }
+
+    // The CSV files never give a negative transfer time, distance or seat count, so the snapshot cannot either
+    private static int nonNegative(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value " + value);
+        }
+        return value;
+    }
+
+    private static String readName(ByteBuffer buffer) {
+        byte[] bytes = new byte[count(buffer)];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,11 @@
+class Track {
+    Station from;
+    Station to;
+    int distance;
+
+    Track(Station from, Station to, int distance) {
+        this.from = from;
+        this.to = to;
+        this.distance = distance;
+    }
+}
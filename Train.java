@@ -0,0 +1,66 @@
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+class Train {
+    String id;
+    String name;
+    // Stop tables in calling order; times are ServiceTime minutes, so past midnight is > 1440
+    Station[] stops = new Station[0];
+    int[] arrivals = new int[0];
+    int[] departures = new int[0];
+    Map<String, Integer> seatCapacity = new HashMap<>();
+    int serviceDays = 0b1111111; // bit 0 = Monday ... bit 6 = Sunday
+
+    Train(String id, String name) {
+        this.id = id;
+        this.name = name;
+        seatCapacity.put("Economy", 300);
+        seatCapacity.put("Business", 120);
+        seatCapacity.put("AC", 60);
+    }
+
+    // Appends the next calling point; times are "HH:mm" as printed in the timetable
+    void addStop(Station station, String arrival, String departure) {
+        int count = stops.length;
+        int previous = count == 0 ? 0 : departures[count - 1];
+        int arrive = ServiceTime.rollForward(ServiceTime.parse(arrival), previous);
+        int depart = ServiceTime.rollForward(ServiceTime.parse(departure), arrive);
+        stops = Arrays.copyOf(stops, count + 1);
+        arrivals = Arrays.copyOf(arrivals, count + 1);
+        departures = Arrays.copyOf(departures, count + 1);
+        stops[count] = station;
+        arrivals[count] = arrive;
+        departures[count] = depart;
+    }
+
+    // Replaces the whole stop table at once; times are ServiceTime minutes, already rolled forward
+    void setStops(Station[] stops, int[] arrivals, int[] departures) {
+        if (arrivals.length != stops.length || departures.length != stops.length) {
+            throw new IllegalArgumentException("Stop table columns differ in length for " + id);
+        }
+        this.stops = stops;
+        this.arrivals = arrivals;
+        this.departures = departures;
+    }
+
+    // Whether a run of this train leaves its first stop on that day
+    boolean runsOn(LocalDate day) {
+        return (serviceDays & (1 << (day.getDayOfWeek().getValue() - 1))) != 0;
+    }
+
+    int stopCount() {
+        return stops.length;
+    }
+
+    // Position of the station in the stop order, or -1 if the train does not call there
+    int stopIndex(Station station) {
+        for (int i = 0; i < stops.length; i++) {
+            if (stops[i] == station) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,232 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Passengers waiting for a seat on a sold-out service: one train, date and
+ * class. Lower priority numbers go first, then whoever joined first.
+ *
+ * Within a service the entries are kept in one heap per stop range, so a seat
+ * freed by a cancellation only has to look at the head of each range that now
+ * fits on it: O(ranges + log n), with no scan of the waitlist or the bookings.
+ * The freed legs go straight to the chosen passenger in the same
+ * compare-and-set that releases them (SeatInventory.releaseTo), so a booker
+ * racing the cancellation can never get the same seat. Whatever no waiting
+ * passenger fits goes back on sale.
+ *
+ * Each service's queue is its own lock; cancellations on different services
+ * never wait for each other. A queue that runs empty is retired and dropped
+ * from the map, and whoever finds a retired queue looks the service up again.
+ * Entries live in memory only and are gone after a restart.
+ */
+final class Waitlist {
+    private static final Comparator<Entry> ORDER = Comparator.comparingInt((Entry e) -> e.priority)
+            .thenComparingLong(e -> e.sequence);
+
+    private final SeatInventory seats;
+    private final Map<SeatInventory.SeatKey, Queue> queues = new ConcurrentHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    // One waiting passenger; 'promoted' completes with the booking once a seat is found
+    static final class Entry {
+        final String user;
+        final Train train;
+        final String from;
+        final String to;
+        final String date;
+        final String passengerName;
+        final String gender;
+        final String seatClass;
+        final String paymentInfo;
+        final int priority;
+        final int fromStop;
+        final int toStop;
+        final long legs;
+        final CompletableFuture<Booking> promoted = new CompletableFuture<>();
+        private long sequence;
+
+        Entry(String user, Train train, String from, String to, int fromStop, int toStop, String date,
+                String passengerName, String gender, String seatClass, String paymentInfo, int priority) {
+            this.user = user;
+            this.train = train;
+            this.from = from;
+            this.to = to;
+            this.fromStop = fromStop;
+            this.toStop = toStop;
+            this.legs = SeatInventory.legMask(fromStop, toStop);
+            this.date = date;
+            this.passengerName = passengerName;
+            this.gender = gender;
+            this.seatClass = seatClass;
+            this.paymentInfo = paymentInfo;
+            this.priority = priority;
+        }
+
+        SeatInventory.SeatKey service() {
+            return new SeatInventory.SeatKey(train.id, date, seatClass);
+        }
+    }
+
+    Waitlist(SeatInventory seats) {
+        this.seats = seats;
+    }
+
+    /*
+     * Queues the entry, unless a seat has come free since the caller found the
+     * service sold out: then that seat is held for it and its number returned.
+     * Returns -1 once the entry is queued.
+     */
+    int join(Entry entry) {
+        while (true) {
+            Queue queue = queues.computeIfAbsent(entry.service(), key -> new Queue());
+            synchronized (queue) {
+                if (queue.retired) {
+                    continue;
+                }
+                int seat = seats.reserve(entry.train, entry.date, entry.seatClass, entry.fromStop, entry.toStop);
+                if (seat > 0) {
+                    retireIfEmpty(entry.service(), queue);
+                    return seat;
+                }
+                entry.sequence = sequence.incrementAndGet();
+                queue.add(entry);
+                return -1;
+            }
+        }
+    }
+
+    // Puts back an entry whose promotion could not be written, in its old place
+    void requeue(Entry entry) {
+        while (true) {
+            Queue queue = queues.computeIfAbsent(entry.service(), key -> new Queue());
+            synchronized (queue) {
+                if (!queue.retired) {
+                    queue.add(entry);
+                    return;
+                }
+            }
+        }
+    }
+
+    boolean leave(Entry entry) {
+        Queue queue = queues.get(entry.service());
+        if (queue == null) {
+            return false;
+        }
+        synchronized (queue) {
+            // A retired queue is empty, so remove() finds nothing in it
+            boolean left = queue.remove(entry);
+            retireIfEmpty(entry.service(), queue);
+            return left;
+        }
+    }
+
+    // Passengers waiting for this service
+    int length(Train train, String date, String seatClass) {
+        Queue queue = queues.get(new SeatInventory.SeatKey(train.id, date, seatClass));
+        if (queue == null) {
+            return 0;
+        }
+        synchronized (queue) {
+            return queue.size;
+        }
+    }
+
+    /*
+     * Gives up the legs of a cancelled booking's seat. Every waiting passenger
+     * that then fits on the seat, best first, gets it in the same step; the
+     * returned entries now hold the seat and still have to be written as
+     * bookings.
+     */
+    List<Entry> release(Train train, String date, String seatClass, int seatNumber, long legs) {
+        SeatInventory.SeatKey service = new SeatInventory.SeatKey(train.id, date, seatClass);
+        while (true) {
+            Queue queue = queues.get(service);
+            if (queue == null) {
+                if (legs == 0) {
+                    return List.of();
+                }
+                // join() holds the queue while it checks for a free seat, so one created after this still sees ours
+                seats.releaseTo(train, date, seatClass, seatNumber, legs, sold -> 0);
+                legs = 0;
+                continue;
+            }
+            synchronized (queue) {
+                if (queue.retired) {
+                    continue;
+                }
+                List<Entry> promoted = new ArrayList<>();
+                while (true) {
+                    Entry[] chosen = new Entry[1];
+                    seats.releaseTo(train, date, seatClass, seatNumber, legs, sold -> {
+                        chosen[0] = queue.best(sold);
+                        return chosen[0] == null ? 0 : chosen[0].legs;
+                    });
+                    legs = 0;
+                    if (chosen[0] == null) {
+                        retireIfEmpty(service, queue);
+                        return promoted;
+                    }
+                    queue.remove(chosen[0]);
+                    promoted.add(chosen[0]);
+                }
+            }
+        }
+    }
+
+    // Called holding the queue; join() and requeue() make a fresh one for the service when they next need it
+    private void retireIfEmpty(SeatInventory.SeatKey service, Queue queue) {
+        if (queue.size == 0 && !queue.retired) {
+            queue.retired = true;
+            queues.remove(service, queue);
+        }
+    }
+
+    // The entries of one service, guarded by the Queue itself
+    private static final class Queue {
+        private final Map<Long, PriorityQueue<Entry>> byLegs = new HashMap<>();
+        private int size;
+        private boolean retired;
+
+        void add(Entry entry) {
+            byLegs.computeIfAbsent(entry.legs, legs -> new PriorityQueue<>(ORDER)).add(entry);
+            size++;
+        }
+
+        boolean remove(Entry entry) {
+            PriorityQueue<Entry> heap = byLegs.get(entry.legs);
+            if (heap == null) {
+                return false;
+            }
+            // poll() when it is the head, which is the case for every promotion
+            boolean removed = heap.peek() == entry ? heap.poll() != null : heap.remove(entry);
+            if (removed) {
+                size--;
+                if (heap.isEmpty()) {
+                    byLegs.remove(entry.legs);
+                }
+            }
+            return removed;
+        }
+
+        // The first entry in waitlist order whose legs are all free on a seat with these legs sold
+        Entry best(long sold) {
+            Entry best = null;
+            for (Map.Entry<Long, PriorityQueue<Entry>> range : byLegs.entrySet()) {
+                if ((range.getKey() & sold) == 0) {
+                    Entry head = range.getValue().peek();
+                    if (best == null || ORDER.compare(head, best) < 0) {
+                        best = head;
+                    }
+                }
+            }
+            return best;
+        }
+    }
+}
@@ -0,0 +1,238 @@
+import pk.railway.bench.RailwayFixture;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.stream.Stream;
+
+/*
+ * Synthetic networks and booking files for the JMH benchmarks (see
+ * pk.railway.bench.RailwayFixture for why this class is in the default package).
+ *
+ * The network comes from WorkloadGenerator with a fixed seed, so a (trains,
+ * bookings) pair always produces the same timetable. The booking file generated
+ * the first time is kept and reused.
+ */
+public class RailwayFixtures implements RailwayFixture {
+    private static final long SEED = 20240101L;
+    private static final LocalDate FIRST_DAY = LocalDate.of(2030, 1, 1);
+    private static final int BOOKINGS_PER_USER = 100;
+    private static final int QUERIES = 1024;
+    private static final int BOOKINGS_PER_DAY = 50; // per query in book(), well under an AC coach
+    private static final int NETWORK_VERSION = 4; // bump when WorkloadGenerator.network or the booking file format changes
+    private static final String DATA_FILE = "bookings.dat";
+    private static final String COMPLETE_MARKER = "complete";
+    private static final String[] GENDERS = { "Male", "Female" };
+    private static final String[] PAYMENTS = { "Credit Card", "JazzCash", "EasyPaisa", "Cash" };
+
+    private final BookingService service;
+    private final BookingSession[] sessions;
+    private final Path privateDir;
+
+    // Prepared searches; each has at least one direct train
+    private final Train[] queryTrain = new Train[QUERIES];
+    private final String[] queryFrom = new String[QUERIES];
+    private final String[] queryTo = new String[QUERIES];
+    private final String[] queryDate = new String[QUERIES];
+    private final String[] queryClass = new String[QUERIES];
+    private final AtomicIntegerArray booked = new AtomicIntegerArray(QUERIES);
+    private final int bookingDays;
+
+    private RailwayFixtures(BookingService service, int users, int bookingDays, Path privateDir) {
+        this.service = service;
+        this.privateDir = privateDir;
+        this.bookingDays = bookingDays;
+        sessions = new BookingSession[users];
+        for (int i = 0; i < users; i++) {
+            sessions[i] = service.openSession(userName(i));
+        }
+        Random random = new Random(SEED + 1);
+        Train[] trains = service.trains().stream()
+                .sorted(Comparator.comparing((Train train) -> train.id))
+                .toArray(Train[]::new);
+        String[] classes = SeatClass.labels();
+        for (int q = 0; q < QUERIES; q++) {
+            Train train = trains[random.nextInt(trains.length)];
+            int from = random.nextInt(train.stopCount() - 1);
+            int to = from + 1 + random.nextInt(train.stopCount() - from - 1);
+            queryTrain[q] = train;
+            queryFrom[q] = train.stops[from].name;
+            queryTo[q] = train.stops[to].name;
+            queryDate[q] = date(runningDay(train, random.nextInt(bookingDays)));
+            queryClass[q] = classes[q % classes.length];
+        }
+    }
+
+    public static RailwayFixture open(Path dataDir, int trains, int bookings, String durability,
+            boolean privateCopy) throws IOException {
+        Path baseDir = dataDir.resolve("network" + NETWORK_VERSION + "-t" + trains + "-b" + bookings);
+        Timetable timetable = WorkloadGenerator.network(Math.max(12, trains / 5), trains, SEED);
+        int users = Math.max(1, bookings / BOOKINGS_PER_USER);
+        int days = Math.max(365, bookings / (trains * 50));
+        if (!Files.exists(baseDir.resolve(COMPLETE_MARKER))) {
+            generate(baseDir, timetable, bookings, users, days);
+        }
+
+        Path dir = baseDir;
+        Path privateDir = null;
+        if (privateCopy) {
+            privateDir = Files.createTempDirectory(dataDir, "run-");
+            for (String name : new String[] { DATA_FILE, DATA_FILE + ".idx", DATA_FILE + ".dict" }) {
+                Path source = baseDir.resolve(name);
+                if (Files.exists(source)) {
+                    Files.copy(source, privateDir.resolve(name), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            dir = privateDir;
+        }
+        BookingStore store = new BookingStore(dir.resolve(DATA_FILE), Durability.fromProperty(durability),
+                0, 0.5, 100);
+        return new RailwayFixtures(new BookingService(timetable, store), users, days, privateDir);
+    }
+
+    // Books through the real service so seats, IDs and the index are all consistent
+    private static void generate(Path dir, Timetable timetable, int bookings, int users, int days)
+            throws IOException {
+        Files.createDirectories(dir);
+        for (String name : new String[] { DATA_FILE, DATA_FILE + ".idx", DATA_FILE + ".dict", COMPLETE_MARKER }) {
+            Files.deleteIfExists(dir.resolve(name));
+        }
+        Random random = new Random(SEED + 2);
+        BookingStore store = new BookingStore(dir.resolve(DATA_FILE), Durability.OS_BUFFERED, 0, 1.0,
+                Long.MAX_VALUE);
+        BookingService service = new BookingService(timetable, store);
+        try {
+            BookingSession[] sessions = new BookingSession[users];
+            for (int i = 0; i < users; i++) {
+                sessions[i] = service.openSession(userName(i));
+            }
+            Train[] trains = timetable.trains.values().stream()
+                    .sorted(Comparator.comparing((Train train) -> train.id))
+                    .toArray(Train[]::new);
+            String[] classes = SeatClass.labels();
+            int made = 0;
+            int attempts = 0;
+            while (made < bookings && attempts < bookings * 4) {
+                attempts++;
+                Train train = trains[random.nextInt(trains.length)];
+                int from = random.nextInt(train.stopCount() - 1);
+                int to = from + 1 + random.nextInt(train.stopCount() - from - 1);
+                int day = random.nextInt(days);
+                if (!runs(train, day)) {
+                    continue;
+                }
+                Booking booking = service.book(sessions[random.nextInt(users)], train, train.stops[from].name,
+                        train.stops[to].name, date(day), "Passenger" + made,
+                        GENDERS[random.nextInt(GENDERS.length)], classes[random.nextInt(classes.length)],
+                        PAYMENTS[random.nextInt(PAYMENTS.length)]);
+                if (booking != null) {
+                    made++;
+                }
+            }
+            if (made < bookings) {
+                // A smaller dataset would be measured under the larger size's name
+                throw new IOException("Only " + made + " of " + bookings + " bookings fitted on " + trains.length
+                        + " trains over " + days + " days; use more trains or days");
+            }
+        } finally {
+            service.close();
+        }
+        Files.createFile(dir.resolve(COMPLETE_MARKER));
+    }
+
+    private static String userName(int user) {
+        return "user" + user;
+    }
+
+    private static String date(int day) {
+        return FIRST_DAY.plusDays(day).format(AvailabilityService.DATE_FORMAT);
+    }
+
+    private static boolean runs(Train train, int day) {
+        return train.runsOn(FIRST_DAY.plusDays(day));
+    }
+
+    // The first day from 'day' on that the train runs; 'day' itself for a train that never does
+    private static int runningDay(Train train, int day) {
+        for (int next = day; next < day + 7; next++) {
+            if (runs(train, next)) {
+                return next;
+            }
+        }
+        return day;
+    }
+
+    @Override
+    public int queryCount() {
+        return QUERIES;
+    }
+
+    @Override
+    public int userCount() {
+        return sessions.length;
+    }
+
+    @Override
+    public String[][] trainData(int query) {
+        return PakistanRailwaySystem.getTrainData(service, queryFrom[query], queryTo[query], queryDate[query]);
+    }
+
+    @Override
+    public int durations(int query) {
+        int length = 0;
+        for (RouteIndex.RouteEntry route : service.search(queryFrom[query], queryTo[query])) {
+            length += ServiceTime.formatDuration(route.arrival - route.departure).length();
+        }
+        return length;
+    }
+
+    @Override
+    public int monthAvailability(int query) {
+        YearMonth month = YearMonth.from(LocalDate.parse(queryDate[query], AvailabilityService.DATE_FORMAT));
+        return Long.bitCount(service.availability().compute(queryFrom[query], queryTo[query], month).serviceDays);
+    }
+
+    /*
+     * Dates after the generated range, moving on every BOOKINGS_PER_DAY
+     * bookings of the same search. The counts of a day the train does not run
+     * are used up without booking; every generated train runs most days.
+     */
+    @Override
+    public String book(int query, int user) throws IOException {
+        int day;
+        do {
+            day = bookingDays + booked.getAndIncrement(query) / BOOKINGS_PER_DAY;
+        } while (!runs(queryTrain[query], day));
+        Booking booking = service.book(sessions[user], queryTrain[query], queryFrom[query], queryTo[query],
+                date(day), "Bench Passenger", "Female", queryClass[query], "Cash");
+        return booking == null ? null : booking.bookingId;
+    }
+
+    @Override
+    public int viewBookings(int user) throws IOException {
+        return service.bookings(sessions[user], IoProgress.NONE).size();
+    }
+
+    @Override
+    public boolean cancel(int user, String bookingId) throws IOException {
+        return service.cancel(sessions[user], bookingId);
+    }
+
+    @Override
+    public void close() throws IOException {
+        service.close();
+        if (privateDir != null) {
+            try (Stream<Path> files = Files.walk(privateDir)) {
+                for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                    Files.deleteIfExists(path);
+                }
+            }
+        }
+    }
+}
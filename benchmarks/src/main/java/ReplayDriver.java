@@ -0,0 +1,314 @@
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/*
+ * Pushes a WorkloadGenerator stream through BookingService and reports
+ * throughput and latency percentiles, to find where a node saturates.
+ *
+ *   java -cp benchmarks/target/benchmarks.jar ReplayDriver --rate=500,1000,2000,4000 --ops=50000
+ *
+ * With --rate=0 every client sends its next request as soon as the last one
+ * returns (flat out). With a rate the requests are scheduled at fixed
+ * intervals, whether or not the node keeps up, and latency is measured from the
+ * scheduled start. A node that falls behind then shows its queueing delay
+ * instead of quietly slowing the load down. A list of rates runs one step per
+ * rate against the same node; the saturation point is where achieved
+ * throughput stops following the target and p99 takes off.
+ *
+ * Options (defaults): --stations (100) --trains (500) --users (10000)
+ * --ops per step (100000) --warmup (20000) --rate (0) --clients (64)
+ * --skew (1.0) --cancel (0.1) --search (0.3) --horizon days (90) --seed (1)
+ * --durability (GROUP_COMMIT) --dir (a temporary directory, removed at the end)
+ *
+ * Each step also prints the service's own Metrics for that step, which splits
+ * a booking's latency into the journal append and fsync underneath it.
+ */
+class ReplayDriver {
+    private static final LocalDate FIRST_DAY = LocalDate.of(2030, 1, 1);
+
+    private final BookingService service;
+    private final WorkloadGenerator generator;
+    private final BookingSession[] sessions;
+    private final List<ConcurrentLinkedQueue<String>> bookedIds;
+    private final int clients;
+    private final SplittableRandom seeds;
+
+    ReplayDriver(BookingService service, WorkloadGenerator generator, int users, int clients, long seed) {
+        this.service = service;
+        this.generator = generator;
+        this.clients = clients;
+        this.seeds = new SplittableRandom(seed);
+        sessions = new BookingSession[users];
+        bookedIds = new ArrayList<>(users);
+        for (int i = 0; i < users; i++) {
+            sessions[i] = service.openSession("user" + i);
+            bookedIds.add(new ConcurrentLinkedQueue<>());
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        int stations = Integer.parseInt(options.getOrDefault("stations", "100"));
+        int trains = Integer.parseInt(options.getOrDefault("trains", "500"));
+        int users = Integer.parseInt(options.getOrDefault("users", "10000"));
+        long ops = Long.parseLong(options.getOrDefault("ops", "100000"));
+        long warmup = Long.parseLong(options.getOrDefault("warmup", "20000"));
+        int clients = Integer.parseInt(options.getOrDefault("clients", "64"));
+        double skew = Double.parseDouble(options.getOrDefault("skew", "1.0"));
+        double cancel = Double.parseDouble(options.getOrDefault("cancel", "0.1"));
+        double search = Double.parseDouble(options.getOrDefault("search", "0.3"));
+        int horizon = Integer.parseInt(options.getOrDefault("horizon", "90"));
+        long seed = Long.parseLong(options.getOrDefault("seed", "1"));
+        Durability durability = Durability.fromProperty(options.getOrDefault("durability", "GROUP_COMMIT"));
+        String[] rates = options.getOrDefault("rate", "0").split(",");
+
+        Timetable timetable = WorkloadGenerator.network(stations, trains, seed);
+        WorkloadGenerator generator = new WorkloadGenerator(timetable, FIRST_DAY, horizon, users, skew, cancel,
+                search, seed);
+        boolean temporary = !options.containsKey("dir");
+        Path dir = temporary ? Files.createTempDirectory("railway-replay") : Path.of(options.get("dir"));
+        Files.createDirectories(dir);
+
+        BookingStore store = new BookingStore(dir.resolve("bookings.dat"), durability, 0, 0.5, 100);
+        BookingService service = new BookingService(timetable, store);
+        try {
+            ReplayDriver driver = new ReplayDriver(service, generator, users, clients, seed);
+            System.out.printf("%d stations, %d trains, %d users, %d clients, %s, skew %.2f%n",
+                    stations, trains, users, clients, durability, skew);
+            if (warmup > 0) {
+                driver.run(warmup, 0);
+            }
+            LatencyHistogram.Snapshot[] marks = Metrics.snapshots();
+            for (String rate : rates) {
+                Result result = driver.run(ops, Double.parseDouble(rate.trim()));
+                result.print(System.out);
+                // Where the time went inside the service during this step
+                System.out.println(Metrics.report(marks));
+            }
+        } finally {
+            service.close();
+            if (temporary) {
+                deleteRecursively(dir);
+            }
+        }
+    }
+
+    // Replays 'ops' requests at 'rate' per second (0 = flat out)
+    Result run(long ops, double rate) throws Exception {
+        long period = rate > 0 ? (long) (1_000_000_000L / rate) : 0;
+        AtomicLong next = new AtomicLong();
+        Client[] workers = new Client[clients];
+        long start = System.nanoTime();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> running = new ArrayList<>();
+            for (int c = 0; c < clients; c++) {
+                Client client = new Client(seeds.split());
+                workers[c] = client;
+                running.add(executor.submit(() -> {
+                    client.run(next, ops, start, period);
+                    return null;
+                }));
+            }
+            for (Future<?> future : running) {
+                future.get();
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+
+        Result result = new Result(rate, ops, elapsed);
+        for (Client client : workers) {
+            result.add(client);
+        }
+        return result;
+    }
+
+    private final class Client {
+        final SplittableRandom random;
+        final long[][] latencies = new long[WorkloadGenerator.Kind.values().length][];
+        final int[] counts = new int[latencies.length];
+        long booked;
+        long soldOut;
+        long cancelled;
+        long nothingToCancel;
+        long errors;
+
+        Client(SplittableRandom random) {
+            this.random = random;
+            for (int k = 0; k < latencies.length; k++) {
+                latencies[k] = new long[1024];
+            }
+        }
+
+        void run(AtomicLong next, long ops, long start, long period) {
+            long i;
+            while ((i = next.getAndIncrement()) < ops) {
+                long begin;
+                if (period > 0) {
+                    begin = start + i * period;
+                    long wait = begin - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                } else {
+                    begin = System.nanoTime();
+                }
+                WorkloadGenerator.Op op = generator.next(random);
+                try {
+                    execute(op, i);
+                } catch (IOException | RuntimeException e) {
+                    errors++;
+                }
+                record(op.kind(), System.nanoTime() - begin);
+            }
+        }
+
+        private void execute(WorkloadGenerator.Op op, long sequence) throws IOException {
+            BookingSession session = sessions[op.user()];
+            switch (op.kind()) {
+                case SEARCH -> PakistanRailwaySystem.getTrainData(service, op.from(), op.to(),
+                        generator.date(op.day()));
+                case BOOK -> {
+                    Booking booking = service.book(session, op.train(), op.from(), op.to(),
+                            generator.date(op.day()), "Passenger" + sequence, WorkloadGenerator.gender(random),
+                            op.seatClass().label, WorkloadGenerator.payment(random));
+                    if (booking == null) {
+                        soldOut++;
+                    } else {
+                        bookedIds.get(op.user()).add(booking.bookingId);
+                        booked++;
+                    }
+                }
+                case CANCEL -> {
+                    String bookingId = bookedIds.get(op.user()).poll();
+                    if (bookingId == null) {
+                        nothingToCancel++;
+                    } else if (service.cancel(session, bookingId)) {
+                        cancelled++;
+                    } else {
+                        errors++;
+                    }
+                }
+            }
+        }
+
+        private void record(WorkloadGenerator.Kind kind, long nanos) {
+            int k = kind.ordinal();
+            if (counts[k] == latencies[k].length) {
+                latencies[k] = Arrays.copyOf(latencies[k], counts[k] * 2);
+            }
+            latencies[k][counts[k]++] = nanos;
+        }
+    }
+
+    static final class Result {
+        private static final double[] PERCENTILES = { 50, 90, 99, 99.9 };
+
+        final double rate;
+        final long ops;
+        final long elapsedNanos;
+        final long[][] latencies = new long[WorkloadGenerator.Kind.values().length][0];
+        long booked;
+        long soldOut;
+        long cancelled;
+        long nothingToCancel;
+        long errors;
+
+        Result(double rate, long ops, long elapsedNanos) {
+            this.rate = rate;
+            this.ops = ops;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        void add(Client client) {
+            for (int k = 0; k < latencies.length; k++) {
+                long[] merged = Arrays.copyOf(latencies[k], latencies[k].length + client.counts[k]);
+                System.arraycopy(client.latencies[k], 0, merged, latencies[k].length, client.counts[k]);
+                latencies[k] = merged;
+            }
+            booked += client.booked;
+            soldOut += client.soldOut;
+            cancelled += client.cancelled;
+            nothingToCancel += client.nothingToCancel;
+            errors += client.errors;
+        }
+
+        void print(PrintStream out) {
+            double seconds = elapsedNanos / 1e9;
+            out.printf("%nTarget %s: %d ops in %.2f s = %.0f ops/s%n",
+                    rate > 0 ? String.format("%.0f ops/s", rate) : "flat out", ops, seconds, ops / seconds);
+            out.printf("  booked %d, sold out %d, cancelled %d, nothing to cancel %d, errors %d%n",
+                    booked, soldOut, cancelled, nothingToCancel, errors);
+            out.printf("  %-7s %9s %10s %10s %10s %10s %10s %10s%n",
+                    "op", "count", "mean us", "p50 us", "p90 us", "p99 us", "p99.9 us", "max us");
+            long[] all = new long[0];
+            for (WorkloadGenerator.Kind kind : WorkloadGenerator.Kind.values()) {
+                long[] sorted = latencies[kind.ordinal()];
+                all = concat(all, sorted);
+                printRow(out, kind.name(), sorted);
+            }
+            printRow(out, "ALL", all);
+        }
+
+        private static void printRow(PrintStream out, String name, long[] values) {
+            if (values.length == 0) {
+                return;
+            }
+            Arrays.sort(values);
+            long sum = 0;
+            for (long value : values) {
+                sum += value;
+            }
+            StringBuilder row = new StringBuilder(String.format("  %-7s %9d %10.1f", name, values.length,
+                    sum / 1e3 / values.length));
+            for (double percentile : PERCENTILES) {
+                int index = (int) Math.min(values.length - 1, Math.ceil(percentile / 100 * values.length) - 1);
+                row.append(String.format(" %10.1f", values[Math.max(0, index)] / 1e3));
+            }
+            row.append(String.format(" %10.1f", values[values.length - 1] / 1e3));
+            out.println(row);
+        }
+
+        private static long[] concat(long[] a, long[] b) {
+            long[] joined = Arrays.copyOf(a, a.length + b.length);
+            System.arraycopy(b, 0, joined, a.length, b.length);
+            return joined;
+        }
+    }
+
+    private static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Options look like --name=value, got " + arg);
+            }
+            int eq = arg.indexOf('=');
+            options.put(eq < 0 ? arg.substring(2) : arg.substring(2, eq), eq < 0 ? "true" : arg.substring(eq + 1));
+        }
+        return options;
+    }
+
+    private static void deleteRecursively(Path dir) throws IOException {
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path path : files.sorted(Comparator.reverseOrder()).toList()) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+}
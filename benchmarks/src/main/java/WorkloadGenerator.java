@@ -0,0 +1,260 @@
+import java.time.LocalDate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+
+/*
+ * Synthetic workloads for capacity testing: a timetable shaped like the
+ * built-in one, and streams of searches, bookings and cancellations.
+ *
+ * The network is a main line with branch lines hanging off it, the way
+ * Karachi - Lahore - Peshawar has Quetta and Sialkot hanging off it, so there
+ * is exactly one path between two stations. Trains run along that path between
+ * two stations, and some only call at every other station. Track lengths and
+ * times are drawn from a fixed seed, so a (stations, trains, seed) triple always
+ * gives the same timetable.
+ *
+ * Popularity is skewed the way real demand is. Stations are ranked by a Zipf
+ * law, and a route is drawn in proportion to the popularity of its two ends.
+ * Travel dates follow a Zipf law over days ahead, so tomorrow is busier than
+ * next month. One skew exponent drives both; 0 makes everything uniform.
+ */
+class WorkloadGenerator {
+    enum Kind { BOOK, CANCEL, SEARCH }
+
+    // One request; CANCEL carries only the user, and the driver picks one of their bookings
+    record Op(Kind kind, int user, Train train, int fromStop, int toStop, int day, SeatClass seatClass) {
+        String from() {
+            return train.stops[fromStop].name;
+        }
+
+        String to() {
+            return train.stops[toStop].name;
+        }
+    }
+
+    private static final int MAX_STOPS = 12;
+    private static final String[] GENDERS = { "Male", "Female" };
+    private static final String[] PAYMENTS = { "Credit Card", "Debit Card", "JazzCash", "EasyPaisa", "Cash" };
+
+    private final LocalDate firstDay;
+    private final int users;
+    private final double cancelFraction;
+    private final double searchFraction;
+
+    // Every (train, from, to) a passenger can book, with cumulative popularity weights
+    private final Train[] routeTrain;
+    private final int[] routeFrom;
+    private final int[] routeTo;
+    private final double[] routeCdf;
+    private final double[] dayCdf;
+
+    WorkloadGenerator(Timetable timetable, LocalDate firstDay, int horizonDays, int users, double skew,
+            double cancelFraction, double searchFraction, long seed) {
+        if (cancelFraction < 0 || searchFraction < 0 || cancelFraction + searchFraction > 1) {
+            throw new IllegalArgumentException("Cancel and search fractions must add up to at most 1");
+        }
+        this.firstDay = firstDay;
+        this.users = users;
+        this.cancelFraction = cancelFraction;
+        this.searchFraction = searchFraction;
+
+        // Rank stations in a seeded random order so popularity does not follow the line
+        List<String> names = new ArrayList<>(timetable.stations.keySet());
+        names.sort(null);
+        Collections.shuffle(names, new Random(seed));
+        Map<Station, Double> popularity = new HashMap<>();
+        for (int rank = 0; rank < names.size(); rank++) {
+            popularity.put(timetable.stations.get(names.get(rank)), 1.0 / Math.pow(rank + 1, skew));
+        }
+
+        List<Train> trains = new ArrayList<>(timetable.trains.values());
+        trains.sort((a, b) -> a.id.compareTo(b.id));
+        int routes = 0;
+        for (Train train : trains) {
+            routes += train.stopCount() * (train.stopCount() - 1) / 2;
+        }
+        routeTrain = new Train[routes];
+        routeFrom = new int[routes];
+        routeTo = new int[routes];
+        routeCdf = new double[routes];
+        int r = 0;
+        double total = 0;
+        for (Train train : trains) {
+            for (int from = 0; from < train.stopCount(); from++) {
+                for (int to = from + 1; to < train.stopCount(); to++) {
+                    total += popularity.get(train.stops[from]) * popularity.get(train.stops[to]);
+                    routeTrain[r] = train;
+                    routeFrom[r] = from;
+                    routeTo[r] = to;
+                    routeCdf[r++] = total;
+                }
+            }
+        }
+
+        dayCdf = new double[horizonDays];
+        total = 0;
+        for (int day = 0; day < horizonDays; day++) {
+            total += 1.0 / Math.pow(day + 1, skew);
+            dayCdf[day] = total;
+        }
+    }
+
+    // Draws the next request; each thread passes its own random source
+    Op next(SplittableRandom random) {
+        int user = random.nextInt(users);
+        double kind = random.nextDouble();
+        if (kind < cancelFraction) {
+            return new Op(Kind.CANCEL, user, null, -1, -1, -1, null);
+        }
+        int route = sample(routeCdf, random);
+        Kind type = kind < cancelFraction + searchFraction ? Kind.SEARCH : Kind.BOOK;
+        SeatClass[] classes = SeatClass.values();
+        Train train = routeTrain[route];
+        return new Op(type, user, train, routeFrom[route], routeTo[route], runningDay(train, sample(dayCdf, random)),
+                classes[random.nextInt(classes.length)]);
+    }
+
+    String date(int day) {
+        return firstDay.plusDays(day).format(AvailabilityService.DATE_FORMAT);
+    }
+
+    // The first day from 'day' on that the train runs, so no request is for a run that does not exist
+    private int runningDay(Train train, int day) {
+        for (int next = day; next < day + 7; next++) {
+            if (train.runsOn(firstDay.plusDays(next))) {
+                return next;
+            }
+        }
+        return day;
+    }
+
+    static String gender(SplittableRandom random) {
+        return GENDERS[random.nextInt(GENDERS.length)];
+    }
+
+    static String payment(SplittableRandom random) {
+        return PAYMENTS[random.nextInt(PAYMENTS.length)];
+    }
+
+    private static int sample(double[] cdf, SplittableRandom random) {
+        double target = random.nextDouble() * cdf[cdf.length - 1];
+        int index = Arrays.binarySearch(cdf, target);
+        return Math.min(cdf.length - 1, index >= 0 ? index + 1 : -index - 1);
+    }
+
+    /*
+     * A main line of about half the stations, with the rest split into branch
+     * lines of two to six stations that leave it at random junctions.
+     */
+    static Timetable network(int stationCount, int trainCount, long seed) {
+        if (stationCount < 2) {
+            throw new IllegalArgumentException("A network needs at least two stations");
+        }
+        Random random = new Random(seed);
+        Station[] stations = new Station[stationCount];
+        Map<String, Station> byName = new HashMap<>();
+        List<List<Integer>> adjacent = new ArrayList<>();
+        for (int i = 0; i < stationCount; i++) {
+            stations[i] = new Station("Station" + i);
+            // Platform changes take 10 to 30 minutes depending on the station
+            stations[i].minTransferMinutes = 10 + random.nextInt(5) * 5;
+            byName.put(stations[i].name, stations[i]);
+            adjacent.add(new ArrayList<>());
+        }
+
+        int mainLine = Math.max(2, stationCount / 2);
+        for (int i = 1; i < mainLine; i++) {
+            connect(stations, adjacent, i - 1, i, random);
+        }
+        int next = mainLine;
+        while (next < stationCount) {
+            int junction = random.nextInt(mainLine);
+            int length = Math.min(stationCount - next, 2 + random.nextInt(5));
+            int previous = junction;
+            for (int k = 0; k < length; k++) {
+                connect(stations, adjacent, previous, next, random);
+                previous = next++;
+            }
+        }
+
+        Map<String, Train> trains = new HashMap<>();
+        for (int t = 0; t < trainCount; t++) {
+            int[] path;
+            do {
+                path = path(adjacent, random.nextInt(stationCount), random.nextInt(stationCount));
+            } while (path.length < 2);
+            if (path.length > MAX_STOPS) {
+                int start = random.nextInt(path.length - MAX_STOPS + 1);
+                path = Arrays.copyOfRange(path, start, start + MAX_STOPS);
+            }
+            boolean express = path.length > 5 && random.nextInt(3) == 0;
+
+            Train train = new Train(String.format("PK%04d", t), (express ? "Express " : "Mail ") + t);
+            int minute = 4 * 60 + random.nextInt(18 * 60);
+            for (int k = 0; k < path.length; k++) {
+                boolean last = k == path.length - 1;
+                if (express && !last && k % 2 == 1) {
+                    minute += 30 + random.nextInt(60); // runs through without stopping
+                    continue;
+                }
+                String arrival = clock(minute);
+                minute += last ? 0 : 5 + random.nextInt(11);
+                train.addStop(stations[path[k]], arrival, clock(minute));
+                minute += 45 + random.nextInt(120);
+            }
+            if (random.nextInt(5) == 0) {
+                train.serviceDays = 0b0111111; // no Sunday service
+            }
+            trains.put(train.id, train);
+        }
+        return Timetable.of(byName, trains);
+    }
+
+    private static void connect(Station[] stations, List<List<Integer>> adjacent, int a, int b, Random random) {
+        int km = 40 + random.nextInt(161);
+        stations[a].tracks.add(new Track(stations[a], stations[b], km));
+        stations[b].tracks.add(new Track(stations[b], stations[a], km));
+        adjacent.get(a).add(b);
+        adjacent.get(b).add(a);
+    }
+
+    // Station indices along the only path from 'from' to 'to'
+    private static int[] path(List<List<Integer>> adjacent, int from, int to) {
+        int[] parent = new int[adjacent.size()];
+        Arrays.fill(parent, -2);
+        parent[from] = -1;
+        Deque<Integer> queue = new ArrayDeque<>();
+        queue.add(from);
+        while (!queue.isEmpty() && parent[to] == -2) {
+            int station = queue.poll();
+            for (int neighbour : adjacent.get(station)) {
+                if (parent[neighbour] == -2) {
+                    parent[neighbour] = station;
+                    queue.add(neighbour);
+                }
+            }
+        }
+        int length = 0;
+        for (int s = to; s != -1; s = parent[s]) {
+            length++;
+        }
+        int[] path = new int[length];
+        for (int s = to, i = length - 1; s != -1; s = parent[s], i--) {
+            path[i] = s;
+        }
+        return path;
+    }
+
+    private static String clock(int minute) {
+        int inDay = minute % (24 * 60);
+        return String.format("%02d:%02d", inDay / 60, inDay % 60);
+    }
+}
@@ -0,0 +1,104 @@
+package pk.railway.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Booking file paths: writing a new booking (what updateBookingFile did), the
+ * My Bookings read-and-split loop, and cancellation. Each trial works on its
+ * own copy of the cached booking file, so bookings made here never leak into
+ * the next run.
+ *
+ * book and cancel go through the journal with the chosen durability. Under
+ * FSYNC_EACH they measure the disk more than the code, which is the point of
+ * comparing the three modes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PersistenceBenchmark {
+    @Param({ "10", "100", "1000" })
+    int trains;
+
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    int bookings;
+
+    @Param({ "GROUP_COMMIT", "FSYNC_EACH", "OS_BUFFERED" })
+    String durability;
+
+    RailwayFixture fixture;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int query;
+        int user;
+
+        int nextQuery(int count) {
+            int next = query;
+            query = next + 1 == count ? 0 : next + 1;
+            return next;
+        }
+
+        int nextUser(int count) {
+            int next = user;
+            user = next + 1 == count ? 0 : next + 1;
+            return next;
+        }
+    }
+
+    // One fresh booking per cancel() call; made outside the timed region
+    @State(Scope.Thread)
+    public static class Victim {
+        int user;
+        String bookingId;
+
+        @Setup(Level.Invocation)
+        public void book(PersistenceBenchmark benchmark, Cursor cursor) throws IOException {
+            RailwayFixture fixture = benchmark.fixture;
+            user = cursor.nextUser(fixture.userCount());
+            bookingId = fixture.book(cursor.nextQuery(fixture.queryCount()), user);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        fixture = RailwayFixture.open(trains, bookings, durability, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        fixture.close();
+    }
+
+    @Benchmark
+    public String book(Cursor cursor) throws IOException {
+        return fixture.book(cursor.nextQuery(fixture.queryCount()), cursor.nextUser(fixture.userCount()));
+    }
+
+    @Benchmark
+    public int viewBookings(Cursor cursor) throws IOException {
+        return fixture.viewBookings(cursor.nextUser(fixture.userCount()));
+    }
+
+    @Benchmark
+    public boolean cancel(Victim victim) throws IOException {
+        return victim.bookingId != null && fixture.cancel(victim.user, victim.bookingId);
+    }
+}
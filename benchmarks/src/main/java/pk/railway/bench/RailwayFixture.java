@@ -0,0 +1,72 @@
+package pk.railway.bench;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Path;
+
+/*
+ * What the benchmarks need from the application, in JDK types only.
+ *
+ * The application is written in the default package. JMH refuses benchmark
+ * classes there, and a named package cannot import default-package classes.
+ * The implementation, RailwayFixtures, therefore sits in the default package
+ * of this module, is loaded once by name and is then called through this
+ * interface. Each call site sees a single implementation and inlines
+ * normally, so the indirection does not show up in the scores.
+ */
+public interface RailwayFixture extends AutoCloseable {
+
+    /*
+     * Opens a synthetic network of 'trains' trains with 'bookings' bookings on
+     * disk. Generated data is cached under -Drailway.bench.data (default
+     * target/bench-data) and reused by later runs. With privateCopy the booking
+     * file is copied first, so benchmarks that write leave the cache alone.
+     */
+    static RailwayFixture open(int trains, int bookings, String durability, boolean privateCopy)
+            throws IOException {
+        Path dataDir = Path.of(System.getProperty("railway.bench.data", "target/bench-data"));
+        try {
+            return (RailwayFixture) Class.forName("RailwayFixtures")
+                    .getMethod("open", Path.class, int.class, int.class, String.class, boolean.class)
+                    .invoke(null, dataDir, trains, bookings, durability, privateCopy);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException io) {
+                throw io;
+            }
+            if (cause instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new IllegalStateException(cause);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("RailwayFixtures is missing from the benchmark jar", e);
+        }
+    }
+
+    // Number of prepared (from, to, date) searches that have at least one direct train
+    int queryCount();
+
+    // Number of users that own bookings in the fixture
+    int userCount();
+
+    // The train list page rows for search 'query': PakistanRailwaySystem.getTrainData
+    String[][] trainData(int query);
+
+    // Journey durations of every direct train for search 'query', formatted for display
+    int durations(int query);
+
+    // Recomputes the calendar month of search 'query', bypassing the cache; returns service days
+    int monthAvailability(int query);
+
+    // Books one seat for search 'query' on behalf of user 'user'; returns the ID or null
+    String book(int query, int user) throws IOException;
+
+    // Reads and splits every live booking of 'user', as My Bookings does; returns the row count
+    int viewBookings(int user) throws IOException;
+
+    // Cancels a booking made through book()
+    boolean cancel(int user, String bookingId) throws IOException;
+
+    @Override
+    void close() throws IOException;
+}
@@ -0,0 +1,79 @@
+package pk.railway.bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Read-only search paths: the train list (getTrainData), journey durations
+ * (what calculateDuration used to do) and the calendar's per-day availability
+ * (CalendarPicker.isTrainAvailable, now one month per call). The searches
+ * cycle through the fixture's prepared (from, to, date) queries.
+ *
+ * The full parameter matrix takes a while; narrow it with e.g.
+ *   java -jar benchmarks/target/benchmarks.jar SearchBenchmark -p trains=100 -p bookings=100000
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchBenchmark {
+    @Param({ "10", "100", "1000" })
+    int trains;
+
+    @Param({ "1000", "100000", "1000000", "10000000" })
+    int bookings;
+
+    RailwayFixture fixture;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int next(int count) {
+            int query = next;
+            next = query + 1 == count ? 0 : query + 1;
+            return query;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        fixture = RailwayFixture.open(trains, bookings, "OS_BUFFERED", false);
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        fixture.close();
+    }
+
+    @Benchmark
+    public String[][] trainData(Cursor cursor) {
+        return fixture.trainData(cursor.next(fixture.queryCount()));
+    }
+
+    @Benchmark
+    public int durations(Cursor cursor) {
+        return fixture.durations(cursor.next(fixture.queryCount()));
+    }
+
+    @Benchmark
+    public int monthAvailability(Cursor cursor) {
+        return fixture.monthAvailability(cursor.next(fixture.queryCount()));
+    }
+}
@@ -0,0 +1,87 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BookingAnalyticsTest {
+    private static final String[] DATES = { "01/03/2027", "02/03/2027", "03/03/2027" };
+    private static final String[] PAYMENTS = { "Cash", "Card", "JazzCash" };
+
+    @TempDir
+    Path dir;
+
+    /*
+     * The figures kept up to date booking by booking must be the ones a full
+     * pass over the file gives, both in place (rebuildAnalytics) and after a
+     * restart, where they are computed from the file alone.
+     */
+    @Test
+    void incrementalFiguresEqualARebuild() throws Exception {
+        Timetable timetable = TestTimetables.line(5, 20);
+        Path file = dir.resolve("bookings.dat");
+        BookingService service = open(timetable, file);
+        Train train = service.train("T0");
+        BookingSession session = service.openSession("agent");
+        Random random = new Random(7);
+        List<String> live = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            if (!live.isEmpty() && random.nextInt(5) == 0) {
+                service.cancel(session, live.remove(random.nextInt(live.size())));
+                continue;
+            }
+            int from = random.nextInt(4);
+            int to = from + 1 + random.nextInt(4 - from);
+            SeatClass seatClass = SeatClass.values()[random.nextInt(SeatClass.values().length)];
+            Booking booking = service.book(session, train, "S" + from, "S" + to, DATES[random.nextInt(DATES.length)],
+                    "Passenger " + i, "M", seatClass.label, PAYMENTS[random.nextInt(PAYMENTS.length)]);
+            if (booking != null) {
+                live.add(booking.bookingId);
+            }
+        }
+        String incremental = figures(service.analytics(), timetable);
+        assertTrue(service.analytics().total().bookings() > 0);
+
+        service.rebuildAnalytics();
+        assertEquals(incremental, figures(service.analytics(), timetable));
+        service.close();
+
+        service = open(timetable, file);
+        assertEquals(incremental, figures(service.analytics(), timetable));
+        service.close();
+    }
+
+    // Every figure the analytics can answer for this timetable, in a fixed order
+    private static String figures(BookingAnalytics analytics, Timetable timetable) {
+        StringBuilder figures = new StringBuilder();
+        figures.append("total ").append(analytics.total()).append('\n');
+        figures.append("payments ").append(new TreeMap<>(analytics.payments())).append('\n');
+        Map<String, BookingAnalytics.Summary> routes = new TreeMap<>();
+        for (Map.Entry<BookingAnalytics.RouteKey, BookingAnalytics.Summary> route
+                : analytics.topRoutes(Integer.MAX_VALUE)) {
+            routes.put(route.getKey().toString(), route.getValue());
+        }
+        figures.append("routes ").append(routes).append('\n');
+        for (Train train : timetable.trains.values()) {
+            figures.append(train.id).append(' ').append(analytics.train(train.id)).append('\n');
+            for (String date : DATES) {
+                for (SeatClass seatClass : SeatClass.values()) {
+                    figures.append(train.id).append(' ').append(date).append(' ').append(seatClass.label).append(' ')
+                            .append(analytics.service(train.id, date, seatClass.label)).append('\n');
+                }
+            }
+        }
+        return figures.toString();
+    }
+
+    private static BookingService open(Timetable timetable, Path file) throws Exception {
+        return new BookingService(timetable, new BookingStore(file, Durability.OS_BUFFERED, 0, 0.5, Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,54 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BookingFileConverterTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void everyConvertedBookingHasAnIdOfItsOwn() throws Exception {
+        Path legacy = dir.resolve("bookings.txt");
+        Files.write(legacy, List.of(
+                "user,B1,T0,Test Express,S0,S1,01/03/2027,Ali,M,Economy,500,Cash,1",
+                "user,B1,T0,Test Express,S0,S1,01/03/2027,Ali,M,Economy,500,Cash,1", // saved twice
+                "user,B1,T0,Test Express,S1,S2,01/03/2027,Sara,F,Economy,500,Card,1", // another booking, same ID
+                "user,B2,T0,Test Express,S0,S2,01/03/2027,Khan, Imran,M,Business,2000,Cash,2",
+                "user,B3,T0,Test Express,S0,S2,01/03/2027,Gone,M,Economy,1000,Cash,3",
+                "#cancelled,B3",
+                "not a booking"));
+        Path target = dir.resolve("bookings.dat");
+        assertEquals(3, BookingFileConverter.convert(legacy, target));
+
+        BookingService service = new BookingService(TestTimetables.line(3, 10),
+                new BookingStore(target, Durability.OS_BUFFERED, 0, 0.5, Long.MAX_VALUE));
+        BookingSession session = service.openSession("user");
+        List<String[]> records = service.bookings(session, IoProgress.NONE);
+        Set<String> ids = new HashSet<>();
+        List<String> passengers = new ArrayList<>();
+        for (String[] record : records) {
+            assertTrue(ids.add(record[1]), "booking ID " + record[1] + " is used twice");
+            passengers.add(record[7]);
+        }
+        assertEquals(List.of("Ali", "Sara", "Khan, Imran"), passengers);
+        assertTrue(ids.contains("B1"));
+        assertTrue(ids.contains("B2"));
+        assertFalse(ids.contains("B3"));
+
+        // Each ID now names one booking, so cancelling B1 leaves Sara's seat booked
+        assertTrue(service.cancel(session, "B1"));
+        assertEquals(List.of("Sara", "Khan, Imran"),
+                service.bookings(session, IoProgress.NONE).stream().map(record -> record[7]).toList());
+        service.close();
+    }
+}
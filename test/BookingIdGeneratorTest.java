@@ -0,0 +1,29 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BookingIdGeneratorTest {
+    // Uniqueness within a bookings file rests on this, not on the node: the next process counts on from the file
+    @Test
+    void sameNodeCountsOnFromTheHighestIdSeen() {
+        BookingIdGenerator first = new BookingIdGenerator(0);
+        long highest = 0;
+        for (int i = 0; i < 10_000; i++) {
+            highest = first.nextId();
+        }
+        BookingIdGenerator next = new BookingIdGenerator(0);
+        next.observe(highest);
+        long id = next.nextId();
+        assertTrue(id > highest);
+        assertEquals(id, BookingIdGenerator.parse(BookingIdGenerator.format(id)));
+    }
+
+    @Test
+    void nodeBitsKeepWritersApart() {
+        long id = new BookingIdGenerator(1023).nextId();
+        assertEquals(1023, BookingIdGenerator.nodeOf(id));
+        assertThrows(IllegalArgumentException.class, () -> new BookingIdGenerator(1024));
+    }
+}
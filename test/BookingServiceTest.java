@@ -0,0 +1,174 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+class BookingServiceTest {
+    private static final int STOPS = 6;
+    private static final int SEATS = 8;
+    private static final String[] DATES = { "01/03/2027", "02/03/2027" };
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void concurrentBookingsNeverShareASeatOnOneLeg() throws Exception {
+        Timetable timetable = TestTimetables.line(STOPS, SEATS);
+        Path file = dir.resolve("bookings.dat");
+        BookingService service = open(timetable, file);
+        Train train = service.train("T0");
+        int users = 8;
+        ExecutorService pool = Executors.newFixedThreadPool(users);
+        List<Future<Integer>> booked = new ArrayList<>();
+        for (int u = 0; u < users; u++) {
+            String user = "user" + u;
+            long seed = u;
+            booked.add(pool.submit(() -> bookAndCancel(service, train, user, new Random(seed))));
+        }
+        int live = 0;
+        for (Future<Integer> count : booked) {
+            live += count.get();
+        }
+        pool.shutdown();
+        service.close();
+
+        // Checked from the file, so the seats that were written are what counts
+        BookingService reopened = open(timetable, file);
+        List<String[]> records = new ArrayList<>();
+        for (int u = 0; u < users; u++) {
+            BookingSession session = reopened.openSession("user" + u);
+            records.addAll(reopened.bookings(session, IoProgress.NONE));
+            reopened.closeSession(session);
+        }
+        reopened.close();
+        assertEquals(live, records.size());
+
+        Map<String, List<int[]>> legsBySeat = new HashMap<>();
+        for (String[] record : records) {
+            int seat = Integer.parseInt(record[12]);
+            assertTrue(seat >= 1 && seat <= SEATS, "seat " + seat + " is outside the coach");
+            String key = record[6] + "/" + record[9] + "/" + seat;
+            int from = train.stopIndex(timetable.stations.get(record[4]));
+            int to = train.stopIndex(timetable.stations.get(record[5]));
+            for (int[] other : legsBySeat.computeIfAbsent(key, k -> new ArrayList<>())) {
+                if (from < other[1] && other[0] < to) {
+                    fail("Seat " + key + " is sold twice: stops " + from + "-" + to + " and " + other[0] + "-"
+                            + other[1]);
+                }
+            }
+            legsBySeat.get(key).add(new int[] { from, to });
+        }
+    }
+
+    @Test
+    void trainIsNotSoldOrFoundOnADayItDoesNotRun() throws Exception {
+        Timetable timetable = TestTimetables.line(3, SEATS);
+        BookingService service = open(timetable, dir.resolve("bookings.dat"));
+        Train train = service.train("T0");
+        train.serviceDays = 0b0111111; // no Sunday service
+        String sunday = "07/03/2027";
+        String monday = "08/03/2027";
+        BookingSession session = service.openSession("user");
+        BookingService.Passenger passenger = new BookingService.Passenger("P", "F", "Economy");
+
+        assertThrows(IllegalArgumentException.class,
+                () -> service.book(session, train, "S0", "S2", sunday, "P", "F", "Economy", "Cash"));
+        assertThrows(IllegalArgumentException.class,
+                () -> service.bookGroup(session, train, "S0", "S2", sunday, List.of(passenger), "Cash"));
+        assertThrows(IllegalArgumentException.class, () -> service.bookAll(List.of(
+                new BookingService.BookingRequest("user", train, "S0", "S2", sunday, passenger, "Cash"))));
+        assertThrows(IllegalArgumentException.class,
+                () -> service.joinWaitlist(session, train, "S0", "S2", sunday, "P", "F", "Economy", "Cash", 0));
+        assertTrue(service.bookings(session, IoProgress.NONE).isEmpty());
+
+        assertEquals(0, service.search("S0", "S2", sunday, SeatClass.ECONOMY).routes.length);
+        assertEquals(1, service.search("S0", "S2", monday, SeatClass.ECONOMY).routes.length);
+        // The planner can only offer Monday's run to a Sunday traveller
+        for (JourneyPlanner.Itinerary itinerary : service.connections("S0", "S2", sunday, 0, 3)) {
+            assertTrue(itinerary.departure() >= ServiceTime.MINUTES_PER_DAY, "boards the Sunday run");
+        }
+        assertEquals(0, service.connections("S0", "S2", monday, 0, 3).get(0).departure()
+                / ServiceTime.MINUTES_PER_DAY);
+
+        assertTrue(service.book(session, train, "S0", "S2", monday, "P", "F", "Economy", "Cash") != null);
+        service.close();
+    }
+
+    @Test
+    void cancellationPromotesTheBestWaitingPassengerThatFits() throws Exception {
+        BookingService service = open(TestTimetables.line(3, 1), dir.resolve("bookings.dat"));
+        Train train = service.train("T0");
+        String date = "01/03/2027";
+        BookingSession session = service.openSession("user");
+        Booking firstLeg = service.book(session, train, "S0", "S1", date, "A", "F", "Economy", "Cash");
+        Booking secondLeg = service.book(session, train, "S1", "S2", date, "B", "F", "Economy", "Cash");
+        Waitlist.Entry whole = service.joinWaitlist(session, train, "S0", "S2", date, "W", "F", "Economy", "Cash", 0);
+        Waitlist.Entry later = service.joinWaitlist(session, train, "S0", "S1", date, "L", "F", "Economy", "Cash", 5);
+        Waitlist.Entry first = service.joinWaitlist(session, train, "S0", "S1", date, "F", "F", "Economy", "Cash", 1);
+        assertFalse(whole.promoted.isDone() || later.promoted.isDone() || first.promoted.isDone());
+        assertEquals(3, service.waitlistLength(train, date, "Economy"));
+
+        // Only S0-S1 is free: the whole journey does not fit, and priority 1 goes before 5
+        assertTrue(service.cancel(session, firstLeg.bookingId));
+        Booking promoted = first.promoted.get(5, TimeUnit.SECONDS);
+        assertEquals("S0", promoted.from);
+        assertEquals("S1", promoted.to);
+        assertEquals(1, promoted.seatNumber);
+        assertFalse(whole.promoted.isDone() || later.promoted.isDone());
+        assertEquals(2, service.waitlistLength(train, date, "Economy"));
+
+        assertTrue(service.cancel(session, secondLeg.bookingId));
+        assertFalse(whole.promoted.isDone() || later.promoted.isDone());
+        assertTrue(service.leaveWaitlist(later));
+        assertTrue(later.promoted.isCancelled());
+
+        assertTrue(service.cancel(session, promoted.bookingId));
+        assertEquals("W", whole.promoted.get(5, TimeUnit.SECONDS).passengerName);
+        assertEquals(0, service.waitlistLength(train, date, "Economy"));
+        assertEquals(List.of("W"),
+                service.bookings(session, IoProgress.NONE).stream().map(record -> record[7]).toList());
+        service.close();
+    }
+
+    // Books random trips and cancels some of them; returns how many are still booked
+    private static int bookAndCancel(BookingService service, Train train, String user, Random random)
+            throws Exception {
+        BookingSession session = service.openSession(user);
+        List<String> mine = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            if (!mine.isEmpty() && random.nextInt(4) == 0) {
+                assertTrue(service.cancel(session, mine.remove(random.nextInt(mine.size()))));
+                continue;
+            }
+            int from = random.nextInt(STOPS - 1);
+            int to = from + 1 + random.nextInt(STOPS - 1 - from);
+            SeatClass seatClass = SeatClass.values()[random.nextInt(SeatClass.values().length)];
+            Booking booking = service.book(session, train, "S" + from, "S" + to, DATES[random.nextInt(DATES.length)],
+                    "Passenger " + i, "F", seatClass.label, "Cash");
+            if (booking != null) {
+                mine.add(booking.bookingId);
+            }
+        }
+        service.closeSession(session);
+        return mine.size();
+    }
+
+    private static BookingService open(Timetable timetable, Path file) throws Exception {
+        return new BookingService(timetable, new BookingStore(file, Durability.OS_BUFFERED, 0, 0.5, Long.MAX_VALUE));
+    }
+}
@@ -0,0 +1,208 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BookingStoreTest {
+    private static final String DATE = "01/03/2027";
+
+    @TempDir
+    Path dir;
+
+    /*
+     * A group is written in one go, so a crash part way through its records
+     * must leave all of it or none of it: cut the file at every byte of the
+     * group and open what is left.
+     */
+    @Test
+    void groupSurvivesACrashWholeOrNotAtAll() throws Exception {
+        Timetable timetable = TestTimetables.line(3, 10);
+        Path file = dir.resolve("bookings.dat");
+        BookingService service = open(timetable, file);
+        BookingSession session = service.openSession("agent");
+        Train train = service.train("T0");
+        service.book(session, train, "S0", "S2", DATE, "Before", "M", "Economy", "Cash");
+        service.close();
+        long before = Files.size(file);
+
+        service = open(timetable, file);
+        session = service.openSession("agent");
+        List<Booking> group = service.bookGroup(session, train, "S0", "S2", DATE, List.of(
+                new BookingService.Passenger("A", "F", "Economy"),
+                new BookingService.Passenger("B", "M", "Economy"),
+                new BookingService.Passenger("C", "F", "Business")), "Card");
+        assertEquals(3, group.size());
+        service.close();
+        long after = Files.size(file);
+        assertTrue(after > before);
+
+        Path crashed = Files.createDirectory(dir.resolve("crashed"));
+        for (long cut = before; cut <= after; cut++) {
+            Path copy = crashed.resolve("bookings.dat");
+            for (Path part : storeFiles(file)) {
+                Files.copy(part, crashed.resolve(part.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+            }
+            try (FileChannel channel = FileChannel.open(copy, StandardOpenOption.WRITE)) {
+                channel.truncate(cut);
+            }
+            BookingService reopened = open(timetable, copy);
+            Set<String> passengers = new TreeSet<>();
+            for (String[] record : reopened.bookings(reopened.openSession("agent"), IoProgress.NONE)) {
+                passengers.add(record[7]);
+            }
+            int economyLeft = reopened.search("S0", "S2", DATE, SeatClass.ECONOMY).seatsLeft[0];
+            reopened.close();
+            if (cut == after) {
+                assertEquals(Set.of("Before", "A", "B", "C"), passengers);
+                assertEquals(7, economyLeft);
+            } else {
+                assertEquals(Set.of("Before"), passengers, "cut at byte " + cut);
+                assertEquals(9, economyLeft, "cut at byte " + cut);
+            }
+        }
+    }
+
+    /*
+     * Appends index their records concurrently, so a crash can leave the index
+     * file with an entry for a record but none for an earlier one. Opening must
+     * still find the earlier one instead of catching up from the later.
+     */
+    @Test
+    void indexCatchesUpPastAMissingEntry() throws Exception {
+        Path file = dir.resolve("bookings.dat");
+        Path indexFile = BookingIndex.indexPathFor(file);
+        BookingStore store = openStore(file);
+        store.append(record("A"));
+        store.close();
+        byte[] closedAfterA = Files.readAllBytes(indexFile);
+
+        store = openStore(file);
+        store.append(record("B"));
+        store.append(record("C"));
+        store.append(record("D"));
+        store.close();
+        // The entries for B, C and D follow the index as it was; keep C's and D's but not B's
+        ByteBuffer entries = ByteBuffer.wrap(Files.readAllBytes(indexFile));
+        entries.position(closedAfterA.length);
+        List<byte[]> added = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            int start = entries.position();
+            entries.position(start + 2 + entries.getShort(start));
+            entries.position(entries.position() + 2 + entries.getShort() + 8);
+            added.add(Arrays.copyOfRange(entries.array(), start, entries.position()));
+        }
+        ByteArrayOutputStream crashed = new ByteArrayOutputStream();
+        crashed.write(closedAfterA);
+        crashed.write(added.get(1));
+        crashed.write(added.get(2));
+        Files.write(indexFile, crashed.toByteArray());
+
+        store = openStore(file);
+        assertNotNull(store.find("B"), "B was never indexed");
+        List<String> ids = new ArrayList<>();
+        for (String[] record : store.readRecords("agent")) {
+            ids.add(record[1]);
+        }
+        ids.sort(null);
+        assertEquals(List.of("A", "B", "C", "D"), ids);
+        store.close();
+    }
+
+    @Test
+    void compactionKeepsExactlyTheLiveRecords() throws Exception {
+        Path file = dir.resolve("bookings.dat");
+        BookingStore store = openStore(file);
+        Set<String> live = new TreeSet<>();
+        for (int i = 0; i < 300; i++) {
+            store.append(record("B" + i));
+            live.add("B" + i);
+        }
+        for (int i = 0; i < 300; i += 3) {
+            assertTrue(store.cancel("B" + i));
+            live.remove("B" + i);
+        }
+        long before = Files.size(file);
+        store.compact();
+        assertTrue(Files.size(file) < before);
+        assertEquals(live, ids(store));
+        assertNull(store.find("B0"));
+        assertNotNull(store.find("B1"));
+        store.append(record("After"));
+        live.add("After");
+        store.close();
+
+        store = openStore(file);
+        assertEquals(live, ids(store));
+        assertFalse(store.cancel("B0"), "a compacted-away booking came back");
+        store.close();
+    }
+
+    // Closing while cancellations have a compaction running must neither lose records nor leave it half done
+    @Test
+    void closeWaitsForABackgroundCompaction() throws Exception {
+        Path file = dir.resolve("bookings.dat");
+        Set<String> live = new HashSet<>();
+        for (int round = 0; round < 10; round++) {
+            BookingStore store = new BookingStore(file, Durability.OS_BUFFERED, 0, 0.1, 1);
+            for (int i = 0; i < 200; i++) {
+                String id = "R" + round + "-" + i;
+                store.append(record(id));
+                live.add(id);
+                if (i % 2 == 0) {
+                    assertTrue(store.cancel(id));
+                    live.remove(id);
+                }
+            }
+            store.close();
+            assertFalse(Files.exists(file.resolveSibling("bookings.dat.compact")), "round " + round);
+        }
+        BookingStore store = openStore(file);
+        assertEquals(new TreeSet<>(live), ids(store));
+        store.close();
+    }
+
+    private static Set<String> ids(BookingStore store) throws IOException {
+        Set<String> ids = new TreeSet<>();
+        for (String[] record : store.readRecords("agent")) {
+            ids.add(record[1]);
+        }
+        return ids;
+    }
+
+    private static String[] record(String bookingId) {
+        return new String[] { "agent", bookingId, "T0", "Test Express", "S0", "S1", DATE, "Passenger " + bookingId,
+                "F", "Economy", "500", "Cash", "1" };
+    }
+
+    // The bookings file and the index files kept next to it
+    private static List<Path> storeFiles(Path file) {
+        return List.of(file, BookingIndex.indexPathFor(file), BookingIndex.dictionaryPathFor(file));
+    }
+
+    private static BookingService open(Timetable timetable, Path file) throws IOException {
+        return new BookingService(timetable, openStore(file));
+    }
+
+    private static BookingStore openStore(Path file) throws IOException {
+        return new BookingStore(file, Durability.OS_BUFFERED, 0, 0.5, Long.MAX_VALUE);
+    }
+}
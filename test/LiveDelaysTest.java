@@ -0,0 +1,63 @@
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneOffset;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LiveDelaysTest {
+    // Noon on Monday 01/03/2027
+    private static final Clock CLOCK = Clock.fixed(Instant.parse("2027-03-01T12:00:00Z"), ZoneOffset.UTC);
+    private static final String TODAY = "01/03/2027";
+
+    @Test
+    void delayIsCarriedOnAndWonBackInDwellTime() {
+        // Stops an hour apart with 5 minutes at each, so every stop can win back 4 minutes
+        Train train = TestTimetables.line(4, 10).trains.get("T0");
+        LiveDelays delays = new LiveDelays(CLOCK);
+        assertNull(delays.status(train, TODAY));
+
+        assertTrue(delays.report(train, TODAY, 1, 10));
+        LiveDelays.Status status = delays.status(train, TODAY);
+        assertEquals(1, status.reportedStop);
+        assertEquals(0, status.arrivalDelay(0));
+        assertEquals(10, status.arrivalDelay(1));
+        assertEquals(6, status.departureDelay(1));
+        assertEquals(6, status.arrivalDelay(2));
+        assertEquals(2, status.departureDelay(2));
+        assertEquals(2, status.arrivalDelay(3));
+        assertEquals(train.arrivals[3] + 2, status.arrival(3));
+
+        // An earlier stop reported late changes nothing; a later one replaces what was predicted
+        assertFalse(delays.report(train, TODAY, 0, 30));
+        assertTrue(delays.report(train, TODAY, 2, -3));
+        status = delays.status(train, TODAY);
+        assertEquals(10, status.arrivalDelay(1));
+        assertEquals(-3, status.arrivalDelay(2));
+        assertEquals(0, status.departureDelay(2)); // never leaves before the printed time
+        assertEquals(0, status.arrivalDelay(3));
+        assertNull(delays.status(train, "02/03/2027"));
+    }
+
+    @Test
+    void onlyRunsOnTheMoveTakeReports() {
+        Train train = TestTimetables.line(4, 10).trains.get("T0");
+        LiveDelays delays = new LiveDelays(CLOCK);
+        // Tomorrow is allowed for a reporter whose clock is ahead; the day after has not started
+        assertTrue(delays.report(train, "02/03/2027", 0, 5));
+        assertThrows(IllegalArgumentException.class, () -> delays.report(train, "03/03/2027", 0, 5));
+        // Yesterday's run could still be on its way at the latest delay allowed; the day before is over
+        assertTrue(delays.report(train, "28/02/2027", 3, 60));
+        assertThrows(IllegalArgumentException.class, () -> delays.report(train, "27/02/2027", 3, 60));
+
+        assertThrows(IllegalArgumentException.class, () -> delays.report(train, TODAY, 4, 5));
+        assertThrows(IllegalArgumentException.class,
+                () -> delays.report(train, TODAY, 0, ServiceTime.MINUTES_PER_DAY + 1));
+        assertThrows(IllegalArgumentException.class, () -> delays.report(train, "2027-03-01", 0, 5));
+    }
+}
@@ -0,0 +1,90 @@
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RailwayHttpServerTest {
+    private static final String BOOKING = "{\"train\":\"T0\",\"from\":\"S0\",\"to\":\"S2\",\"date\":\"01/03/2027\","
+            + "\"passenger\":\"P\",\"gender\":\"M\",\"seatClass\":\"Economy\",\"payment\":\"Cash\"}";
+
+    @TempDir
+    Path dir;
+
+    private BookingService service;
+    private RailwayHttpServer server;
+    private final HttpClient client = HttpClient.newHttpClient();
+
+    @BeforeEach
+    void start() throws Exception {
+        service = new BookingService(TestTimetables.line(3, 10),
+                new BookingStore(dir.resolve("bookings.dat"), Durability.OS_BUFFERED, 0, 0.5, Long.MAX_VALUE));
+        server = new RailwayHttpServer(service, new InetSocketAddress("127.0.0.1", 0), 50, 10, 100);
+        server.start();
+    }
+
+    @AfterEach
+    void stop() throws Exception {
+        server.stop(0);
+        service.close();
+    }
+
+    @Test
+    void bookingEndpointsNeedASignedInUser() throws Exception {
+        assertEquals(401, send(post("/api/bookings", BOOKING)).statusCode());
+        assertEquals(401, send(post("/api/bookings", BOOKING).header("Authorization", basic("user", "wrong")))
+                .statusCode());
+        assertEquals(201, send(post("/api/bookings", BOOKING).header("Authorization", basic("user", "user123")))
+                .statusCode());
+        assertEquals(401, send(request("/api/bookings?user=user").GET()).statusCode());
+    }
+
+    @Test
+    void signedInUserCannotActForAnother() throws Exception {
+        String user = basic("user", "user123");
+        assertEquals(200, send(request("/api/bookings").header("Authorization", user).GET()).statusCode());
+        assertEquals(403, send(request("/api/bookings?user=admin").header("Authorization", user).GET())
+                .statusCode());
+        assertEquals(403, send(request("/api/bookings/PKR-0?user=admin").header("Authorization", user).DELETE())
+                .statusCode());
+        assertEquals(403, send(post("/api/bookings", BOOKING.replace("{", "{\"user\":\"admin\","))
+                .header("Authorization", user)).statusCode());
+    }
+
+    @Test
+    void datedSearchListsOnlyTrainsRunningThatDay() throws Exception {
+        service.train("T0").serviceDays = 0b0111111; // no Sunday service
+        HttpResponse<String> sunday = send(request("/api/search?from=S0&to=S2&date=07/03/2027").GET());
+        assertEquals(200, sunday.statusCode());
+        assertTrue(sunday.body().contains("\"trains\":[]"), sunday.body());
+        HttpResponse<String> monday = send(request("/api/search?from=S0&to=S2&date=08/03/2027").GET());
+        assertTrue(monday.body().contains("\"id\":\"T0\""), monday.body());
+    }
+
+    private HttpRequest.Builder request(String path) {
+        return HttpRequest.newBuilder(URI.create("http://127.0.0.1:" + server.getAddress().getPort() + path));
+    }
+
+    private HttpRequest.Builder post(String path, String body) {
+        return request(path).POST(HttpRequest.BodyPublishers.ofString(body));
+    }
+
+    private HttpResponse<String> send(HttpRequest.Builder request) throws Exception {
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofString());
+    }
+
+    private static String basic(String user, String password) {
+        return "Basic " + Base64.getEncoder().encodeToString((user + ":" + password).getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,38 @@
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Small networks for tests, so seats run out after a handful of bookings
+final class TestTimetables {
+    private TestTimetables() {
+    }
+
+    /*
+     * Stations S0..S(stops-1) in a line, 100 km apart, and one train T0 calling
+     * at all of them an hour apart, with 'seats' seats in every class.
+     */
+    static Timetable line(int stops, int seats) {
+        Map<String, Station> stations = new HashMap<>();
+        Station[] calls = new Station[stops];
+        int[] arrivals = new int[stops];
+        int[] departures = new int[stops];
+        for (int i = 0; i < stops; i++) {
+            calls[i] = new Station("S" + i);
+            stations.put(calls[i].name, calls[i]);
+            arrivals[i] = i * 60;
+            departures[i] = i * 60 + 5;
+            if (i > 0) {
+                calls[i - 1].tracks.add(new Track(calls[i - 1], calls[i], 100));
+                calls[i].tracks.add(new Track(calls[i], calls[i - 1], 100));
+            }
+        }
+        Train train = new Train("T0", "Test Express");
+        train.setStops(calls, arrivals, departures);
+        for (SeatClass seatClass : SeatClass.values()) {
+            train.seatCapacity.put(seatClass.label, seats);
+        }
+        Map<String, Train> trains = new LinkedHashMap<>();
+        trains.put(train.id, train);
+        return Timetable.of(stations, trains);
+    }
+}
@@ -0,0 +1,109 @@
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class TimetableSnapshotTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void snapshotHoldsExactlyWhatTheCsvFilesSay() throws Exception {
+        Timetable standard = Timetable.standard();
+        // Values other than the defaults, so a field the snapshot drops cannot pass by chance
+        standard.stations.get("Lahore").minTransferMinutes = 25;
+        Train weekdays = standard.trains.values().iterator().next();
+        weekdays.serviceDays = 0b0011111;
+        weekdays.seatCapacity.put("AC", 12);
+        TimetableFiles.write(standard, dir);
+
+        Timetable csv = TimetableFiles.parse(dir);
+        TimetableFiles.load(dir); // parses again and leaves the snapshot behind
+        Timetable snapshot = TimetableSnapshot.read(dir.resolve(TimetableFiles.SNAPSHOT),
+                TimetableFiles.sourceStamp(dir));
+        assertNotNull(snapshot, "snapshot was not written or not accepted");
+
+        assertEquals(csv.stations.keySet(), snapshot.stations.keySet());
+        for (Station expected : csv.stations.values()) {
+            Station actual = snapshot.stations.get(expected.name);
+            assertEquals(expected.minTransferMinutes, actual.minTransferMinutes, expected.name);
+            assertEquals(tracks(expected), tracks(actual), expected.name);
+            for (Track track : actual.tracks) {
+                assertSame(actual, track.from);
+                assertSame(snapshot.stations.get(track.to.name), track.to);
+            }
+        }
+        assertEquals(25, snapshot.stations.get("Lahore").minTransferMinutes);
+
+        assertEquals(csv.trains.keySet(), snapshot.trains.keySet());
+        for (Train expected : csv.trains.values()) {
+            Train actual = snapshot.trains.get(expected.id);
+            assertEquals(expected.name, actual.name, expected.id);
+            assertEquals(expected.serviceDays, actual.serviceDays, expected.id);
+            assertEquals(expected.seatCapacity, actual.seatCapacity, expected.id);
+            assertArrayEquals(names(expected.stops), names(actual.stops), expected.id);
+            assertArrayEquals(expected.arrivals, actual.arrivals, expected.id);
+            assertArrayEquals(expected.departures, actual.departures, expected.id);
+            for (Station stop : actual.stops) {
+                assertSame(snapshot.stations.get(stop.name), stop);
+            }
+        }
+        assertEquals(0b0011111, snapshot.trains.get(weekdays.id).serviceDays);
+        assertEquals(12, snapshot.trains.get(weekdays.id).seatCapacity.get("AC"));
+    }
+
+    @Test
+    void snapshotOfOtherCsvFilesIsIgnored() throws Exception {
+        TimetableFiles.write(Timetable.standard(), dir);
+        TimetableFiles.load(dir);
+        long stamp = TimetableFiles.sourceStamp(dir);
+        assertNull(TimetableSnapshot.read(dir.resolve(TimetableFiles.SNAPSHOT), stamp + 1));
+    }
+
+    @Test
+    void negativeTransferTimesAndSeatCountsAreRejected() throws Exception {
+        Timetable badTransfer = Timetable.standard();
+        badTransfer.stations.get("Lahore").minTransferMinutes = -5;
+        TimetableFiles.write(badTransfer, dir);
+        assertThrows(TimetableFiles.CsvReader.Malformed.class, () -> TimetableFiles.parse(dir));
+
+        Timetable badSeats = Timetable.standard();
+        badSeats.trains.values().iterator().next().seatCapacity.put("AC", -1);
+        TimetableFiles.write(badSeats, dir);
+        assertThrows(TimetableFiles.CsvReader.Malformed.class, () -> TimetableFiles.parse(dir));
+
+        // A snapshot holding them is treated as damaged, so the CSV files are read instead
+        Path snapshot = dir.resolve(TimetableFiles.SNAPSHOT);
+        TimetableSnapshot.write(badSeats, snapshot, 42);
+        assertNull(TimetableSnapshot.read(snapshot, 42));
+        TimetableSnapshot.write(badTransfer, snapshot, 42);
+        assertNull(TimetableSnapshot.read(snapshot, 42));
+        TimetableSnapshot.write(Timetable.standard(), snapshot, 42);
+        assertNotNull(TimetableSnapshot.read(snapshot, 42));
+    }
+
+    private static List<String> tracks(Station station) {
+        List<String> tracks = new ArrayList<>();
+        for (Track track : station.tracks) {
+            tracks.add(track.from.name + " -> " + track.to.name + " " + track.distance);
+        }
+        return tracks;
+    }
+
+    private static String[] names(Station[] stops) {
+        String[] names = new String[stops.length];
+        for (int i = 0; i < stops.length; i++) {
+            names[i] = stops[i].name;
+        }
+        return names;
+    }
+}